@@ -0,0 +1,69 @@
+package co.casterlabs.jcup.bundler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import co.casterlabs.jcup.bundler.config.Architecture;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Fetches the (type 2) AppImage runtime, which is the ELF stub that mounts the
+ * SquashFS image appended to it.
+ */
+public class AppImageRuntime {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("AppImageRuntime");
+
+    private static final HttpClient httpClient = HttpClient
+        .newBuilder()
+        .followRedirects(Redirect.ALWAYS)
+        .build();
+
+    private static final Map<Architecture, String> ARCH_MAPPING = Map.of(
+        Architecture.x86, "i686",
+        Architecture.x86_64, "x86_64",
+        Architecture.arm, "armhf",
+        Architecture.aarch64, "aarch64"
+    );
+
+    // Synchronized so parallel builds don't download into the same .part file.
+    public static synchronized File download(String urlTemplate, Architecture arch) throws IOException, InterruptedException {
+        String archName = ARCH_MAPPING.get(arch);
+        if (archName == null) {
+            throw new IllegalArgumentException("There is no AppImage runtime for " + arch);
+        }
+
+        File runtimeFile = new File(JCup.DOWNLOAD_CACHE_FOLDER, "appimage-runtime-" + archName);
+        if (runtimeFile.exists()) {
+            LOGGER.debug("This AppImage runtime is cached. Using that instead.");
+            return runtimeFile;
+        }
+
+        String url = urlTemplate.replace("{arch}", archName);
+        LOGGER.info("Downloading AppImage runtime from %s", url);
+
+        File tempFile = new File(JCup.DOWNLOAD_CACHE_FOLDER, runtimeFile.getName() + ".part");
+        HttpResponse<?> response = httpClient.send(
+            HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .GET()
+                .build(),
+            HttpResponse.BodyHandlers.ofFile(tempFile.toPath())
+        );
+        if (response.statusCode() != 200) {
+            tempFile.delete();
+            throw new IOException("Unable to download the AppImage runtime, got status " + response.statusCode());
+        }
+
+        if (!tempFile.renameTo(runtimeFile)) {
+            throw new IOException("Unable to move the AppImage runtime into the download cache.");
+        }
+        return runtimeFile;
+    }
+
+}
@@ -0,0 +1,210 @@
+package co.casterlabs.jcup.bundler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.Config;
+import co.casterlabs.jcup.bundler.config.Config.OSSpecificConfig;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import co.casterlabs.jcup.bundler.icons.AppIcon;
+import co.casterlabs.jcup.bundler.platforms.Bundler;
+import co.casterlabs.jcup.bundler.runtime.RuntimeProvider;
+import co.casterlabs.jcup.bundler.runtime.SharedRuntimes;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * The union of every config's targets, grouped by the runtime they need. Each
+ * runtime is downloaded once. If several targets need it, it's extracted once,
+ * used by every one of them and then cleaned up once the last is done.
+ * Otherwise it's streamed straight into its only target's bundle.
+ *
+ * Targets run one after the other by default, so only one runtime is extracted
+ * at a time. With a higher parallelism they run concurrently, at the cost of
+ * having more runtimes extracted at once.
+ */
+public class BundlePlan {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("BundlePlan");
+
+    private final Map<RuntimeKey, List<Target>> targets = new LinkedHashMap<>();
+    private final int parallelism;
+
+    /**
+     * How long each target took to bundle, in the order they finished. The first
+     * target of each runtime includes getting the runtime.
+     */
+    private final @Getter Map<String, Long> targetNanos = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public BundlePlan() {
+        this(1);
+    }
+
+    /**
+     * @param parallelism How many targets to bundle at once.
+     */
+    public BundlePlan(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, got " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public BundlePlan add(@NonNull Config config) throws JCupAbortException {
+        RuntimeProvider provider;
+        try {
+            provider = RuntimeProvider.from(config.runtime);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid runtime config for %s, aborting.\n%s", config.executableName, e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+
+        AppIcon icon = null;
+        if (config.appIconPath != null) {
+            try {
+                icon = AppIcon.from(new File(config.appIconPath));
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read app icon for %s, ignoring.\n%s", config.executableName, e);
+            }
+        }
+
+        for (OSSpecificConfig ossc : config.toCreate) {
+            for (OperatingSystem os : ossc.operatingSystems) {
+                for (Architecture arch : ossc.architectures) {
+                    this.targets
+                        .computeIfAbsent(new RuntimeKey(provider, config.javaVersion, os, arch), (k) -> new LinkedList<>())
+                        .add(new Target(config, icon, ossc, os, arch));
+                }
+            }
+        }
+        return this;
+    }
+
+    public void execute() throws JCupAbortException {
+        int count = this.targets.values().stream().mapToInt(List::size).sum();
+        LOGGER.info("Bundling %d target(s) using %d distinct runtime(s).", count, this.targets.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelism, Math.max(count, 1)));
+        AtomicBoolean aborted = new AtomicBoolean();
+        List<CompletableFuture<Void>> tasks = new LinkedList<>();
+        try {
+            for (Map.Entry<RuntimeKey, List<Target>> entry : this.targets.entrySet()) {
+                RuntimeKey key = entry.getKey();
+                LOGGER.debug("Bundling %s for: %s", key, entry.getValue());
+
+                // Once per target, so the runtime is only extracted if more than one of them
+                // needs it. Kept until the last of them is done, even if another plan
+                // releases it first.
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    SharedRuntimes.retain(key.provider, key.javaVersion, key.os, key.arch);
+                }
+
+                for (Target target : entry.getValue()) {
+                    tasks.add(
+                        CompletableFuture
+                            .runAsync(() -> this.bundle(target, aborted), executor)
+                            .whenComplete((v, t) -> SharedRuntimes.release(key.provider, key.javaVersion, key.os, key.arch))
+                    );
+                }
+            }
+
+            try {
+                CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof AbortedException) {
+                    throw ((AbortedException) e.getCause()).abort;
+                }
+                throw e;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void bundle(Target target, AtomicBoolean aborted) {
+        if (aborted.get()) return; // Another target failed, don't bother.
+
+        try {
+            long start = System.nanoTime();
+            Bundler
+                .getBundler(target.os)
+                .bundle(target.config, target.icon, target.ossc, target.arch);
+            this.targetNanos.put(target.toString(), System.nanoTime() - start);
+        } catch (JCupAbortException e) {
+            aborted.set(true);
+            throw new AbortedException(e);
+        } catch (RuntimeException e) {
+            aborted.set(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Carries a {@link JCupAbortException} out of a task.
+     */
+    private static class AbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final JCupAbortException abort;
+
+        private AbortedException(JCupAbortException abort) {
+            super(abort);
+            this.abort = abort;
+        }
+    }
+
+    @AllArgsConstructor
+    private static class RuntimeKey {
+        private final RuntimeProvider provider;
+        private final int javaVersion;
+        private final OperatingSystem os;
+        private final Architecture arch;
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RuntimeKey)) return false;
+            RuntimeKey other = (RuntimeKey) obj;
+            return this.provider.id().equals(other.provider.id()) && this.javaVersion == other.javaVersion && this.os == other.os && this.arch == other.arch;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.provider.id(), this.javaVersion, this.os, this.arch);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d-%s-%s (%s)", this.javaVersion, this.os, this.arch, this.provider.id());
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Target {
+        private final Config config;
+        private final @Nullable AppIcon icon;
+        private final OSSpecificConfig ossc;
+        private final OperatingSystem os;
+        private final Architecture arch;
+
+        @Override
+        public String toString() {
+            return String.format("%s-%s-%s", this.config.executableName, this.os, this.arch);
+        }
+    }
+
+}
@@ -1,10 +1,14 @@
 package co.casterlabs.jcup.bundler;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
 
-import co.casterlabs.jcup.bundler.config.Architecture;
-import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import co.casterlabs.jcup.bundler.config.Config;
+import co.casterlabs.rakurai.json.Rson;
 import lombok.NonNull;
+
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 
 public class JCup {
@@ -26,11 +30,53 @@ public class JCup {
 
     public static final FastLogger LOGGER = new FastLogger("JCup");
 
-    public static File createBuildFolder(@NonNull OperatingSystem os, @NonNull Architecture arch) {
-        File folder = new File(BUILD_FOLDER, String.format("%s-%s", os, arch));
-        Utils.deleteRecursively(folder); // Clear it up.
-        folder.mkdirs();
-        return folder;
+    /**
+     * Reads a config, filling in the defaults for anything that's missing.
+     */
+    public static Config readConfig(@NonNull File configFile) throws JCupAbortException {
+        if (!configFile.isFile()) {
+            LOGGER.severe("Unable to find config %s, aborting.", configFile);
+            throw new JCupAbortException(EXIT_CODE_ERROR);
+        }
+
+        try {
+            return Rson.DEFAULT.fromJson(Files.readString(configFile.toPath()), Config.class);
+        } catch (IOException e) {
+            LOGGER.severe("Unable to read config %s. Do we have permission to read?\n%s", configFile, e);
+            throw new JCupAbortException(EXIT_CODE_ERROR);
+        }
+    }
+
+    /**
+     * Bundles every target of the configs, in-process. Unlike the command line
+     * this never exits, failures are thrown instead. Safe to call from multiple
+     * threads at once (e.g a parallel Maven build), the runtimes and downloads are
+     * shared between the calls.
+     *
+     * @param parallelism How many targets to bundle at once, see
+     *                    {@link BundlePlan#BundlePlan(int)}.
+     *
+     * @return the plan, for its timings.
+     */
+    public static BundlePlan bundle(@NonNull List<Config> configs, int parallelism) throws JCupAbortException {
+        BundlePlan plan;
+        try {
+            plan = new BundlePlan(parallelism);
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe("Invalid parallelism, aborting.\n%s", e);
+            throw new JCupAbortException(EXIT_CODE_ERROR);
+        }
+        for (Config config : configs) {
+            plan.add(config);
+        }
+
+        try {
+            plan.execute();
+        } finally {
+            // Anything still left gets picked up on the next run, but let's be tidy.
+            Workspace.awaitCleanup();
+        }
+        return plan;
     }
 
 }
@@ -3,13 +3,14 @@ package co.casterlabs.jcup.bundler;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
-import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.benchmark.BundleBenchmark;
+import co.casterlabs.jcup.bundler.benchmark.ExtractBenchmark;
+import co.casterlabs.jcup.bundler.benchmark.LaunchBenchmark;
+import co.casterlabs.jcup.bundler.benchmark.ProfileSummary;
 import co.casterlabs.jcup.bundler.config.Config;
-import co.casterlabs.jcup.bundler.config.Config.OSSpecificConfig;
-import co.casterlabs.jcup.bundler.config.OperatingSystem;
-import co.casterlabs.jcup.bundler.icons.AppIcon;
-import co.casterlabs.jcup.bundler.platforms.Bundler;
 import co.casterlabs.rakurai.json.Rson;
 import lombok.Getter;
 import picocli.CommandLine;
@@ -19,7 +20,12 @@ import xyz.e3ndr.fastloggingframework.FastLoggingFramework;
 import xyz.e3ndr.fastloggingframework.logging.LogLevel;
 
 @Getter
-@Command(name = "bundle", mixinStandardHelpOptions = true, version = "yes", description = "Bundles your app all up <3")
+@Command(name = "bundle", mixinStandardHelpOptions = true, version = "yes", description = "Bundles your app all up <3", subcommands = {
+        LaunchBenchmark.class,
+        ExtractBenchmark.class,
+        BundleBenchmark.class,
+        ProfileSummary.class
+})
 public class Main implements Runnable {
     @Option(names = {
             "-t",
@@ -39,6 +45,18 @@ public class Main implements Runnable {
     }, description = "Disables colored output.")
     private boolean disableColor = false;
 
+    @Option(names = {
+            "-c",
+            "--config"
+    }, description = "A config to bundle, can be given multiple times (runtimes are shared between them). Defaults to jcup/config.json.")
+    private List<File> configFiles = new ArrayList<>();
+
+    @Option(names = {
+            "-j",
+            "--jobs"
+    }, description = "How many targets to bundle at once. More is faster, but has more runtimes extracted at the same time.")
+    private int jobs = 1;
+
     public static void main(String[] args) throws Exception {
         new CommandLine(new Main()).execute(args); // Calls #run()
     }
@@ -61,74 +79,63 @@ public class Main implements Runnable {
             JCup.LOGGER.debug("Enabled debug logging.");
         }
 
-        File configFile = new File(JCup.BASE_FOLDER, "config.json");
-        if (!configFile.exists()) {
+        if (this.configFiles.isEmpty()) {
+            File configFile = new File(JCup.BASE_FOLDER, "config.json");
+            if (!configFile.exists()) {
+                try {
+                    // Config file doesn't exist. Write out some defaults.
+                    configFile.getParentFile().mkdirs();
+                    Files.writeString(
+                        configFile.toPath(),
+                        Rson.DEFAULT.toJson(new Config()).toString(true)
+                    );
+                    Files.writeString(
+                        configFile.toPath().resolveSibling(".gitignore"),
+                        "*\n"
+                            + "!.gitignore\n"
+                            + "!config.json\n"
+                    );
+                    JCup.LOGGER.info("Wrote config defaults. Edit %s and re-run this tool.", configFile.getAbsolutePath());
+                    System.exit(JCup.EXIT_CODE_OTHER);
+                    return;
+                } catch (IOException e) {
+                    JCup.LOGGER.severe("Unable to write config defaults. Do we have permission to write?\n%s", e);
+                    System.exit(JCup.EXIT_CODE_ERROR);
+                    return;
+                }
+            }
+            this.configFiles.add(configFile);
+        }
+
+        List<Config> configs = new ArrayList<>();
+        for (File configFile : this.configFiles) {
+            Config config;
             try {
-                // Config file doesn't exist. Write out some defaults.
-                configFile.getParentFile().mkdirs();
+                config = JCup.readConfig(configFile);
+            } catch (JCupAbortException e) {
+                System.exit(e.desiredExitCode);
+                return;
+            }
+
+            try {
+                // Update the config.json with any new values/defaults.
                 Files.writeString(
                     configFile.toPath(),
-                    Rson.DEFAULT.toJson(new Config()).toString(true)
-                );
-                Files.writeString(
-                    configFile.toPath().resolveSibling(".gitignore"),
-                    "*\n"
-                        + "!.gitignore\n"
-                        + "!config.json\n"
+                    Rson.DEFAULT.toJson(config).toString(true)
                 );
-                JCup.LOGGER.info("Wrote config defaults. Edit %s and re-run this tool.", configFile.getAbsolutePath());
-                System.exit(JCup.EXIT_CODE_OTHER);
-                return;
+                JCup.LOGGER.debug("Rewrote config with any missing parameters.");
             } catch (IOException e) {
-                JCup.LOGGER.severe("Unable to write config defaults. Do we have permission to write?\n%s", e);
-                System.exit(JCup.EXIT_CODE_ERROR);
-                return;
+                JCup.LOGGER.warn("Unable to rewrite config. Do we have permission to write? Ignoring.\n%s", e);
             }
+            configs.add(config);
         }
 
-        // Read-in the config.
-        Config config;
         try {
-            config = Rson.DEFAULT.fromJson(Files.readString(configFile.toPath()), Config.class);
-        } catch (IOException e) {
-            JCup.LOGGER.severe("Unable to read config. Do we have permission to read?\n%s", e);
-            System.exit(JCup.EXIT_CODE_ERROR);
+            JCup.bundle(configs, this.jobs);
+        } catch (JCupAbortException e) {
+            System.exit(e.desiredExitCode);
             return;
         }
-
-        try {
-            // Update the config.json with any new values/defaults.
-            Files.writeString(
-                configFile.toPath(),
-                Rson.DEFAULT.toJson(config).toString(true)
-            );
-            JCup.LOGGER.debug("Rewrote config with any missing parameters.");
-        } catch (IOException e) {
-            JCup.LOGGER.warn("Unable to rewrite config. Do we have permission to write? Ignoring.\n%s", e);
-        }
-
-        AppIcon icon = null;
-        if (config.appIconPath != null) {
-            try {
-                icon = AppIcon.from(new File(config.appIconPath));
-            } catch (IOException e) {
-                JCup.LOGGER.warn("Unable to read app icon, ignoring.\n%s", e);
-            }
-        }
-
-        for (OSSpecificConfig ossc : config.toCreate) {
-            for (OperatingSystem os : ossc.operatingSystems) {
-                Bundler bundler = Bundler.getBundler(os);
-                for (Architecture arch : ossc.architectures) {
-                    try {
-                        bundler.bundle(config, icon, ossc, arch);
-                    } catch (JCupAbortException e) {
-                        System.exit(e.desiredExitCode);
-                        return;
-                    }
-                }
-            }
-        }
     }
 
 }
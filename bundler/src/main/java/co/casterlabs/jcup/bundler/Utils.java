@@ -1,17 +1,77 @@
 package co.casterlabs.jcup.bundler;
 
-import java.io.File;
+import java.util.regex.Pattern;
 
 public class Utils {
 
-    public static void deleteRecursively(File file) {
-        if (!file.exists()) return;
-        if (file.isDirectory()) {
-            for (File sub : file.listFiles()) {
-                deleteRecursively(sub);
+    /**
+     * Compiles a glob that matches against forward-slash separated paths.
+     * {@code *} and {@code ?} stay within a directory, {@code **} crosses them.
+     * A glob without any slashes matches the file name in any directory.
+     */
+    public static Pattern compileGlob(String glob) {
+        if (!glob.contains("/")) {
+            glob = "**/" + glob;
+        }
+
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            i++;
+                            regex.append("(?:.*/)?"); // Zero or more directories.
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+
+                case '?':
+                    regex.append("[^/]");
+                    break;
+
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
             }
         }
-        file.delete();
+        return Pattern.compile(regex.toString());
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 0) {
+            return "-" + formatBytes(-bytes);
+        }
+
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+
+        final String[] UNITS = {
+                "KB",
+                "MB",
+                "GB"
+        };
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < UNITS.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, UNITS[unit]);
+    }
+
+    /**
+     * Like {@link #formatBytes(long)}, but always signed. e.g {@code +1.2 MB}.
+     */
+    public static String formatBytesDelta(long bytes) {
+        return bytes < 0 ? formatBytes(bytes) : "+" + formatBytes(bytes);
     }
 
 }
@@ -0,0 +1,277 @@
+package co.casterlabs.jcup.bundler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Manages the folders inside of {@link JCup#BUILD_FOLDER}.
+ *
+ * New folders are built in a staging area and then moved into place, so a
+ * crashed build never leaves a half-written folder behind. Old folders are
+ * renamed out of the way (which is instant) and then deleted in the background.
+ *
+ * Every process stages into its own folder and holds a lock on a file next to
+ * it until it exits. The first time this class is used it cleans up the
+ * staging folders whose lock it can take, i.e the ones whose process is gone,
+ * so concurrent builds don't delete each other's work.
+ */
+public class Workspace {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("Workspace");
+
+    private static final File STAGING_FOLDER = new File(JCup.BUILD_FOLDER, ".staging");
+    private static final File TRASH_FOLDER = new File(JCup.BUILD_FOLDER, ".trash");
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /**
+     * Staging folders without a lock file are from before they had one, we leave
+     * them alone for a while in case one is still in use.
+     */
+    private static final long UNLOCKED_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private static final File SESSION_FOLDER;
+    @SuppressWarnings("unused")
+    private static final FileChannel SESSION_LOCK; // Held until the JVM exits.
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+    private static final List<ForkJoinTask<?>> pending = new LinkedList<>();
+    private static final AtomicInteger failures = new AtomicInteger();
+
+    static {
+        STAGING_FOLDER.mkdirs();
+        TRASH_FOLDER.mkdirs();
+
+        String id = null;
+        FileChannel lock = null;
+        try {
+            while (lock == null) {
+                id = UUID.randomUUID().toString();
+                lock = tryLock(new File(STAGING_FOLDER, id + LOCK_SUFFIX).toPath(), true);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to lock a staging folder, leftovers from previous runs won't be cleaned up.\n%s", e);
+        }
+        SESSION_FOLDER = new File(STAGING_FOLDER, id == null ? UUID.randomUUID().toString() : id);
+        SESSION_LOCK = lock;
+
+        if (lock != null) {
+            cleanupStaging(id);
+        }
+
+        File[] trash = TRASH_FOLDER.listFiles();
+        if (trash != null) {
+            for (File file : trash) {
+                schedule(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return a fresh, empty folder to build into. Pass it to
+     *         {@link #commit(File, File)} once it's complete or to
+     *         {@link #delete(File)} if something went wrong.
+     */
+    public static File stage(@NonNull String name) throws IOException {
+        File folder = new File(SESSION_FOLDER, name + '-' + UUID.randomUUID());
+        Files.createDirectories(folder.toPath());
+        return folder;
+    }
+
+    /**
+     * Puts the staged folder in place of the target, the previous contents of the
+     * target (if any) get deleted in the background. This is two moves, not an
+     * atomic swap, so the target briefly doesn't exist in between.
+     *
+     * @param target Must be inside of {@link JCup#BUILD_FOLDER}.
+     */
+    public static File commit(@NonNull File staged, @NonNull File target) throws IOException {
+        Path path = target.toPath();
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS) && !moveAside(path)) {
+            // Deleting it in the background would race the move below.
+            pool.invoke(new DeleteTask(path));
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("Unable to delete " + target + " to replace it.");
+            }
+        }
+
+        Files.createDirectories(path.getParent());
+        Files.move(staged.toPath(), path, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    /**
+     * Moves the file out of the way and deletes it in the background. Does
+     * nothing if it doesn't exist.
+     */
+    public static void delete(@NonNull File file) {
+        Path path = file.toPath();
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+
+        if (!moveAside(path)) {
+            schedule(path); // Delete it where it is.
+        }
+    }
+
+    /**
+     * @return false, if it couldn't be moved into the trash. Otherwise it gets
+     *         deleted in the background.
+     */
+    private static boolean moveAside(Path path) {
+        try {
+            Path aside = new File(TRASH_FOLDER, path.getFileName().toString() + '-' + UUID.randomUUID()).toPath();
+            Files.move(path, aside, StandardCopyOption.ATOMIC_MOVE);
+            schedule(aside);
+            return true;
+        } catch (IOException e) {
+            // Probably on a different file system.
+            LOGGER.debug("Unable to move %s aside.\n%s", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the staging folders of processes that are gone, we can tell by being
+     * able to take their lock.
+     */
+    private static void cleanupStaging(String ownId) {
+        File[] files = STAGING_FOLDER.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(ownId)) continue;
+
+            if (name.endsWith(LOCK_SUFFIX)) {
+                File folder = new File(STAGING_FOLDER, name.substring(0, name.length() - LOCK_SUFFIX.length()));
+                try (FileChannel channel = tryLock(file.toPath(), false)) {
+                    if (channel == null) continue; // Still in use.
+                    delete(folder);
+                    Files.deleteIfExists(file.toPath()); // While we still hold the lock, see tryLock().
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to clean up %s.\n%s", folder, e);
+                }
+            } else if (!new File(STAGING_FOLDER, name + LOCK_SUFFIX).exists() &&
+                System.currentTimeMillis() - file.lastModified() > UNLOCKED_MAX_AGE) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * @return null, if someone else holds the lock (or deleted the file).
+     */
+    private static FileChannel tryLock(Path path, boolean create) throws IOException {
+        FileChannel channel;
+        try {
+            channel = create ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) : FileChannel.open(path, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try {
+            FileLock lock = channel.tryLock();
+            // Whoever cleans up deletes the file while holding the lock, so if it's gone
+            // now then our lock is on a dead file.
+            if (lock != null && Files.exists(path)) {
+                return channel;
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Waits for all of the background deletions to finish.
+     */
+    public static void awaitCleanup() {
+        List<ForkJoinTask<?>> tasks;
+        synchronized (pending) {
+            tasks = new LinkedList<>(pending);
+            pending.clear();
+        }
+
+        for (ForkJoinTask<?> task : tasks) {
+            if (!task.isDone()) {
+                LOGGER.debug("Waiting for old build folders to be deleted.");
+            }
+            task.join();
+        }
+
+        int failed = failures.getAndSet(0);
+        if (failed > 0) {
+            LOGGER.warn("Unable to delete %d file(s) in %s, they will be retried on the next run.", failed, TRASH_FOLDER);
+        }
+    }
+
+    private static void schedule(Path path) {
+        synchronized (pending) {
+            pending.removeIf(ForkJoinTask::isDone);
+            pending.add(pool.submit(new DeleteTask(path)));
+        }
+    }
+
+    private static class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+
+        private DeleteTask(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            // Never follow links, we only want to delete the link itself.
+            if (Files.isDirectory(this.path, LinkOption.NOFOLLOW_LINKS)) {
+                List<DeleteTask> subtasks = new LinkedList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.path)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            subtasks.add(new DeleteTask(child));
+                        } else {
+                            deleteQuietly(child);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.trace("Unable to list %s: %s", this.path, e);
+                }
+                invokeAll(subtasks);
+            }
+
+            deleteQuietly(this.path);
+        }
+
+        private static void deleteQuietly(Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.trace("Unable to delete %s: %s", path, e);
+                failures.incrementAndGet();
+            }
+        }
+
+    }
+
+}
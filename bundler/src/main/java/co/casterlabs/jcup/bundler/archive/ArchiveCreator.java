@@ -7,56 +7,226 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.UnrecognizedExtraField;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipExtraField;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.jetbrains.annotations.Nullable;
 
-import co.casterlabs.commons.platform.OSFamily;
-import co.casterlabs.commons.platform.Platform;
 import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.Utils;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 
 public class ArchiveCreator {
     private static final FastLogger LOGGER = JCup.LOGGER.createChild("ArchiveCreator");
 
+    /**
+     * Anything bigger is written as-is, so we never hold more than this in memory
+     * to check it against the rest.
+     */
+    private static final long MAX_DEDUPLICATED_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Our own extra field ("JC"), see {@link #levelField(int)}.
+     */
+    private static final ZipShort LEVEL_HEADER_ID = new ZipShort(0x434A);
+
     public static void create(Archives.Format format, File inputDir, File destFile) throws FileNotFoundException, IOException {
+        create(format, inputDir, destFile, Collections.emptySet());
+    }
+
+    /**
+     * @param executables Paths (relative to the input folder) that should be marked
+     *                    as executable, even if the host file system can't record
+     *                    that (e.g Windows).
+     */
+    public static void create(Archives.Format format, File inputDir, File destFile, Set<String> executables) throws FileNotFoundException, IOException {
+        create(format, inputDir, destFile, executables, CompressionPolicy.DEFAULT);
+    }
+
+    /**
+     * @param executables Paths (relative to the input folder) that should be marked
+     *                    as executable, even if the host file system can't record
+     *                    that (e.g Windows).
+     * @param policy      Decides how hard each file gets compressed.
+     */
+    public static void create(Archives.Format format, File inputDir, File destFile, Set<String> executables, CompressionPolicy policy) throws FileNotFoundException, IOException {
+        create(format, inputDir, destFile, executables, policy, null);
+    }
+
+    /**
+     * @param executables Paths (relative to the input folder) that should be marked
+     *                    as executable, even if the host file system can't record
+     *                    that (e.g Windows).
+     * @param policy      Decides how hard each file gets compressed.
+     * @param previous    See {@link #create(Archives.Format, BundleTree, File, CompressionPolicy, File)}.
+     */
+    public static void create(Archives.Format format, File inputDir, File destFile, Set<String> executables, CompressionPolicy policy, @Nullable File previous) throws FileNotFoundException, IOException {
+        BundleTree tree = new BundleTree().addFolder("", inputDir);
+        for (String path : executables) {
+            tree.markExecutable(path);
+        }
+        create(format, tree, destFile, policy, previous);
+    }
+
+    /**
+     * Streams the bundle straight into the archive, without touching the disk.
+     */
+    public static void create(Archives.Format format, BundleTree tree, File destFile) throws FileNotFoundException, IOException {
+        create(format, tree, destFile, CompressionPolicy.DEFAULT);
+    }
+
+    /**
+     * Streams the bundle straight into the archive, without touching the disk.
+     *
+     * @param policy Decides how hard each file gets compressed.
+     */
+    public static void create(Archives.Format format, BundleTree tree, File destFile, CompressionPolicy policy) throws FileNotFoundException, IOException {
+        create(format, tree, destFile, policy, null);
+    }
+
+    /**
+     * Streams the bundle straight into the archive, without touching the disk.
+     *
+     * @param policy   Decides how hard each file gets compressed.
+     * @param previous A previous build of the same archive (which may be
+     *                 destFile itself), unchanged entries get copied from it as-is
+     *                 instead of being compressed again. Only used for ZIPs.
+     */
+    public static void create(Archives.Format format, BundleTree tree, File destFile, CompressionPolicy policy, @Nullable File previous) throws FileNotFoundException, IOException {
         switch (format) {
             case ZIP: {
-                try (
-                    OutputStream fileOut = new FileOutputStream(destFile);
-                    ZipArchiveOutputStream out = new ZipArchiveOutputStream(fileOut)) {
-                    compress(inputDir, inputDir, out);
-                    out.finish();
+                if (previous == null || !previous.isFile()) {
+                    createZip(tree, destFile, policy, null);
+                    return;
+                }
+
+                // We can't overwrite the previous archive while we're reading from it.
+                File tempFile = new File(destFile.getParentFile(), destFile.getName() + ".part");
+                try {
+                    try (ZipFile previousZip = new ZipFile(previous)) {
+                        createZip(tree, tempFile, policy, previousZip);
+                    }
+                    Files.move(tempFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    tempFile.delete();
                 }
                 return;
             }
 
             case TAR_GZ: {
-                try {
-                    if (Platform.osFamily == OSFamily.UNIX) {
-                        int exitCode = Runtime.getRuntime().exec(new String[] {
-                                "tar",
-                                "-czvf",
-                                destFile.getAbsolutePath(),
-                                "-C",
-                                inputDir.getAbsolutePath(),
-                                "."
-                        })
-                            .waitFor();
-
-                        if (exitCode != 0) {
-                            fallbackTarBehavior(inputDir, destFile);
+                // There's only one gzip stream, so the level is switched as we go. The
+                // compressed sizes are approximate, since tar and the deflater both buffer.
+                try (
+                    OutputStream fileOut = new FileOutputStream(destFile);
+                    LeveledGzipOutputStream gzipOut = new LeveledGzipOutputStream(fileOut);
+                    TarArchiveOutputStream out = new TarArchiveOutputStream(gzipOut)) {
+                    out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                    out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+                    Set<String> writtenDirectories = new HashSet<>();
+                    Map<String, String> contents = new HashMap<>(); // size:mode:sha256 -> first path with it
+                    long[] deduplicated = {
+                            0, // Files
+                            0 // Bytes
+                    };
+                    tree.walk((bundleEntry, in) -> {
+                        LOGGER.trace("Compressing: %s", bundleEntry.path);
+
+                        // Make sure the parent directories exist, tar won't do it for us.
+                        for (int idx = bundleEntry.path.indexOf('/'); idx != -1; idx = bundleEntry.path.indexOf('/', idx + 1)) {
+                            String directory = bundleEntry.path.substring(0, idx + 1);
+                            if (writtenDirectories.add(directory)) {
+                                TarArchiveEntry entry = new TarArchiveEntry(directory);
+                                entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+                                entry.setModTime(bundleEntry.lastModified);
+                                out.putArchiveEntry(entry);
+                                out.closeArchiveEntry();
+                            }
                         }
-                    } else {
-                        fallbackTarBehavior(inputDir, destFile);
+
+                        if (bundleEntry.isSymlink()) {
+                            TarArchiveEntry entry = new TarArchiveEntry(bundleEntry.path, TarConstants.LF_SYMLINK);
+                            entry.setLinkName(bundleEntry.symlinkTarget);
+                            entry.setMode(UnixStat.LINK_FLAG | bundleEntry.mode);
+                            entry.setModTime(bundleEntry.lastModified);
+                            out.putArchiveEntry(entry);
+                            out.closeArchiveEntry();
+                            return;
+                        }
+
+                        // Identical files are only stored once, the rest become hard links to it.
+                        byte[] content = null;
+                        if (bundleEntry.size > 0 && bundleEntry.size <= MAX_DEDUPLICATED_SIZE) {
+                            content = in.readNBytes((int) bundleEntry.size);
+                            if (content.length != bundleEntry.size) {
+                                // Otherwise the tar entry's header wouldn't match its data.
+                                throw new IOException(String.format("%s is %d bytes, expected %d (did it change while bundling?)", bundleEntry.path, content.length, bundleEntry.size));
+                            }
+
+                            String key = bundleEntry.size + ":" + bundleEntry.mode + ":" + DigestUtils.sha256Hex(content);
+                            String original = contents.putIfAbsent(key, bundleEntry.path);
+                            if (original != null) {
+                                LOGGER.trace("Linking: %s -> %s", bundleEntry.path, original);
+                                TarArchiveEntry entry = new TarArchiveEntry(bundleEntry.path, TarConstants.LF_LINK);
+                                entry.setLinkName(original);
+                                entry.setMode(UnixStat.FILE_FLAG | bundleEntry.mode);
+                                entry.setModTime(bundleEntry.lastModified);
+                                out.putArchiveEntry(entry);
+                                out.closeArchiveEntry();
+
+                                deduplicated[0]++;
+                                deduplicated[1] += bundleEntry.size;
+                                return;
+                            }
+                        }
+
+                        String rule = policy.ruleFor(bundleEntry.path);
+                        long cpuStart = CompressionPolicy.cpuTime();
+                        long written = gzipOut.bytesWritten();
+                        gzipOut.setLevel(policy.levelOf(rule));
+
+                        TarArchiveEntry entry = new TarArchiveEntry(bundleEntry.path);
+                        entry.setSize(bundleEntry.size);
+                        entry.setMode(UnixStat.FILE_FLAG | bundleEntry.mode);
+                        entry.setModTime(bundleEntry.lastModified);
+
+                        out.putArchiveEntry(entry);
+                        if (content == null) {
+                            in.transferTo(out);
+                        } else {
+                            out.write(content);
+                        }
+                        out.closeArchiveEntry();
+
+                        policy.record(rule, bundleEntry.size, gzipOut.bytesWritten() - written, CompressionPolicy.cpuTime() - cpuStart);
+                    });
+                    out.finish();
+
+                    if (deduplicated[0] > 0) {
+                        LOGGER.debug("Stored %d duplicate file(s) (%s) as hard links.", deduplicated[0], Utils.formatBytes(deduplicated[1]));
                     }
-                } catch (InterruptedException e) {
-                    throw new IOException(e);
                 }
-
                 return;
             }
 
@@ -65,35 +235,143 @@ public class ArchiveCreator {
         }
     }
 
-    private static void fallbackTarBehavior(File inputDir, File destFile) throws FileNotFoundException, IOException {
-        LOGGER.warn("tar command appears to be unsupported, falling back to java-implementation. THIS WILL DESTROY THE EXECUTABLE BIT.");
-        try (
-            OutputStream fileOut = new FileOutputStream(destFile);
-            OutputStream gzipOut = new GzipCompressorOutputStream(fileOut);
-            TarArchiveOutputStream out = new TarArchiveOutputStream(gzipOut)) {
-            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
-            compress(inputDir, inputDir, out);
+    private static void createZip(BundleTree tree, File destFile, CompressionPolicy policy, @Nullable ZipFile previous) throws IOException {
+        int[] counts = {
+                0, // Reused
+                0 // Total
+        };
+
+        // Writing to the file directly lets it go back and fill in the sizes of stored
+        // entries, instead of having to know them up front.
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(destFile)) {
+            tree.walk((bundleEntry, in) -> {
+                String rule = policy.ruleFor(bundleEntry.path);
+                int level = policy.levelOf(rule);
+                counts[1]++;
+
+                if (bundleEntry.isSymlink()) {
+                    // Zips keep the target as the content. There's no such thing as a hard link.
+                    byte[] target = bundleEntry.symlinkTarget.getBytes(StandardCharsets.UTF_8);
+                    ZipArchiveEntry entry = new ZipArchiveEntry(bundleEntry.path);
+                    entry.setSize(target.length);
+                    entry.setTime(bundleEntry.lastModified);
+                    entry.setUnixMode(UnixStat.LINK_FLAG | bundleEntry.mode);
+                    entry.setMethod(ZipEntry.STORED);
+
+                    out.putArchiveEntry(entry);
+                    out.write(target);
+                    out.closeArchiveEntry();
+                    return;
+                }
+
+                ZipArchiveEntry unchanged = previous == null ? null : findUnchanged(previous, bundleEntry, level);
+                if (unchanged != null) {
+                    // Copy the compressed bytes as-is, no inflating or deflating.
+                    LOGGER.trace("Reusing: %s", bundleEntry.path);
+                    ZipArchiveEntry entry = new ZipArchiveEntry(unchanged);
+                    entry.setTime(bundleEntry.lastModified);
+                    entry.setUnixMode(UnixStat.FILE_FLAG | bundleEntry.mode);
+
+                    try (InputStream raw = previous.getRawInputStream(unchanged)) {
+                        out.addRawArchiveEntry(entry, raw);
+                    }
+                    counts[0]++;
+
+                    // No CPU spent, but it still counts towards the rule's sizes.
+                    policy.record(rule, unchanged.getSize(), unchanged.getCompressedSize(), 0);
+                    return;
+                }
+
+                LOGGER.trace("Compressing: %s", bundleEntry.path);
+                long cpuStart = CompressionPolicy.cpuTime();
+
+                ZipArchiveEntry entry = new ZipArchiveEntry(bundleEntry.path);
+                entry.setSize(bundleEntry.size);
+                entry.setTime(bundleEntry.lastModified);
+                entry.setUnixMode(UnixStat.FILE_FLAG | bundleEntry.mode);
+                entry.addExtraField(levelField(level));
+                if (level == 0) {
+                    entry.setMethod(ZipEntry.STORED);
+                } else {
+                    entry.setMethod(ZipEntry.DEFLATED);
+                    out.setLevel(level);
+                }
+
+                out.putArchiveEntry(entry);
+                in.transferTo(out);
+                out.closeArchiveEntry();
+
+                policy.record(rule, bundleEntry.size, entry.getCompressedSize(), CompressionPolicy.cpuTime() - cpuStart);
+            });
             out.finish();
         }
+
+        if (previous != null) {
+            LOGGER.info("Reused %d of %d entries from the previous archive.", counts[0], counts[1]);
+        }
     }
 
-    private static <E extends ArchiveEntry> void compress(File inputDir, File file, ArchiveOutputStream<E> out) throws IOException, FileNotFoundException {
-        if (file.isDirectory()) {
-            for (File sub : file.listFiles()) {
-                compress(inputDir, sub, out);
+    /**
+     * @return the previous archive's entry, if it has the same content and was
+     *         compressed the way it would be now.
+     */
+    private static @Nullable ZipArchiveEntry findUnchanged(ZipFile previous, BundleEntry bundleEntry, int level) throws IOException {
+        ZipArchiveEntry entry = previous.getEntry(bundleEntry.path);
+        if (entry == null || entry.getSize() != bundleEntry.size) return null;
+        if (entry.getMethod() != (level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED)) return null;
+
+        // Entries from before we recorded the level (or from elsewhere) are never reused.
+        ZipExtraField recorded = entry.getExtraField(LEVEL_HEADER_ID);
+        if (recorded == null || !Arrays.equals(recorded.getCentralDirectoryData(), levelField(level).getCentralDirectoryData())) return null;
+
+        if (bundleEntry.source != null) {
+            // We can read the file without consuming the entry's stream, so compare the
+            // actual content. Checksumming is way cheaper than deflating.
+            CRC32 crc = new CRC32();
+            try (InputStream in = new FileInputStream(bundleEntry.source)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                }
             }
-            return;
+            return crc.getValue() == entry.getCrc() ? entry : null;
         }
 
-        String entryPath = file.getAbsolutePath().substring(inputDir.getAbsolutePath().length() + 1);
-        LOGGER.trace("Compressing: %s", entryPath);
+        // Zip times only have a 2 second resolution.
+        return Math.abs(entry.getTime() - bundleEntry.lastModified) < 2000 ? entry : null;
+    }
 
-        E entry = out.createArchiveEntry(file, entryPath);
-        out.putArchiveEntry(entry);
-        try (InputStream in = new FileInputStream(file)) {
-            in.transferTo(out);
+    /**
+     * Records the level an entry was compressed with, since the zip format only
+     * has a rough hint for it.
+     */
+    private static ZipExtraField levelField(int level) {
+        UnrecognizedExtraField field = new UnrecognizedExtraField();
+        field.setHeaderId(LEVEL_HEADER_ID);
+        field.setLocalFileDataData(new byte[] {
+                (byte) level
+        });
+        return field;
+    }
+
+    private static class LeveledGzipOutputStream extends GZIPOutputStream {
+
+        private LeveledGzipOutputStream(OutputStream out) throws IOException {
+            super(out, 64 * 1024);
+        }
+
+        /**
+         * Takes effect for the data written after this call.
+         */
+        private void setLevel(int level) {
+            this.def.setLevel(level);
+        }
+
+        private long bytesWritten() {
+            return this.def.getBytesWritten();
         }
-        out.closeArchiveEntry();
+
     }
 
 }
@@ -1,21 +1,26 @@
 package co.casterlabs.jcup.bundler.archive;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
 import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.jetbrains.annotations.Nullable;
 
 import co.casterlabs.jcup.bundler.JCup;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
@@ -23,54 +28,90 @@ import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 public class ArchiveExtractor {
     private static final FastLogger LOGGER = JCup.LOGGER.createChild("ArchiveExtractor");
 
-    @SuppressWarnings("deprecation")
     public static void extract(Archives.Format format, File archiveFile, File destDir) throws FileNotFoundException, IOException {
+        extract(format, archiveFile, destDir, UnaryOperator.identity());
+    }
+
+    /**
+     * @param mapping Maps the path in the archive to the path in destDir, applied
+     *                as each entry is read (see {@link PathMapping}). Return null
+     *                to leave the entry out.
+     */
+    public static void extract(Archives.Format format, File archiveFile, File destDir, UnaryOperator<String> mapping) throws FileNotFoundException, IOException {
+        extract(format, archiveFile, destDir, mapping, true);
+    }
+
+    /**
+     * @param parallel Whether to decompress tar based archives in parallel, see
+     *                 {@link Decompressors}.
+     */
+    public static void extract(Archives.Format format, File archiveFile, File destDir, UnaryOperator<String> mapping, boolean parallel) throws FileNotFoundException, IOException {
         destDir.mkdirs();
 
         LOGGER.info("Extracting %s to %s.", archiveFile, destDir);
+        Map<String, File> extracted = new HashMap<>(); // For hard links.
+        walk(format, archiveFile, (entry, in) -> {
+            File newFile = shouldExtract(destDir, entry, mapping);
+            if (newFile == null) return;
+
+            String symlinkTarget = symlinkTargetOf(entry, in);
+            if (symlinkTarget != null) {
+                String target = BundleTree.relinkSymlink(entry.getName(), symlinkTarget, mapping, mapping.apply(entry.getName()));
+                if (target == null) {
+                    LOGGER.warn("    Skipping %s, it links to %s which is outside of the destination directory.", entry.getName(), symlinkTarget);
+                    return;
+                }
+                BundleTree.createSymlink(newFile, target);
+                return;
+            }
+
+            String hardLinkTarget = hardLinkTargetOf(entry);
+            if (hardLinkTarget != null) {
+                File original = extracted.get(hardLinkTarget);
+                if (original == null) {
+                    LOGGER.warn("    Skipping %s, it links to %s which wasn't extracted.", entry.getName(), hardLinkTarget);
+                    return;
+                }
+                try {
+                    Files.createLink(newFile.toPath(), original.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(original.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return;
+            }
+
+            extract(newFile, in);
+            extracted.put(entry.getName(), newFile);
+        }, parallel);
+        LOGGER.info("Done.");
+    }
+
+    /**
+     * Visits every entry in the archive, in archive order. The stream passed to the
+     * visitor is only valid for the duration of the call.
+     */
+    public static void walk(Archives.Format format, File archiveFile, EntryVisitor visitor) throws FileNotFoundException, IOException {
+        walk(format, archiveFile, visitor, true);
+    }
+
+    /**
+     * @param parallel Whether to decompress tar based archives in parallel, see
+     *                 {@link Decompressors}.
+     */
+    @SuppressWarnings("deprecation")
+    public static void walk(Archives.Format format, File archiveFile, EntryVisitor visitor, boolean parallel) throws FileNotFoundException, IOException {
         switch (format) {
             // These are not seekable and thus use a stream implementation.
 
             case TAR_GZ:
-                try (
-                    FileInputStream fin = new FileInputStream(archiveFile);
-                    GzipCompressorInputStream gzin = new GzipCompressorInputStream(fin);
-                    TarArchiveInputStream ain = new TarArchiveInputStream(gzin)) {
-                    ArchiveEntry entry = null;
-                    while ((entry = ain.getNextEntry()) != null) {
-                        File newFile = shouldExtract(destDir, entry);
-                        if (newFile == null) continue;
-
-                        extract(newFile, ain);
-                    }
-                }
-                break;
-
             case TAR_XZ:
-                try (
-                    FileInputStream fin = new FileInputStream(archiveFile);
-                    XZCompressorInputStream xzin = new XZCompressorInputStream(fin);
-                    TarArchiveInputStream ain = new TarArchiveInputStream(xzin)) {
-                    ArchiveEntry entry = null;
-                    while ((entry = ain.getNextEntry()) != null) {
-                        File newFile = shouldExtract(destDir, entry);
-                        if (newFile == null) continue;
-
-                        extract(newFile, ain);
-                    }
-                }
-                break;
-
             case TAR:
                 try (
-                    FileInputStream fin = new FileInputStream(archiveFile);
-                    TarArchiveInputStream ain = new TarArchiveInputStream(fin)) {
+                    InputStream in = Decompressors.open(format, archiveFile, parallel);
+                    TarArchiveInputStream ain = new TarArchiveInputStream(in)) {
                     ArchiveEntry entry = null;
                     while ((entry = ain.getNextEntry()) != null) {
-                        File newFile = shouldExtract(destDir, entry);
-                        if (newFile == null) continue;
-
-                        extract(newFile, ain);
+                        visitor.visit(entry, ain);
                     }
                 }
                 break;
@@ -80,11 +121,8 @@ public class ArchiveExtractor {
             case _7ZIP:
                 try (SevenZFile archive = new SevenZFile(archiveFile)) {
                     for (SevenZArchiveEntry entry : archive.getEntries()) {
-                        File newFile = shouldExtract(destDir, entry);
-                        if (newFile == null) continue;
-
                         try (InputStream in = archive.getInputStream(entry)) {
-                            extract(newFile, in);
+                            visitor.visit(entry, in);
                         }
                     }
                 }
@@ -93,31 +131,77 @@ public class ArchiveExtractor {
             case ZIP:
                 try (ZipFile archive = new ZipFile(archiveFile)) {
                     for (ZipArchiveEntry entry : Collections.list(archive.getEntries())) {
-                        File newFile = shouldExtract(destDir, entry);
-                        if (newFile == null) continue;
-
                         try (InputStream in = archive.getInputStream(entry)) {
-                            extract(newFile, in);
+                            visitor.visit(entry, in);
                         }
                     }
                 }
                 break;
         }
+    }
 
-        LOGGER.info("Done.");
+    /**
+     * @return the unix mode of the entry, or -1 if the archive doesn't record one.
+     */
+    public static int modeOf(ArchiveEntry entry) {
+        if (entry instanceof TarArchiveEntry) {
+            return ((TarArchiveEntry) entry).getMode() & 07777;
+        } else if (entry instanceof ZipArchiveEntry) {
+            int mode = ((ZipArchiveEntry) entry).getUnixMode() & 07777;
+            return mode == 0 ? -1 : mode;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * @return what the entry links to, or null if it isn't a symlink. A zip keeps
+     *         the target as the entry's content, so this reads it.
+     */
+    public static @Nullable String symlinkTargetOf(ArchiveEntry entry, InputStream in) throws IOException {
+        if (entry instanceof TarArchiveEntry && ((TarArchiveEntry) entry).isSymbolicLink()) {
+            return ((TarArchiveEntry) entry).getLinkName();
+        } else if (entry instanceof ZipArchiveEntry && ((ZipArchiveEntry) entry).isUnixSymlink()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return the name of the earlier entry this one is a hard link to, or null if
+     *         it isn't one. Only tars have these.
+     */
+    public static @Nullable String hardLinkTargetOf(ArchiveEntry entry) {
+        if (entry instanceof TarArchiveEntry && ((TarArchiveEntry) entry).isLink()) {
+            return ((TarArchiveEntry) entry).getLinkName();
+        } else {
+            return null;
+        }
+    }
+
+    public static long lastModifiedOf(ArchiveEntry entry) {
+        try {
+            return entry.getLastModifiedDate().getTime();
+        } catch (UnsupportedOperationException e) {
+            return System.currentTimeMillis(); // 7z entries don't always have one.
+        }
     }
 
     /**
      * @return null, if you should NOT extract.
      */
-    private static File shouldExtract(File dest, ArchiveEntry zipEntry) throws FileNotFoundException, IOException {
+    private static File shouldExtract(File dest, ArchiveEntry zipEntry, UnaryOperator<String> mapping) throws FileNotFoundException, IOException {
         // We ignore directories.
         if (zipEntry.isDirectory()) {
             return null;
         }
 
-        String filename = zipEntry.getName();
-        LOGGER.trace("Found file in archive: %s", filename);
+        String filename = mapping.apply(zipEntry.getName());
+        LOGGER.trace("Found file in archive: %s -> %s", zipEntry.getName(), filename);
+        if (filename == null) {
+            return null;
+        }
 
         File newFile = newFileNoSlip(dest, filename);
         newFile.getParentFile().mkdirs(); // Create the parent directory.
@@ -136,7 +220,7 @@ public class ArchiveExtractor {
         LOGGER.trace("    Wrote file to: %s", newFile);
     }
 
-    private static File newFileNoSlip(File destDir, String filename) throws IOException {
+    static File newFileNoSlip(File destDir, String filename) throws IOException {
         File destFile = new File(destDir, filename);
 
         String destDirPath = destDir.getCanonicalPath();
@@ -151,4 +235,11 @@ public class ArchiveExtractor {
         return destFile;
     }
 
+    @FunctionalInterface
+    public static interface EntryVisitor {
+
+        public void visit(ArchiveEntry entry, InputStream in) throws IOException;
+
+    }
+
 }
@@ -1,6 +1,12 @@
 package co.casterlabs.jcup.bundler.archive;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -22,6 +28,47 @@ public class Archives {
         return null;
     }
 
+    /**
+     * Applies the unix mode to the file as best as the host file system allows.
+     */
+    public static void applyMode(File file, int mode) throws IOException {
+        if (Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class) != null) {
+            Files.setPosixFilePermissions(file.toPath(), toPosixPermissions(mode));
+        } else if ((mode & 0111) != 0) {
+            file.setExecutable(true);
+        }
+    }
+
+    /**
+     * @return the unix mode of the file, falling back to
+     *         {@link BundleEntry#MODE_FILE} if the host file system doesn't
+     *         support them.
+     */
+    public static int modeOf(File file) throws IOException {
+        if (Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class) == null) {
+            return BundleEntry.MODE_FILE;
+        }
+
+        PosixFilePermission[] values = PosixFilePermission.values();
+        int mode = 0;
+        for (PosixFilePermission permission : Files.getPosixFilePermissions(file.toPath())) {
+            mode |= 1 << (values.length - 1 - permission.ordinal());
+        }
+        return mode;
+    }
+
+    public static Set<PosixFilePermission> toPosixPermissions(int mode) {
+        // PosixFilePermission is declared in the order of the bits, highest first.
+        PosixFilePermission[] values = PosixFilePermission.values();
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (int i = 0; i < values.length; i++) {
+            if ((mode & (1 << (values.length - 1 - i))) != 0) {
+                permissions.add(values[i]);
+            }
+        }
+        return permissions;
+    }
+
     @AllArgsConstructor
     public static enum Format {
         // @formatter:off
@@ -0,0 +1,66 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.io.File;
+
+import org.jetbrains.annotations.Nullable;
+
+import lombok.AllArgsConstructor;
+import lombok.ToString;
+
+/**
+ * A single file in a {@link BundleTree}.
+ */
+@ToString
+@AllArgsConstructor
+public class BundleEntry {
+    public static final int MODE_FILE = 0644;
+    public static final int MODE_EXECUTABLE = 0755;
+    public static final int MODE_SYMLINK = 0777;
+
+    /**
+     * Always relative and always separated with forward slashes.
+     */
+    public final String path;
+
+    public final long size;
+
+    /**
+     * The unix permission bits of the file, e.g {@link #MODE_FILE}.
+     */
+    public final int mode;
+
+    public final long lastModified;
+
+    /**
+     * The file on disk the entry comes from, if any. Lets it be copied directly
+     * instead of being streamed.
+     */
+    public final @Nullable File source;
+
+    /**
+     * If set, the entry is a symbolic link to this (relative) path instead of a
+     * file, and it has no content.
+     */
+    public final @Nullable String symlinkTarget;
+
+    public BundleEntry(String path, long size, int mode, long lastModified) {
+        this(path, size, mode, lastModified, null, null);
+    }
+
+    public BundleEntry(String path, long size, int mode, long lastModified, @Nullable File source) {
+        this(path, size, mode, lastModified, source, null);
+    }
+
+    public static BundleEntry symlink(String path, String target, long lastModified) {
+        return new BundleEntry(path, 0, MODE_SYMLINK, lastModified, null, target);
+    }
+
+    public boolean isExecutable() {
+        return this.symlinkTarget == null && (this.mode & 0111) != 0;
+    }
+
+    public boolean isSymlink() {
+        return this.symlinkTarget != null;
+    }
+
+}
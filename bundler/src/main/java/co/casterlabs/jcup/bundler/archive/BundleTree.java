@@ -0,0 +1,560 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.JCup;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * A virtual description of a bundle's layout. Nothing is read until the tree is
+ * walked, which allows the bundle to either be streamed straight into an
+ * archive ({@link ArchiveCreator#create(Archives.Format, BundleTree, File)}) or
+ * be written out to a folder ({@link #materialize(File)}).
+ */
+public class BundleTree {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("BundleTree");
+
+    private static final ExecutorService COPY_POOL = Executors.newFixedThreadPool(
+        Math.max(4, Runtime.getRuntime().availableProcessors()),
+        (r) -> {
+            Thread t = new Thread(r, "BundleTree copier");
+            t.setDaemon(true);
+            return t;
+        }
+    );
+
+    private final List<Node> nodes = new LinkedList<>();
+    private final Set<String> executables = new HashSet<>();
+    private final List<Predicate<BundleEntry>> filters = new LinkedList<>();
+
+    /**
+     * Streams the entries of an archive into the tree.
+     *
+     * @param mapping Maps the path in the archive to the path in the bundle (see
+     *                {@link PathMapping}). Return null to leave the entry out.
+     */
+    public BundleTree addArchive(@NonNull File archiveFile, @NonNull UnaryOperator<String> mapping) {
+        Archives.Format format = Archives.probeFormat(archiveFile);
+        this.nodes.add((visitor) -> {
+            // Hard links point at an earlier entry whose content is gone by the time we
+            // see them, so they get collected and filled in by a second pass.
+            Map<String, List<ArchiveEntry>> hardLinks = new HashMap<>();
+
+            ArchiveExtractor.walk(format, archiveFile, (entry, in) -> {
+                if (entry.isDirectory()) return; // We ignore directories.
+
+                String path = mapping.apply(entry.getName());
+                if (path == null) return;
+
+                String symlinkTarget = ArchiveExtractor.symlinkTargetOf(entry, in);
+                if (symlinkTarget != null) {
+                    String target = relinkSymlink(entry.getName(), symlinkTarget, mapping, path);
+                    if (target == null) {
+                        LOGGER.warn("Leaving out %s, it links to %s which isn't in the bundle.", entry.getName(), symlinkTarget);
+                        return;
+                    }
+                    visitor.visit(BundleEntry.symlink(path, target, ArchiveExtractor.lastModifiedOf(entry)), InputStream.nullInputStream());
+                    return;
+                }
+
+                String hardLinkTarget = ArchiveExtractor.hardLinkTargetOf(entry);
+                if (hardLinkTarget != null) {
+                    hardLinks.computeIfAbsent(hardLinkTarget, (k) -> new LinkedList<>()).add(entry);
+                    return;
+                }
+
+                visitor.visit(
+                    new BundleEntry(path, entry.getSize(), modeOf(entry), ArchiveExtractor.lastModifiedOf(entry)),
+                    in
+                );
+            });
+
+            if (hardLinks.isEmpty()) return;
+
+            LOGGER.debug("Reading %s again for the targets of %d hard link(s).", archiveFile, hardLinks.size());
+            ArchiveExtractor.walk(format, archiveFile, (entry, in) -> {
+                List<ArchiveEntry> links = hardLinks.remove(entry.getName());
+                if (links == null) return;
+
+                byte[] content = in.readAllBytes();
+                for (ArchiveEntry link : links) {
+                    visitor.visit(
+                        new BundleEntry(mapping.apply(link.getName()), content.length, modeOf(link), ArchiveExtractor.lastModifiedOf(link)),
+                        new ByteArrayInputStream(content)
+                    );
+                }
+            });
+
+            if (!hardLinks.isEmpty()) {
+                LOGGER.warn("Leaving out the hard link(s) to %s, they aren't in %s.", hardLinks.keySet(), archiveFile);
+            }
+        });
+        return this;
+    }
+
+    private static int modeOf(ArchiveEntry entry) {
+        int mode = ArchiveExtractor.modeOf(entry);
+        return mode == -1 ? BundleEntry.MODE_FILE : mode;
+    }
+
+    public BundleTree addFile(@NonNull String path, @NonNull File file) {
+        this.nodes.add((visitor) -> {
+            try (InputStream in = new LazyFileInputStream(file)) {
+                visitor.visit(
+                    new BundleEntry(path, file.length(), Archives.modeOf(file), file.lastModified(), file),
+                    in
+                );
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds every file in the folder (recursively), under the given prefix.
+     */
+    public BundleTree addFolder(@NonNull String prefix, @NonNull File folder) {
+        return this.addFolder(folder, (path) -> prefix + path);
+    }
+
+    /**
+     * Adds every file in the folder (recursively).
+     *
+     * @param mapping Maps the path in the folder to the path in the bundle.
+     *                Return null to leave the file out.
+     */
+    public BundleTree addFolder(@NonNull File folder, @NonNull UnaryOperator<String> mapping) {
+        this.nodes.add((visitor) -> {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(folder.toPath())) {
+                files = stream
+                    .filter((file) -> Files.isRegularFile(file) || Files.isSymbolicLink(file))
+                    .sorted()
+                    .collect(Collectors.toList());
+            }
+
+            for (Path file : files) {
+                String relative = folder.toPath().relativize(file).toString().replace(File.separatorChar, '/');
+                String path = mapping.apply(relative);
+                if (path == null) continue;
+
+                if (Files.isSymbolicLink(file)) {
+                    String target = relinkSymlink(relative, Files.readSymbolicLink(file).toString().replace(File.separatorChar, '/'), mapping, path);
+                    if (target != null) {
+                        visitor.visit(
+                            BundleEntry.symlink(path, target, Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toMillis()),
+                            InputStream.nullInputStream()
+                        );
+                        continue;
+                    }
+
+                    // It points outside of the folder, so we take what it points to instead.
+                    if (Files.isDirectory(file)) {
+                        visitLinkedFolder(visitor, file, relative, mapping);
+                        continue;
+                    } else if (!Files.isRegularFile(file)) {
+                        LOGGER.warn("Leaving out %s, it's a broken symlink.", file);
+                        continue;
+                    }
+                }
+
+                visitFile(visitor, file, path);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds the files of a folder that a symlink points to, as if they were in the
+     * symlink's place.
+     */
+    private static void visitLinkedFolder(Visitor visitor, Path link, String relative, UnaryOperator<String> mapping) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(link, FileVisitOption.FOLLOW_LINKS)) {
+            files = stream
+                .filter(Files::isRegularFile)
+                .sorted()
+                .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause(); // e.g a symlink loop.
+        }
+
+        for (Path file : files) {
+            String path = mapping.apply(relative + '/' + link.relativize(file).toString().replace(File.separatorChar, '/'));
+            if (path == null) continue;
+
+            visitFile(visitor, file, path);
+        }
+    }
+
+    private static void visitFile(Visitor visitor, Path file, String path) throws IOException {
+        try (InputStream in = new LazyFileInputStream(file.toFile())) {
+            visitor.visit(
+                new BundleEntry(path, Files.size(file), Archives.modeOf(file.toFile()), Files.getLastModifiedTime(file).toMillis(), file.toFile()),
+                in
+            );
+        }
+    }
+
+    public BundleTree addResource(@NonNull String path, @NonNull String resource, boolean executable) {
+        this.nodes.add((visitor) -> {
+            byte[] content;
+            try (InputStream in = BundleTree.class.getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new IOException("Could not find resource: " + resource);
+                }
+                content = in.readAllBytes();
+            }
+
+            visitor.visit(
+                new BundleEntry(path, content.length, executable ? BundleEntry.MODE_EXECUTABLE : BundleEntry.MODE_FILE, System.currentTimeMillis()),
+                new ByteArrayInputStream(content)
+            );
+        });
+        return this;
+    }
+
+    public BundleTree addString(@NonNull String path, @NonNull String content) {
+        return this.addBytes(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public BundleTree addBytes(@NonNull String path, @NonNull byte[] content) {
+        this.nodes.add((visitor) -> {
+            visitor.visit(
+                new BundleEntry(path, content.length, BundleEntry.MODE_FILE, System.currentTimeMillis()),
+                new ByteArrayInputStream(content)
+            );
+        });
+        return this;
+    }
+
+    /**
+     * Forces the file at the given path to be executable, regardless of where it
+     * came from.
+     */
+    public BundleTree markExecutable(@NonNull String path) {
+        this.executables.add(path);
+        return this;
+    }
+
+    /**
+     * Adds a filter that every entry has to pass to end up in the bundle. Entries
+     * that are filtered out are never read.
+     */
+    public BundleTree addFilter(@NonNull Predicate<BundleEntry> filter) {
+        this.filters.add(filter);
+        return this;
+    }
+
+    /**
+     * Visits every file in the bundle, in the order they were added.
+     */
+    public void walk(@NonNull Visitor visitor) throws IOException {
+        for (Node node : this.nodes) {
+            node.walk((entry, in) -> {
+                if (!entry.isExecutable() && !entry.isSymlink() && this.executables.contains(entry.path)) {
+                    entry = new BundleEntry(entry.path, entry.size, entry.mode | 0111, entry.lastModified, entry.source, entry.symlinkTarget);
+                }
+                for (Predicate<BundleEntry> filter : this.filters) {
+                    if (!filter.test(entry)) return;
+                }
+                visitor.visit(entry, in);
+            });
+        }
+    }
+
+    /**
+     * Writes the bundle out to the given folder.
+     *
+     * @return the paths of the files that are executable, for use on file systems
+     *         that can't record it.
+     */
+    public Set<String> materialize(@NonNull File destDir) throws IOException {
+        return this.materialize(destDir, null);
+    }
+
+    /**
+     * Writes the bundle out to the given folder. Files that come from disk are
+     * copied in parallel.
+     *
+     * @param previous A previous materialization of (roughly) the same bundle.
+     *                 Files in it with the same size and modification time are
+     *                 hard-linked instead of being written again. It must not be
+     *                 modified afterwards, since the links share its files.
+     *
+     * @return the paths of the files that are executable, for use on file systems
+     *         that can't record it.
+     */
+    public Set<String> materialize(@NonNull File destDir, @Nullable File previous) throws IOException {
+        Set<String> executables = new HashSet<>();
+        destDir.mkdirs();
+
+        LOGGER.debug("Materializing bundle to %s.", destDir);
+        List<Future<?>> copies = new LinkedList<>();
+        List<BundleEntry> symlinks = new LinkedList<>();
+        int[] linked = {
+                0
+        };
+        try {
+            this.walk((entry, in) -> {
+                File file = ArchiveExtractor.newFileNoSlip(destDir, entry.path);
+                file.getParentFile().mkdirs();
+                if (entry.isExecutable()) {
+                    executables.add(entry.path);
+                }
+
+                if (entry.isSymlink()) {
+                    symlinks.add(entry); // Once everything else is in place, see below.
+                    return;
+                }
+
+                if (previous != null) {
+                    File previousFile = new File(previous, entry.path);
+                    if (previousFile.isFile() && previousFile.length() == entry.size && previousFile.lastModified() == entry.lastModified) {
+                        try {
+                            LOGGER.trace("Linking: %s", entry.path);
+                            Files.createLink(file.toPath(), previousFile.toPath());
+                            Archives.applyMode(file, entry.mode);
+                            linked[0]++;
+                            return;
+                        } catch (IOException | UnsupportedOperationException e) {
+                            LOGGER.trace("Unable to link %s, copying it instead: %s", entry.path, e);
+                        }
+                    }
+                }
+
+                if (entry.source != null) {
+                    copies.add(COPY_POOL.submit(() -> {
+                        LOGGER.trace("Copying: %s", entry.path);
+                        Files.copy(entry.source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        Archives.applyMode(file, entry.mode);
+                        file.setLastModified(entry.lastModified);
+                        return null;
+                    }));
+                    return;
+                }
+
+                LOGGER.trace("Writing: %s", entry.path);
+                try (OutputStream out = new FileOutputStream(file)) {
+                    in.transferTo(out);
+                }
+
+                Archives.applyMode(file, entry.mode);
+                file.setLastModified(entry.lastModified);
+            });
+        } finally {
+            // Always wait, so nothing is still writing if we're bailing out.
+            IOException failure = null;
+            for (Future<?> copy : copies) {
+                try {
+                    copy.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (failure == null) failure = new IOException(e);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        for (BundleEntry symlink : symlinks) {
+            File file = ArchiveExtractor.newFileNoSlip(destDir, symlink.path);
+            createSymlink(file, symlink.symlinkTarget);
+        }
+
+        if (previous != null) {
+            LOGGER.debug("Linked %d unchanged files from %s.", linked[0], previous);
+        }
+        return executables;
+    }
+
+    /**
+     * Drops the first {@code count} directories of a path, e.g
+     * {@code jdk-17-jre/bin/java} becomes {@code bin/java}.
+     *
+     * @return null, if the path has no components left.
+     */
+    public static @Nullable String stripComponents(@NonNull String path, int count) {
+        for (int i = 0; i < count; i++) {
+            int slash = path.indexOf('/');
+            if (slash == -1) return null;
+            path = path.substring(slash + 1);
+        }
+        return path.isEmpty() ? null : path;
+    }
+
+    /**
+     * Creates the symlink, or copies the file it points to if the host doesn't
+     * allow symlinks (e.g Windows without developer mode).
+     */
+    static void createSymlink(File file, String target) throws IOException {
+        try {
+            LOGGER.trace("Linking: %s -> %s", file, target);
+            Files.createSymbolicLink(file.toPath(), Path.of(target.replace('/', File.separatorChar)));
+        } catch (IOException | UnsupportedOperationException e) {
+            File resolved = new File(file.getParentFile(), target);
+            if (!resolved.isFile()) {
+                LOGGER.warn("Unable to create the symlink %s -> %s, leaving it out.\n%s", file, target, e);
+                return;
+            }
+            LOGGER.trace("Unable to create the symlink %s, copying it instead: %s", file, e);
+            Files.copy(resolved.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Re-points a relative symlink after both it and what it points to went
+     * through the mapping, e.g so a link into {@code Contents/Home/} still works
+     * after that folder was moved.
+     *
+     * @return null, if the target is absolute, outside of the source or left out.
+     */
+    static @Nullable String relinkSymlink(@NonNull String path, @NonNull String target, @NonNull UnaryOperator<String> mapping, @NonNull String mappedPath) {
+        if (target.startsWith("/")) return null;
+
+        String resolved = normalize(parentOf(path) + '/' + target);
+        if (resolved == null) return null;
+
+        String mappedTarget = mapping.apply(resolved);
+        if (mappedTarget == null) return null;
+        mappedTarget = normalize(mappedTarget);
+        if (mappedTarget == null) return null;
+
+        // Back to relative, from where the link now is.
+        String linkFolder = normalize(parentOf(mappedPath));
+        String[] from = linkFolder == null ? new String[0] : linkFolder.split("/");
+        String[] to = mappedTarget.split("/");
+        int common = 0;
+        while (common < from.length && common < to.length - 1 && from[common].equals(to[common])) {
+            common++;
+        }
+
+        StringBuilder relative = new StringBuilder();
+        for (int i = common; i < from.length; i++) {
+            relative.append("../");
+        }
+        relative.append(String.join("/", Arrays.copyOfRange(to, common, to.length)));
+        return relative.toString();
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash == -1 ? "" : path.substring(0, slash);
+    }
+
+    /**
+     * Resolves the {@code .} and {@code ..} in the path.
+     *
+     * @return null, if it climbs out of the root.
+     */
+    private static @Nullable String normalize(String path) {
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                if (parts.isEmpty()) return null;
+                parts.removeLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return parts.isEmpty() ? null : String.join("/", parts);
+    }
+
+    @FunctionalInterface
+    public static interface Visitor {
+
+        /**
+         * @param in only valid for the duration of the call.
+         */
+        public void visit(BundleEntry entry, InputStream in) throws IOException;
+
+    }
+
+    /**
+     * Only opens the file once it's actually read, so entries that get filtered
+     * out or copied directly never open it at all.
+     */
+    private static class LazyFileInputStream extends InputStream {
+        private final File file;
+        private InputStream in;
+
+        private LazyFileInputStream(File file) {
+            this.file = file;
+        }
+
+        private InputStream in() throws IOException {
+            if (this.in == null) {
+                this.in = new FileInputStream(this.file);
+            }
+            return this.in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.in().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.in().read(b, off, len);
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            return this.in().transferTo(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.in != null) {
+                this.in.close();
+            }
+        }
+
+    }
+
+    @FunctionalInterface
+    private static interface Node {
+
+        public void walk(Visitor visitor) throws IOException;
+
+    }
+
+}
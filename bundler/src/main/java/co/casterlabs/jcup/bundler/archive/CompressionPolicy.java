@@ -0,0 +1,141 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.config.Config.CompressionConfig;
+import co.casterlabs.jcup.bundler.config.Config.CompressionRule;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Picks the deflate level for each file going into an archive, so that content
+ * that's already compressed (jars, images, archives) isn't compressed again.
+ * Keeps track of how much CPU time each rule cost and how many bytes it saved.
+ */
+public class CompressionPolicy {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The same level for everything, like before there were policies.
+     */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(new CompressionConfig(6, new CompressionRule[0]));
+
+    private static final String DEFAULT_RULE = "(default)";
+
+    private final int defaultLevel;
+    private final Map<String, Rule> rules = new LinkedHashMap<>();
+    private final Map<String, long[]> stats = new LinkedHashMap<>(); // name -> {files, in, out, cpu nanos}
+
+    /**
+     * @throws IllegalArgumentException if a level is out of range.
+     */
+    public CompressionPolicy(@NonNull CompressionConfig config) {
+        this.defaultLevel = checkLevel(config.level);
+
+        if (config.rules != null) {
+            for (CompressionRule rule : config.rules) {
+                List<Pattern> patterns = new ArrayList<>();
+                for (String glob : rule.match) {
+                    patterns.add(Utils.compileGlob(glob));
+                }
+                this.rules.put(String.join(", ", rule.match), new Rule(patterns, checkLevel(rule.level)));
+            }
+        }
+    }
+
+    private static int checkLevel(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 (store) and 9: " + level);
+        }
+        return level;
+    }
+
+    /**
+     * @return the name of the first rule matching the path, which is then passed
+     *         to {@link #levelOf(String)} and {@link #record(String, long, long, long)}.
+     */
+    public String ruleFor(@NonNull String path) {
+        for (Map.Entry<String, Rule> rule : this.rules.entrySet()) {
+            for (Pattern pattern : rule.getValue().patterns) {
+                if (pattern.matcher(path).matches()) {
+                    return rule.getKey();
+                }
+            }
+        }
+        return DEFAULT_RULE;
+    }
+
+    /**
+     * @return 0 to store the file, otherwise the deflate level.
+     */
+    public int levelOf(@NonNull String rule) {
+        Rule r = this.rules.get(rule);
+        return r == null ? this.defaultLevel : r.level;
+    }
+
+    /**
+     * @return the current thread's CPU time, for passing the difference to
+     *         {@link #record(String, long, long, long)}.
+     */
+    public static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    public void record(@NonNull String rule, long uncompressed, long compressed, long cpuNanos) {
+        synchronized (this.stats) {
+            long[] stat = this.stats.computeIfAbsent(rule, (k) -> new long[4]);
+            stat[0]++;
+            stat[1] += uncompressed;
+            stat[2] += compressed;
+            stat[3] += cpuNanos;
+        }
+    }
+
+    /**
+     * Logs what each rule cost and saved so far, and resets the counters.
+     */
+    public void report(@NonNull FastLogger logger) {
+        synchronized (this.stats) {
+            if (this.stats.isEmpty()) return;
+
+            StringBuilder report = new StringBuilder();
+            for (Map.Entry<String, long[]> entry : this.stats.entrySet()) {
+                long[] stat = entry.getValue();
+                String name = entry.getKey();
+                if (name.length() > 32) {
+                    name = name.substring(0, 29) + "...";
+                }
+
+                report.append(
+                    String.format(
+                        "\n    %-32s level %d %6d files %10s -> %10s (saved %10s) in %6dms CPU",
+                        name, this.levelOf(entry.getKey()), stat[0],
+                        Utils.formatBytes(stat[1]), Utils.formatBytes(stat[2]), Utils.formatBytes(stat[1] - stat[2]),
+                        stat[3] / 1_000_000
+                    )
+                );
+            }
+
+            logger.info("Compression:%s", report);
+            this.stats.clear();
+        }
+    }
+
+    private static class Rule {
+        private final List<Pattern> patterns;
+        private final int level;
+
+        private Rule(List<Pattern> patterns, int level) {
+            this.patterns = patterns;
+            this.level = level;
+        }
+    }
+
+}
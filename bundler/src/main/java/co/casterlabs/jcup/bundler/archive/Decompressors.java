@@ -0,0 +1,348 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import co.casterlabs.jcup.bundler.JCup;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Opens the compressed stream of a tar based archive.
+ *
+ * In parallel mode, multi-block xz files (e.g from {@code xz -T0}) have their
+ * blocks decoded concurrently and everything else is decoded on a background
+ * thread, so the decoding overlaps with whatever the reader does with the
+ * output (parsing the tar and writing files). The output is always in order.
+ */
+public class Decompressors {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("Decompressors");
+
+    private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    // Decoded blocks are held in memory until they're read, so we keep it bounded.
+    private static final long MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    private static final long MAX_BUFFERED = 256 * 1024 * 1024;
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool((r) -> {
+        Thread t = new Thread(r, "Decompressor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @return the decompressed stream, the tar itself.
+     */
+    public static InputStream open(@NonNull Archives.Format format, @NonNull File archiveFile, boolean parallel) throws IOException {
+        return open(format, archiveFile, parallel, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param  threads how many xz blocks to decode at once, multi-block xz files
+     *                 are only decoded in parallel with at least 2.
+     *
+     * @return         the decompressed stream, the tar itself.
+     */
+    public static InputStream open(@NonNull Archives.Format format, @NonNull File archiveFile, boolean parallel, int threads) throws IOException {
+        switch (format) {
+            case TAR_GZ: {
+                InputStream in = new GzipCompressorInputStream(new BufferedInputStream(new FileInputStream(archiveFile), CHUNK_SIZE));
+                return parallel ? new PipedDecoderInputStream(in) : guard(in);
+            }
+
+            case TAR_XZ: {
+                if (parallel) {
+                    InputStream in = ParallelXZInputStream.openIfWorthwhile(archiveFile, threads);
+                    if (in != null) return in;
+                }
+
+                InputStream in = new XZCompressorInputStream(new BufferedInputStream(new FileInputStream(archiveFile), CHUNK_SIZE));
+                return parallel ? new PipedDecoderInputStream(in) : guard(in);
+            }
+
+            case TAR:
+                return new BufferedInputStream(new FileInputStream(archiveFile), CHUNK_SIZE);
+
+            default:
+                throw new IllegalArgumentException("Not a stream format: " + format);
+        }
+    }
+
+    /**
+     * Makes the decoder only ever write into a buffer of its own. Readers like
+     * tar's skip data using a buffer that's shared between threads, and the
+     * decoders checksum what they wrote into the caller's buffer, so another
+     * thread skipping at the same time fails the checksum of a perfectly fine
+     * archive.
+     */
+    public static InputStream guard(@NonNull InputStream decoder) {
+        return new GuardedInputStream(decoder);
+    }
+
+    private static class GuardedInputStream extends FilterInputStream {
+        private final byte[] buffer = new byte[64 * 1024];
+
+        private GuardedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.in.read(this.buffer, 0, Math.min(len, this.buffer.length));
+            if (read > 0) {
+                System.arraycopy(this.buffer, 0, b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                int read = this.read(this.buffer, 0, (int) Math.min(n - skipped, this.buffer.length));
+                if (read == -1) break;
+                skipped += read;
+            }
+            return skipped;
+        }
+    }
+
+    /**
+     * Decodes on a background thread, a few chunks ahead of the reader.
+     */
+    private static class PipedDecoderInputStream extends InputStream {
+        private static final byte[] EOF = new byte[0];
+
+        private final InputStream source;
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(8);
+        private final Future<?> decoder;
+        private volatile IOException failure;
+
+        private byte[] chunk = null;
+        private int pos = 0;
+
+        private PipedDecoderInputStream(InputStream source) {
+            this.source = source;
+            this.decoder = POOL.submit(() -> {
+                try {
+                    while (true) {
+                        byte[] buffer = this.source.readNBytes(CHUNK_SIZE);
+                        if (buffer.length == 0) break;
+                        this.chunks.put(buffer);
+                    }
+                } catch (IOException e) {
+                    this.failure = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Closed.
+                } catch (Throwable t) {
+                    // e.g an unchecked exception from the decoder or an OOM.
+                    this.failure = new IOException("Unable to decode.", t);
+                } finally {
+                    // Always, otherwise the reader waits forever. Doesn't block once closed.
+                    try {
+                        this.chunks.put(EOF);
+                    } catch (InterruptedException ignored) {}
+                }
+            });
+        }
+
+        /**
+         * @return false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            while (this.chunk == null || this.pos == this.chunk.length) {
+                if (this.chunk == EOF) return false;
+
+                try {
+                    this.chunk = this.chunks.take();
+                    this.pos = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+
+                if (this.chunk == EOF && this.failure != null) {
+                    throw this.failure;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.fill()) return -1;
+            return this.chunk[this.pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!this.fill()) return -1;
+
+            int read = Math.min(len, this.chunk.length - this.pos);
+            System.arraycopy(this.chunk, this.pos, b, off, read);
+            this.pos += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.decoder.cancel(true);
+            this.source.close();
+        }
+
+    }
+
+    /**
+     * Decodes the blocks of an xz file concurrently, using the index at the end of
+     * the file to find them. Each worker has its own decoder, since seeking one is
+     * cheap but sharing one isn't possible.
+     */
+    private static class ParallelXZInputStream extends InputStream {
+        private final File file;
+        private final int blockCount;
+        private final Queue<SeekableXZInputStream> decoders = new ConcurrentLinkedQueue<>();
+        private final Queue<Future<byte[]>> pending = new LinkedList<>();
+        private final int window;
+
+        private int nextBlock = 0;
+        private byte[] block = null;
+        private int pos = 0;
+        private boolean closed = false;
+
+        private ParallelXZInputStream(File file, SeekableXZInputStream first, int window) {
+            this.file = file;
+            this.blockCount = first.getBlockCount();
+            this.window = window;
+            this.decoders.add(first);
+
+            for (int i = 0; i < this.window; i++) {
+                this.submitNext();
+            }
+        }
+
+        /**
+         * @return null, if the file is a single block (most are) or the blocks are
+         *         too big to hold in memory.
+         */
+        private static ParallelXZInputStream openIfWorthwhile(File file, int threads) throws IOException {
+            SeekableXZInputStream probe = new SeekableXZInputStream(new SeekableFileInputStream(file));
+
+            long largest = 0;
+            for (int i = 0; i < probe.getBlockCount(); i++) {
+                largest = Math.max(largest, probe.getBlockSize(i));
+            }
+
+            if (threads < 2 || probe.getBlockCount() < 2 || largest > MAX_BLOCK_SIZE) {
+                LOGGER.debug("Decoding %s sequentially (%d block(s), largest is %d bytes).", file, probe.getBlockCount(), largest);
+                probe.close();
+                return null;
+            }
+
+            int window = (int) Math.max(2, Math.min(threads + 1, MAX_BUFFERED / Math.max(1, largest)));
+            LOGGER.debug("Decoding %s's %d blocks on up to %d threads.", file, probe.getBlockCount(), window);
+            return new ParallelXZInputStream(file, probe, window);
+        }
+
+        private void submitNext() {
+            if (this.nextBlock == this.blockCount) return;
+
+            int index = this.nextBlock++;
+            this.pending.add(POOL.submit(() -> {
+                SeekableXZInputStream decoder = this.decoders.poll();
+                if (decoder == null) {
+                    decoder = new SeekableXZInputStream(new SeekableFileInputStream(this.file));
+                }
+
+                try {
+                    decoder.seekToBlock(index);
+                    byte[] content = new byte[(int) decoder.getBlockSize(index)];
+                    int read = decoder.readNBytes(content, 0, content.length);
+                    return read == content.length ? content : Arrays.copyOf(content, read);
+                } finally {
+                    this.decoders.add(decoder);
+                }
+            }));
+        }
+
+        /**
+         * @return false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            while (this.block == null || this.pos == this.block.length) {
+                Future<byte[]> next = this.pending.poll();
+                if (next == null) return false;
+
+                try {
+                    this.block = next.get();
+                    this.pos = 0;
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                this.submitNext();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.fill()) return -1;
+            return this.block[this.pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!this.fill()) return -1;
+
+            int read = Math.min(len, this.block.length - this.pos);
+            System.arraycopy(this.block, this.pos, b, off, read);
+            this.pos += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) return;
+            this.closed = true;
+
+            // Let the in-flight blocks finish so their decoders get returned.
+            for (Future<byte[]> future : this.pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException ignored) {}
+            }
+            this.pending.clear();
+
+            SeekableXZInputStream decoder;
+            while ((decoder = this.decoders.poll()) != null) {
+                decoder.close();
+            }
+        }
+
+    }
+
+}
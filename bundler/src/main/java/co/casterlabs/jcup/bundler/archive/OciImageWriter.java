@@ -0,0 +1,487 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.annotating.JsonClass;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Writes an OCI image (https://github.com/opencontainers/image-spec) as an
+ * image layout tarball, the kind that {@code skopeo copy oci-archive:...} and
+ * {@code podman load} take. No daemon or registry needed.
+ *
+ * Each layer is reproducible (sorted, fixed times and owners), so a layer with
+ * the same files always gets the same digest and registries only store it
+ * once. The compressed layers are cached by their content, so an unchanged
+ * layer (e.g the runtime) isn't compressed again on the next build.
+ */
+public class OciImageWriter {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("OciImageWriter");
+
+    public static final String MEDIA_TYPE_INDEX = "application/vnd.oci.image.index.v1+json";
+    public static final String MEDIA_TYPE_MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+    public static final String MEDIA_TYPE_CONFIG = "application/vnd.oci.image.config.v1+json";
+    public static final String MEDIA_TYPE_LAYER = "application/vnd.oci.image.layer.v1.tar+gzip";
+
+    // What a base image pulled from a Docker registry may still use.
+    private static final Set<String> INDEX_MEDIA_TYPES = Set.of(MEDIA_TYPE_INDEX, "application/vnd.docker.distribution.manifest.list.v2+json");
+    private static final String DOCKER_MEDIA_TYPE_LAYER = "application/vnd.docker.image.rootfs.diff.tar.gzip";
+
+    /**
+     * A second past the epoch, some tools treat 0 as unset.
+     */
+    private static final Date FIXED_TIME = new Date(1000);
+
+    private static final long CACHE_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private final File cacheFolder;
+    private final int compressionLevel;
+    private final String architecture;
+
+    private final List<Descriptor> layers = new ArrayList<>();
+    private final List<String> diffIds = new ArrayList<>();
+    private final Map<String, File> blobs = new TreeMap<>(); // digest -> file
+
+    private ContainerConfig config = new ContainerConfig();
+
+    /**
+     * @param cacheFolder  Where the compressed layers are kept between builds.
+     * @param architecture The OCI name, e.g {@code amd64}.
+     */
+    public OciImageWriter(@NonNull File cacheFolder, int compressionLevel, @NonNull String architecture) {
+        if (compressionLevel < 1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9, got " + compressionLevel);
+        }
+        this.cacheFolder = cacheFolder;
+        this.compressionLevel = compressionLevel;
+        this.architecture = architecture;
+    }
+
+    /**
+     * Builds on top of an image from a local OCI image layout (e.g from
+     * {@code skopeo copy docker://debian:12-slim oci:base}), taking its layers and
+     * environment. Must be called before adding any layers.
+     */
+    public OciImageWriter base(@NonNull File layoutFolder) throws IOException {
+        if (!this.layers.isEmpty()) {
+            throw new IllegalStateException("The base image must come first.");
+        }
+
+        ManifestDescriptor manifestDescriptor = this.findManifest(layoutFolder, readJson(new File(layoutFolder, "index.json"), Index.class));
+        if (manifestDescriptor == null) {
+            throw new IOException(String.format("No linux/%s image in %s", this.architecture, layoutFolder));
+        }
+
+        Manifest manifest = readJson(blobFile(layoutFolder, manifestDescriptor.digest), Manifest.class);
+        ImageConfig config = readJson(blobFile(layoutFolder, manifest.config.digest), ImageConfig.class);
+        if (manifest.layers.length != config.rootfs.diff_ids.length) {
+            throw new IOException("The base image's manifest and config don't agree on the layers.");
+        }
+
+        for (Descriptor layer : manifest.layers) {
+            File blob = blobFile(layoutFolder, layer.digest);
+            if (!blob.isFile()) {
+                throw new IOException("The base image is missing layer " + layer.digest);
+            }
+            if (DOCKER_MEDIA_TYPE_LAYER.equals(layer.mediaType)) {
+                layer.mediaType = MEDIA_TYPE_LAYER; // Same format, different name.
+            }
+            this.layers.add(layer);
+            this.blobs.put(layer.digest, blob);
+        }
+        this.diffIds.addAll(Arrays.asList(config.rootfs.diff_ids));
+
+        if (config.config != null) {
+            this.config = config.config;
+        }
+        return this;
+    }
+
+    private @Nullable ManifestDescriptor findManifest(File layoutFolder, Index index) throws IOException {
+        for (ManifestDescriptor descriptor : index.manifests) {
+            boolean matches = descriptor.platform == null
+                ? index.manifests.length == 1
+                : "linux".equals(descriptor.platform.os) && this.architecture.equals(descriptor.platform.architecture);
+            if (!matches) continue;
+
+            if (INDEX_MEDIA_TYPES.contains(descriptor.mediaType)) {
+                // A multi-platform image, look inside.
+                ManifestDescriptor nested = this.findManifest(layoutFolder, readJson(blobFile(layoutFolder, descriptor.digest), Index.class));
+                if (nested != null) return nested;
+                continue;
+            }
+            return descriptor;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the matching entries of the tree as a layer, under the given prefix
+     * (e.g {@code opt/MyApp/}). Nothing is added if none match.
+     */
+    public OciImageWriter addLayer(@NonNull BundleTree tree, @NonNull Predicate<BundleEntry> filter, @NonNull String prefix) throws IOException {
+        // Sorted, so the layer is the same no matter what order the tree was built in.
+        Map<String, LayerEntry> entries = new TreeMap<>();
+        tree.walk((entry, in) -> {
+            if (!filter.test(entry)) return;
+            // Files on disk are read when writing, anything else has to be kept until then.
+            byte[] content = entry.source == null && !entry.isSymlink() ? in.readAllBytes() : null;
+            entries.put(prefix + entry.path, new LayerEntry(entry, content));
+        });
+        if (entries.isEmpty()) return this;
+
+        // The uncompressed digest is cheap to get and identifies the layer, so we can
+        // look for it in the cache before compressing anything.
+        MessageDigest diffDigest = DigestUtils.getSha256Digest();
+        try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), diffDigest)) {
+            writeTar(entries, out);
+        }
+        String diffId = "sha256:" + Hex.encodeHexString(diffDigest.digest());
+
+        File cached = new File(this.cacheFolder, String.format("%s-%d.tar.gz", diffId.substring("sha256:".length()), this.compressionLevel));
+        if (cached.isFile()) {
+            LOGGER.debug("Reusing cached layer %s.", diffId);
+            cached.setLastModified(System.currentTimeMillis()); // Keeps it from expiring.
+        } else {
+            LOGGER.debug("Compressing layer %s (%d entries).", diffId, entries.size());
+            this.cacheFolder.mkdirs();
+
+            // Other builds may want the same layer at the same time, the last one to finish wins.
+            File tempFile = new File(this.cacheFolder, cached.getName() + '-' + UUID.randomUUID() + ".part");
+            try {
+                try (
+                    OutputStream fileOut = new FileOutputStream(tempFile);
+                    GZIPOutputStream gzipOut = new GZIPOutputStream(fileOut, 64 * 1024) {
+                        {
+                            this.def.setLevel(OciImageWriter.this.compressionLevel);
+                        }
+                    }) {
+                    writeTar(entries, gzipOut);
+                }
+                Files.move(tempFile.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tempFile.delete();
+            }
+        }
+
+        Descriptor layer = new Descriptor(MEDIA_TYPE_LAYER, digestOf(cached), cached.length());
+        this.layers.add(layer);
+        this.diffIds.add(diffId);
+        this.blobs.put(layer.digest, cached);
+        return this;
+    }
+
+    /**
+     * Writes out the image, tagged with the given name.
+     *
+     * @param entrypoint The command, the args given to the container go after it.
+     */
+    public void finish(@NonNull File destFile, @NonNull String tag, @NonNull String workingDir, @NonNull String... entrypoint) throws IOException {
+        if (this.config.Env == null || this.config.Env.length == 0) {
+            this.config.Env = new String[] {
+                    "PATH=/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin"
+            };
+        }
+        if (this.config.User == null) {
+            this.config.User = "";
+        }
+        this.config.Entrypoint = entrypoint;
+        this.config.Cmd = new String[0];
+        this.config.WorkingDir = workingDir;
+
+        ImageConfig imageConfig = new ImageConfig();
+        imageConfig.architecture = this.architecture;
+        imageConfig.config = this.config;
+        imageConfig.rootfs.diff_ids = this.diffIds.toArray(new String[0]);
+        byte[] configJson = toJson(imageConfig);
+
+        Manifest manifest = new Manifest();
+        manifest.config = new Descriptor(MEDIA_TYPE_CONFIG, digestOf(configJson), configJson.length);
+        manifest.layers = this.layers.toArray(new Descriptor[0]);
+        byte[] manifestJson = toJson(manifest);
+
+        ManifestDescriptor manifestDescriptor = new ManifestDescriptor();
+        manifestDescriptor.mediaType = MEDIA_TYPE_MANIFEST;
+        manifestDescriptor.digest = digestOf(manifestJson);
+        manifestDescriptor.size = manifestJson.length;
+        manifestDescriptor.platform = new Platform("linux", this.architecture);
+        manifestDescriptor.annotations = Map.of("org.opencontainers.image.ref.name", tag);
+
+        Index index = new Index();
+        index.manifests = new ManifestDescriptor[] {
+                manifestDescriptor
+        };
+
+        Map<String, byte[]> jsonBlobs = new TreeMap<>();
+        jsonBlobs.put(manifest.config.digest, configJson);
+        jsonBlobs.put(manifestDescriptor.digest, manifestJson);
+
+        File tempFile = new File(destFile.getParentFile(), destFile.getName() + ".part");
+        try {
+            try (TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(tempFile))) {
+                out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+                putBytes(out, "oci-layout", "{\"imageLayoutVersion\":\"1.0.0\"}".getBytes(StandardCharsets.UTF_8));
+                putBytes(out, "index.json", toJson(index));
+                putDirectory(out, "blobs/");
+                putDirectory(out, "blobs/sha256/");
+
+                Map<String, Object> allBlobs = new TreeMap<>();
+                allBlobs.putAll(this.blobs);
+                allBlobs.putAll(jsonBlobs);
+                for (Map.Entry<String, Object> blob : allBlobs.entrySet()) {
+                    String path = "blobs/" + blob.getKey().replace(':', '/');
+                    if (blob.getValue() instanceof byte[]) {
+                        putBytes(out, path, (byte[]) blob.getValue());
+                    } else {
+                        File file = (File) blob.getValue();
+                        out.putArchiveEntry(fixed(new TarArchiveEntry(path), file.length(), BundleEntry.MODE_FILE));
+                        Files.copy(file.toPath(), out);
+                        out.closeArchiveEntry();
+                    }
+                }
+                out.finish();
+            }
+            Files.move(tempFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tempFile.delete();
+        }
+
+        this.expireCache();
+    }
+
+    /**
+     * Deletes the cached layers that no build used in a while.
+     */
+    private void expireCache() {
+        File[] files = this.cacheFolder.listFiles();
+        if (files == null) return;
+
+        long cutoff = System.currentTimeMillis() - CACHE_MAX_AGE;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                LOGGER.debug("Deleting unused cached layer %s.", file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    private static void writeTar(Map<String, LayerEntry> entries, OutputStream target) throws IOException {
+        TarArchiveOutputStream out = new TarArchiveOutputStream(target);
+        out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+        Set<String> writtenDirectories = new HashSet<>();
+        for (Map.Entry<String, LayerEntry> e : entries.entrySet()) {
+            String path = e.getKey();
+            BundleEntry entry = e.getValue().entry;
+
+            // Make sure the parent directories exist, tar won't do it for us.
+            for (int idx = path.indexOf('/'); idx != -1; idx = path.indexOf('/', idx + 1)) {
+                String directory = path.substring(0, idx + 1);
+                if (writtenDirectories.add(directory)) {
+                    putDirectory(out, directory);
+                }
+            }
+
+            if (entry.isSymlink()) {
+                TarArchiveEntry tarEntry = fixed(new TarArchiveEntry(path, TarConstants.LF_SYMLINK), 0, UnixStat.LINK_FLAG | entry.mode);
+                tarEntry.setLinkName(entry.symlinkTarget);
+                out.putArchiveEntry(tarEntry);
+                out.closeArchiveEntry();
+                continue;
+            }
+
+            byte[] content = e.getValue().content;
+            long size = content == null ? entry.source.length() : content.length;
+            out.putArchiveEntry(fixed(new TarArchiveEntry(path), size, UnixStat.FILE_FLAG | (entry.isExecutable() ? BundleEntry.MODE_EXECUTABLE : BundleEntry.MODE_FILE)));
+            if (content == null) {
+                try (InputStream in = new FileInputStream(entry.source)) {
+                    in.transferTo(out);
+                }
+            } else {
+                out.write(content);
+            }
+            out.closeArchiveEntry();
+        }
+
+        // Only finish, the caller closes the stream it gave us.
+        out.finish();
+    }
+
+    private static void putDirectory(TarArchiveOutputStream out, String path) throws IOException {
+        out.putArchiveEntry(fixed(new TarArchiveEntry(path), 0, TarArchiveEntry.DEFAULT_DIR_MODE));
+        out.closeArchiveEntry();
+    }
+
+    private static void putBytes(TarArchiveOutputStream out, String path, byte[] content) throws IOException {
+        out.putArchiveEntry(fixed(new TarArchiveEntry(path), content.length, UnixStat.FILE_FLAG | BundleEntry.MODE_FILE));
+        out.write(content);
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * Takes out everything that differs between machines and builds.
+     */
+    private static TarArchiveEntry fixed(TarArchiveEntry entry, long size, int mode) {
+        entry.setSize(size);
+        entry.setMode(mode);
+        entry.setModTime(FIXED_TIME);
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setUserName("");
+        entry.setGroupName("");
+        return entry;
+    }
+
+    private static String digestOf(byte[] content) {
+        return "sha256:" + DigestUtils.sha256Hex(content);
+    }
+
+    private static String digestOf(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return "sha256:" + DigestUtils.sha256Hex(in);
+        }
+    }
+
+    private static File blobFile(File layoutFolder, String digest) {
+        return new File(layoutFolder, "blobs/" + digest.replace(':', '/'));
+    }
+
+    private static <T> T readJson(File file, Class<T> clazz) throws IOException {
+        return Rson.DEFAULT.fromJson(Files.readString(file.toPath()), clazz);
+    }
+
+    private static byte[] toJson(Object object) {
+        return Rson.DEFAULT.toJson(object).toString(false).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class LayerEntry {
+        private final BundleEntry entry;
+        private final @Nullable byte[] content;
+
+        private LayerEntry(BundleEntry entry, @Nullable byte[] content) {
+            this.entry = entry;
+            this.content = content;
+        }
+    }
+
+    /* -------------------- */
+    /* The JSON documents, only the fields we use. */
+    /* -------------------- */
+
+    @JsonClass(exposeAll = true)
+    public static class Index {
+        public int schemaVersion = 2;
+        public String mediaType = MEDIA_TYPE_INDEX;
+        public ManifestDescriptor[] manifests = {};
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Manifest {
+        public int schemaVersion = 2;
+        public String mediaType = MEDIA_TYPE_MANIFEST;
+        public Descriptor config;
+        public Descriptor[] layers = {};
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Descriptor {
+        public String mediaType;
+        public String digest;
+        public long size;
+
+        public Descriptor() {}
+
+        public Descriptor(String mediaType, String digest, long size) {
+            this.mediaType = mediaType;
+            this.digest = digest;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A {@link Descriptor} in an index, which also says what the manifest is for.
+     */
+    @JsonClass(exposeAll = true)
+    public static class ManifestDescriptor {
+        public String mediaType;
+        public String digest;
+        public long size;
+        public Platform platform;
+        public Map<String, String> annotations = Collections.emptyMap();
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Platform {
+        public String os;
+        public String architecture;
+
+        public Platform() {}
+
+        public Platform(String os, String architecture) {
+            this.os = os;
+            this.architecture = architecture;
+        }
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class ImageConfig {
+        public String architecture;
+        public String os = "linux";
+        public ContainerConfig config = new ContainerConfig();
+        public RootFs rootfs = new RootFs();
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class ContainerConfig {
+        public String User;
+        public String[] Env;
+        public String[] Entrypoint;
+        public String[] Cmd;
+        public String WorkingDir;
+        public Map<String, String> Labels = Collections.emptyMap();
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class RootFs {
+        public String type = "layers";
+        public String[] diff_ids = {};
+    }
+
+}
@@ -0,0 +1,117 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.Utils;
+import lombok.NonNull;
+
+/**
+ * A declarative description of how paths in an archive (or folder) map to
+ * paths in a bundle. It's applied to each entry as it's read, so anything
+ * that's excluded or moved is never written anywhere else first.
+ *
+ * The steps happen in this order:
+ * <ol>
+ * <li>The first {@link #stripComponents(int)} directories are dropped.</li>
+ * <li>If there are any {@link #include(String)} globs, anything not matching
+ * one of them is left out.</li>
+ * <li>Anything matching an {@link #exclude(String)} glob is left out.</li>
+ * <li>The first matching {@link #remap(String, String)} replaces the prefix,
+ * otherwise the {@link #prefix(String)} is prepended.</li>
+ * </ol>
+ */
+public class PathMapping implements UnaryOperator<String> {
+    private int stripComponents = 0;
+    private final List<Pattern> includes = new LinkedList<>();
+    private final List<Pattern> excludes = new LinkedList<>();
+    private final Map<String, String> remaps = new LinkedHashMap<>();
+    private String prefix = "";
+
+    public static PathMapping create() {
+        return new PathMapping();
+    }
+
+    /**
+     * Drops the first {@code count} directories of every path, e.g
+     * {@code jdk-17-jre/bin/java} becomes {@code bin/java} with a count of 1.
+     */
+    public PathMapping stripComponents(int count) {
+        this.stripComponents = count;
+        return this;
+    }
+
+    /**
+     * Only keeps paths matching one of the included globs, see
+     * {@link Utils#compileGlob(String)}. Matched against the path after stripping.
+     */
+    public PathMapping include(@NonNull String glob) {
+        this.includes.add(Utils.compileGlob(glob));
+        return this;
+    }
+
+    /**
+     * Leaves out any path matching the glob, see {@link Utils#compileGlob(String)}.
+     * Matched against the path after stripping.
+     */
+    public PathMapping exclude(@NonNull String glob) {
+        this.excludes.add(Utils.compileGlob(glob));
+        return this;
+    }
+
+    /**
+     * Moves everything under {@code from} to be under {@code to} instead. Both
+     * should end with a slash.
+     */
+    public PathMapping remap(@NonNull String from, @NonNull String to) {
+        this.remaps.put(from, to);
+        return this;
+    }
+
+    /**
+     * Prepended to every path that wasn't remapped.
+     */
+    public PathMapping prefix(@NonNull String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * @return null, if the path should be left out.
+     */
+    @Override
+    public @Nullable String apply(@NonNull String path) {
+        path = BundleTree.stripComponents(path, this.stripComponents);
+        if (path == null) return null;
+
+        if (!this.includes.isEmpty()) {
+            boolean included = false;
+            for (Pattern include : this.includes) {
+                if (include.matcher(path).matches()) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) return null;
+        }
+
+        for (Pattern exclude : this.excludes) {
+            if (exclude.matcher(path).matches()) return null;
+        }
+
+        for (Map.Entry<String, String> remap : this.remaps.entrySet()) {
+            if (path.startsWith(remap.getKey())) {
+                return remap.getValue() + path.substring(remap.getKey().length());
+            }
+        }
+
+        return this.prefix + path;
+    }
+
+}
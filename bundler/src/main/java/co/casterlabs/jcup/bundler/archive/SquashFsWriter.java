@@ -0,0 +1,595 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+import co.casterlabs.jcup.bundler.JCup;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * A minimal SquashFS 4.0 writer. Files are streamed in as they come, file tails
+ * are packed into fragments, and the inode & directory tables are written out
+ * once everything has been added.
+ *
+ * <p>
+ * Positions are relative to {@code baseOffset} in the channel, which allows the
+ * image to be appended to something else (e.g an AppImage runtime).
+ */
+public class SquashFsWriter implements Closeable {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("SquashFsWriter");
+
+    private static final int MAGIC = 0x73717368;
+    private static final int SUPERBLOCK_SIZE = 96;
+    private static final int METADATA_SIZE = 8192;
+    private static final int MAX_DIR_ENTRIES_PER_HEADER = 256;
+
+    private static final int METADATA_UNCOMPRESSED = 0x8000;
+    private static final int BLOCK_UNCOMPRESSED = 1 << 24;
+    private static final int NO_FRAGMENT = 0xFFFFFFFF;
+    private static final long INVALID_TABLE = 0xFFFFFFFFFFFFFFFFL;
+
+    private static final short FLAG_NO_XATTRS = 0x0200;
+
+    private static final short TYPE_DIRECTORY = 1;
+    private static final short TYPE_FILE = 2;
+    private static final short TYPE_SYMLINK = 3;
+    private static final short TYPE_EXTENDED_DIRECTORY = 8;
+    private static final short TYPE_EXTENDED_FILE = 9;
+
+    private final FileChannel channel;
+    private final long baseOffset;
+    private final Compressor compressor;
+    private final int compressionLevel;
+    private final int blockSize;
+    private final int modificationTime = (int) (System.currentTimeMillis() / 1000);
+
+    private final Node root = new Node(true);
+    private long position = SUPERBLOCK_SIZE;
+
+    private final byte[] fragment;
+    private int fragmentLength = 0;
+    private final List<long[]> fragments = new ArrayList<>(); // {start, size}
+
+    private int inodeCount = 0;
+
+    private final Map<String, Node> contents = new HashMap<>(); // size:sha256 -> first file with it
+    private long deduplicatedBytes = 0;
+
+    public SquashFsWriter(@NonNull FileChannel channel, long baseOffset, @NonNull Compressor compressor, int compressionLevel, int blockSize) {
+        if (Integer.bitCount(blockSize) != 1 || blockSize < 4096 || blockSize > 1024 * 1024) {
+            throw new IllegalArgumentException("Block size must be a power of two between 4KB and 1MB: " + blockSize);
+        }
+
+        this.channel = channel;
+        this.baseOffset = baseOffset;
+        this.compressor = compressor;
+        this.compressionLevel = compressionLevel;
+        this.blockSize = blockSize;
+        this.fragment = new byte[blockSize];
+    }
+
+    /**
+     * Streams a file into the image. Parent directories are created as needed.
+     */
+    public void add(@NonNull BundleEntry entry, @NonNull InputStream in) throws IOException {
+        LOGGER.trace("Adding: %s", entry.path);
+
+        Node node = this.root;
+        String[] parts = entry.path.split("/");
+        for (int i = 0; i < parts.length - 1; i++) {
+            node = node.children.computeIfAbsent(parts[i], (k) -> new Node(true));
+            if (!node.directory) {
+                throw new IOException("Cannot add " + entry.path + ", " + parts[i] + " is a file.");
+            }
+        }
+
+        if (entry.isSymlink()) {
+            Node link = new Node(false);
+            link.symlinkTarget = entry.symlinkTarget;
+            link.modificationTime = (int) (entry.lastModified / 1000);
+            node.children.put(parts[parts.length - 1], link);
+            return;
+        }
+
+        Node file = new Node(false);
+        file.mode = entry.mode;
+        file.modificationTime = (int) (entry.lastModified / 1000);
+        file.blocksStart = this.position;
+        node.children.put(parts[parts.length - 1], file);
+
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        byte[] buffer = new byte[this.blockSize];
+        while (true) {
+            int read = in.readNBytes(buffer, 0, this.blockSize);
+            file.size += read;
+            digest.update(buffer, 0, read);
+
+            if (read == this.blockSize) {
+                file.blockSizes.add(this.writeBlock(buffer, read));
+            } else {
+                // Identical files share their data, so the blocks we just wrote get
+                // dropped (nothing else was written in between).
+                String key = file.size + ":" + Hex.encodeHexString(digest.digest());
+                Node original = this.contents.putIfAbsent(key, file);
+                if (original != null) {
+                    this.deduplicatedBytes += file.size;
+                    this.position = file.blocksStart;
+                    file.blocksStart = original.blocksStart;
+                    file.blockSizes = original.blockSizes;
+                    file.fragmentIndex = original.fragmentIndex;
+                    file.fragmentOffset = original.fragmentOffset;
+                    break;
+                }
+
+                if (read > 0) {
+                    // Pack the tail into the current fragment.
+                    if (this.fragmentLength + read > this.blockSize) {
+                        this.flushFragment();
+                    }
+                    file.fragmentIndex = this.fragments.size();
+                    file.fragmentOffset = this.fragmentLength;
+                    System.arraycopy(buffer, 0, this.fragment, this.fragmentLength, read);
+                    this.fragmentLength += read;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the size word for the inode.
+     */
+    private int writeBlock(byte[] data, int length) throws IOException {
+        byte[] compressed = this.compress(data, length);
+        if (compressed == null) {
+            this.write(ByteBuffer.wrap(data, 0, length));
+            return length | BLOCK_UNCOMPRESSED;
+        } else {
+            this.write(ByteBuffer.wrap(compressed));
+            return compressed.length;
+        }
+    }
+
+    private void flushFragment() throws IOException {
+        if (this.fragmentLength == 0) return;
+
+        long start = this.position;
+        int size = this.writeBlock(this.fragment, this.fragmentLength);
+        this.fragments.add(new long[] {
+                start,
+                size
+        });
+        this.fragmentLength = 0;
+    }
+
+    /**
+     * Writes out the tables and the superblock. Nothing can be added after this.
+     */
+    public void finish() throws IOException {
+        this.flushFragment();
+
+        this.assignInodeNumbers(this.root);
+
+        MetadataWriter inodeTable = new MetadataWriter();
+        MetadataWriter directoryTable = new MetadataWriter();
+        long rootRef = this.writeDirectory(this.root, this.inodeCount + 1, inodeTable, directoryTable);
+
+        long inodeTableStart = this.position;
+        this.write(ByteBuffer.wrap(inodeTable.finish()));
+
+        long directoryTableStart = this.position;
+        this.write(ByteBuffer.wrap(directoryTable.finish()));
+
+        long fragmentTableStart;
+        {
+            MetadataWriter fragmentTable = new MetadataWriter();
+            for (long[] fragment : this.fragments) {
+                fragmentTable.write(
+                    le(16)
+                        .putLong(fragment[0])
+                        .putInt((int) fragment[1])
+                        .putInt(0)
+                );
+            }
+            fragmentTableStart = this.writeLookupTable(fragmentTable);
+        }
+
+        long idTableStart;
+        {
+            MetadataWriter idTable = new MetadataWriter();
+            idTable.write(le(4).putInt(0)); // Everything is owned by root.
+            idTableStart = this.writeLookupTable(idTable);
+        }
+
+        long bytesUsed = this.position;
+
+        // Pad to 4K, loop devices like that better.
+        int padding = (int) ((4096 - (bytesUsed % 4096)) % 4096);
+        if (padding > 0) {
+            this.write(ByteBuffer.allocate(padding));
+        }
+        this.channel.truncate(this.baseOffset + this.position); // In case we dropped data at the very end.
+
+        ByteBuffer superblock = le(SUPERBLOCK_SIZE)
+            .putInt(MAGIC)
+            .putInt(this.inodeCount)
+            .putInt(this.modificationTime)
+            .putInt(this.blockSize)
+            .putInt(this.fragments.size())
+            .putShort(this.compressor.id)
+            .putShort((short) Integer.numberOfTrailingZeros(this.blockSize))
+            .putShort(FLAG_NO_XATTRS)
+            .putShort((short) 1) // id count
+            .putShort((short) 4) // major
+            .putShort((short) 0) // minor
+            .putLong(rootRef)
+            .putLong(bytesUsed)
+            .putLong(idTableStart)
+            .putLong(INVALID_TABLE) // xattr table
+            .putLong(inodeTableStart)
+            .putLong(directoryTableStart)
+            .putLong(fragmentTableStart)
+            .putLong(INVALID_TABLE); // export table
+        superblock.flip();
+        while (superblock.hasRemaining()) {
+            this.channel.write(superblock, this.baseOffset + superblock.position());
+        }
+
+        LOGGER.debug("Wrote %d inodes and %d fragments (%d bytes, %d bytes of duplicate files left out).", this.inodeCount, this.fragments.size(), bytesUsed, this.deduplicatedBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Writes the metadata blocks followed by the table of pointers to them.
+     *
+     * @return the start of the pointer table.
+     */
+    private long writeLookupTable(MetadataWriter table) throws IOException {
+        long blocksStart = this.position;
+        byte[] blocks = table.finish();
+        this.write(ByteBuffer.wrap(blocks));
+
+        long lookupStart = this.position;
+        ByteBuffer lookup = le(table.blockOffsets.size() * 8);
+        for (long offset : table.blockOffsets) {
+            lookup.putLong(blocksStart + offset);
+        }
+        lookup.flip();
+        this.write(lookup);
+        return lookupStart;
+    }
+
+    /**
+     * Numbers children before their parent, so the root ends up last.
+     */
+    private void assignInodeNumbers(Node node) {
+        for (Node child : node.children.values()) {
+            if (child.directory) {
+                this.assignInodeNumbers(child);
+            } else {
+                child.inodeNumber = ++this.inodeCount;
+            }
+        }
+        node.inodeNumber = ++this.inodeCount;
+    }
+
+    /**
+     * @return the inode reference of the directory.
+     */
+    private long writeDirectory(Node node, int parentInodeNumber, MetadataWriter inodeTable, MetadataWriter directoryTable) throws IOException {
+        // Children go first so that we know where their inodes are.
+        int subdirectories = 0;
+        for (Node child : node.children.values()) {
+            if (child.directory) {
+                child.inodeRef = this.writeDirectory(child, node.inodeNumber, inodeTable, directoryTable);
+                subdirectories++;
+            } else if (child.symlinkTarget != null) {
+                child.inodeRef = this.writeSymlinkInode(child, inodeTable);
+            } else {
+                child.inodeRef = this.writeFileInode(child, inodeTable);
+            }
+        }
+
+        // Now the listing. Entries are grouped under headers that share an inode
+        // metadata block.
+        long listingRef = directoryTable.reference();
+        int listingSize = 0;
+        {
+            List<String> names = new ArrayList<>(node.children.keySet());
+            int idx = 0;
+            while (idx < names.size()) {
+                Node first = node.children.get(names.get(idx));
+                long blockStart = first.inodeRef >>> 16;
+
+                int count = 0;
+                while (idx + count < names.size() && count < MAX_DIR_ENTRIES_PER_HEADER) {
+                    Node child = node.children.get(names.get(idx + count));
+                    if ((child.inodeRef >>> 16) != blockStart) break;
+                    if (Math.abs(child.inodeNumber - first.inodeNumber) > Short.MAX_VALUE) break;
+                    count++;
+                }
+
+                directoryTable.write(
+                    le(12)
+                        .putInt(count - 1)
+                        .putInt((int) blockStart)
+                        .putInt(first.inodeNumber)
+                );
+                listingSize += 12;
+
+                for (int i = 0; i < count; i++) {
+                    String name = names.get(idx + i);
+                    Node child = node.children.get(name);
+                    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                    if (nameBytes.length > 256) {
+                        throw new IOException("File name is too long: " + name);
+                    }
+
+                    directoryTable.write(
+                        le(8 + nameBytes.length)
+                            .putShort((short) (child.inodeRef & 0xFFFF))
+                            .putShort((short) (child.inodeNumber - first.inodeNumber))
+                            .putShort(child.directory ? TYPE_DIRECTORY : child.symlinkTarget != null ? TYPE_SYMLINK : TYPE_FILE)
+                            .putShort((short) (nameBytes.length - 1))
+                            .put(nameBytes)
+                    );
+                    listingSize += 8 + nameBytes.length;
+                }
+
+                idx += count;
+            }
+        }
+
+        long ref = inodeTable.reference();
+        int fileSize = listingSize + 3; // The kernel counts . and .. as 3 bytes.
+        int linkCount = 2 + subdirectories;
+        if (fileSize <= 0xFFFF) {
+            inodeTable.write(
+                this.inodeHeader(TYPE_DIRECTORY, 0755, this.modificationTime, node.inodeNumber, 16)
+                    .putInt((int) (listingRef >>> 16))
+                    .putInt(linkCount)
+                    .putShort((short) fileSize)
+                    .putShort((short) (listingRef & 0xFFFF))
+                    .putInt(parentInodeNumber)
+            );
+        } else {
+            inodeTable.write(
+                this.inodeHeader(TYPE_EXTENDED_DIRECTORY, 0755, this.modificationTime, node.inodeNumber, 24)
+                    .putInt(linkCount)
+                    .putInt(fileSize)
+                    .putInt((int) (listingRef >>> 16))
+                    .putInt(parentInodeNumber)
+                    .putShort((short) 0) // index count
+                    .putShort((short) (listingRef & 0xFFFF))
+                    .putInt(NO_FRAGMENT) // xattr index
+            );
+        }
+        return ref;
+    }
+
+    private long writeFileInode(Node node, MetadataWriter inodeTable) throws IOException {
+        long ref = inodeTable.reference();
+        int blockCount = node.blockSizes.size();
+
+        ByteBuffer inode;
+        if (node.blocksStart < 0xFFFFFFFFL && node.size < 0xFFFFFFFFL) {
+            inode = this.inodeHeader(TYPE_FILE, node.mode, node.modificationTime, node.inodeNumber, 16 + blockCount * 4)
+                .putInt((int) node.blocksStart)
+                .putInt(node.fragmentIndex)
+                .putInt(node.fragmentOffset)
+                .putInt((int) node.size);
+        } else {
+            inode = this.inodeHeader(TYPE_EXTENDED_FILE, node.mode, node.modificationTime, node.inodeNumber, 40 + blockCount * 4)
+                .putLong(node.blocksStart)
+                .putLong(node.size)
+                .putLong(0) // sparse
+                .putInt(1) // link count
+                .putInt(node.fragmentIndex)
+                .putInt(node.fragmentOffset)
+                .putInt(NO_FRAGMENT); // xattr index
+        }
+
+        for (int size : node.blockSizes) {
+            inode.putInt(size);
+        }
+        inodeTable.write(inode);
+        return ref;
+    }
+
+    private long writeSymlinkInode(Node node, MetadataWriter inodeTable) throws IOException {
+        long ref = inodeTable.reference();
+        byte[] target = node.symlinkTarget.getBytes(StandardCharsets.UTF_8);
+        inodeTable.write(
+            this.inodeHeader(TYPE_SYMLINK, 0777, node.modificationTime, node.inodeNumber, 8 + target.length)
+                .putInt(1) // link count
+                .putInt(target.length)
+                .put(target)
+        );
+        return ref;
+    }
+
+    private ByteBuffer inodeHeader(short type, int mode, int modificationTime, int inodeNumber, int bodySize) {
+        return le(16 + bodySize)
+            .putShort(type)
+            .putShort((short) (mode & 07777))
+            .putShort((short) 0) // uid index
+            .putShort((short) 0) // gid index
+            .putInt(modificationTime)
+            .putInt(inodeNumber);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.position += this.channel.write(buffer, this.baseOffset + this.position);
+        }
+    }
+
+    /**
+     * @return null, if compressing didn't make the data any smaller.
+     */
+    private byte[] compress(byte[] data, int length) throws IOException {
+        byte[] compressed;
+        switch (this.compressor) {
+            case GZIP: {
+                Deflater deflater = new Deflater(this.compressionLevel);
+                try {
+                    deflater.setInput(data, 0, length);
+                    deflater.finish();
+
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+                    byte[] buffer = new byte[8192];
+                    while (!deflater.finished()) {
+                        int written = deflater.deflate(buffer);
+                        out.write(buffer, 0, written);
+                        if (out.size() >= length) return null; // Not worth it.
+                    }
+                    compressed = out.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+                break;
+            }
+
+            case XZ: {
+                LZMA2Options options = new LZMA2Options(this.compressionLevel);
+                // The kernel assumes the dictionary is no bigger than a block.
+                options.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN, this.blockSize));
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+                try (XZOutputStream xz = new XZOutputStream(out, options, XZ.CHECK_CRC32)) {
+                    xz.write(data, 0, length);
+                }
+                compressed = out.toByteArray();
+                break;
+            }
+
+            default:
+                throw new IOException("Unsupported compressor: " + this.compressor);
+        }
+
+        return compressed.length < length ? compressed : null;
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Packs data into (compressed) 8K metadata blocks.
+     */
+    private class MetadataWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final byte[] block = new byte[METADATA_SIZE];
+        private int blockLength = 0;
+
+        private final List<Long> blockOffsets = new ArrayList<>();
+
+        /**
+         * @return a reference to the current position, in the form of
+         *         {@code (block start << 16) | offset in block}.
+         */
+        long reference() {
+            return ((long) this.out.size() << 16) | this.blockLength;
+        }
+
+        void write(ByteBuffer buffer) throws IOException {
+            byte[] data = buffer.array();
+            int offset = 0;
+            int length = buffer.position();
+
+            while (length > 0) {
+                int toCopy = Math.min(length, METADATA_SIZE - this.blockLength);
+                System.arraycopy(data, offset, this.block, this.blockLength, toCopy);
+                this.blockLength += toCopy;
+                offset += toCopy;
+                length -= toCopy;
+
+                if (this.blockLength == METADATA_SIZE) {
+                    this.flush();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (this.blockLength == 0) return;
+
+            this.blockOffsets.add((long) this.out.size());
+
+            byte[] compressed = compress(this.block, this.blockLength);
+            if (compressed == null) {
+                this.out.write(this.blockLength | METADATA_UNCOMPRESSED);
+                this.out.write((this.blockLength | METADATA_UNCOMPRESSED) >> 8);
+                this.out.write(this.block, 0, this.blockLength);
+            } else {
+                this.out.write(compressed.length);
+                this.out.write(compressed.length >> 8);
+                this.out.write(compressed);
+            }
+            this.blockLength = 0;
+        }
+
+        byte[] finish() throws IOException {
+            this.flush();
+            return this.out.toByteArray();
+        }
+
+    }
+
+    private static class Node {
+        final boolean directory;
+        final TreeMap<String, Node> children = new TreeMap<>(); // SquashFS wants them sorted.
+
+        int inodeNumber;
+        long inodeRef;
+
+        int mode;
+        int modificationTime;
+        long size = 0;
+        long blocksStart;
+        List<Integer> blockSizes = new ArrayList<>();
+        int fragmentIndex = NO_FRAGMENT;
+        int fragmentOffset = 0;
+        String symlinkTarget;
+
+        Node(boolean directory) {
+            this.directory = directory;
+        }
+
+    }
+
+    @AllArgsConstructor
+    public static enum Compressor {
+        GZIP((short) 1),
+        XZ((short) 4),
+        ;
+
+        public final short id;
+
+    }
+
+}
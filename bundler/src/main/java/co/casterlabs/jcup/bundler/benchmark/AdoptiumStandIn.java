@@ -0,0 +1,276 @@
+package co.casterlabs.jcup.bundler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.archive.ArchiveCreator;
+import co.casterlabs.jcup.bundler.archive.Archives;
+import co.casterlabs.jcup.bundler.archive.BundleTree;
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import co.casterlabs.jcup.bundler.runtime.AdoptiumProvider;
+import co.casterlabs.jcup.bundler.runtime.DirectoryProvider;
+import lombok.Getter;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * A local server with the parts of the Adoptium API that jcup uses, so the
+ * bundler can be benchmarked without the network. Point a {@code mirror}
+ * runtime at {@link #getUrl()}.
+ *
+ * The JREs come from a folder of archives, named like {@link DirectoryProvider}
+ * expects. A recorded {@code assets/latest} response can be put next to them
+ * as {@code assets/<version>-<os>-<arch>.json}, its package links get pointed at
+ * this server. Otherwise a minimal response is made up.
+ */
+class AdoptiumStandIn implements AutoCloseable {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("AdoptiumStandIn");
+
+    /**
+     * Keeps the served archives apart from real ones in the download cache, so
+     * clearing them out never throws away a real download.
+     */
+    static final String NAME_PREFIX = "jcup-benchmark-";
+
+    private final File runtimesFolder;
+    private final boolean synthetic;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool((r) -> {
+        Thread t = new Thread(r, "AdoptiumStandIn");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, File> served = Collections.synchronizedMap(new HashMap<>());
+    private final @Getter String url;
+
+    /**
+     * @param synthetic Whether to make up a JRE archive for targets that don't
+     *                  have one in the folder.
+     */
+    AdoptiumStandIn(@NonNull File runtimesFolder, boolean synthetic) throws IOException {
+        this.runtimesFolder = runtimesFolder;
+        this.synthetic = synthetic;
+        if (synthetic) runtimesFolder.mkdirs();
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/v3/assets/latest/", this::handleAssets);
+        this.server.createContext("/binary/", this::handleBinary);
+        this.server.start();
+
+        this.url = String.format("http://%s:%d", InetAddress.getLoopbackAddress().getHostAddress(), this.server.getAddress().getPort());
+        LOGGER.debug("Serving %s at %s.", runtimesFolder, this.url);
+    }
+
+    /**
+     * @return the names of every archive handed out so far, as they're named in
+     *         the download cache.
+     */
+    Set<String> servedNames() {
+        synchronized (this.served) {
+            return new HashSet<>(this.served.keySet());
+        }
+    }
+
+    // /v3/assets/latest/{version}/hotspot?architecture={arch}&image_type=jre&os={os}&vendor=eclipse
+    private void handleAssets(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            int version = Integer.parseInt(path[4]);
+            OperatingSystem os = reverse(AdoptiumProvider.OS_MAPPING, query.get("os"));
+            Architecture arch = reverse(AdoptiumProvider.ARCH_MAPPING, query.get("architecture"));
+            if (os == null || arch == null) {
+                respond(exchange, 404, "[]");
+                return;
+            }
+
+            File archive = this.findArchive(version, os, arch);
+            if (archive == null) {
+                respond(exchange, 404, "[]");
+                return;
+            }
+
+            String name = NAME_PREFIX + archive.getName();
+            this.served.put(name, archive);
+
+            File recorded = new File(this.runtimesFolder, String.format("assets/%d-%s-%s.json", version, os, arch));
+            String body;
+            if (recorded.isFile()) {
+                // Point the package at us, keep everything else as recorded.
+                body = Files.readString(recorded.toPath())
+                    .replaceAll("(\"package\"\\s*:\\s*\\{[^}]*?\"link\"\\s*:\\s*\")[^\"]*(\")", "$1/binary/" + name + "$2")
+                    .replaceAll("(\"package\"\\s*:\\s*\\{[^}]*?\"name\"\\s*:\\s*\")[^\"]*(\")", "$1" + name + "$2");
+            } else {
+                body = String.format(
+                    "[{\"binary\":{\"image_type\":\"jre\",\"os\":\"%s\",\"architecture\":\"%s\",\"package\":{\"name\":\"%s\",\"link\":\"/binary/%s\",\"size\":%d}},\"release_name\":\"jdk-%d-benchmark\",\"vendor\":\"eclipse\"}]",
+                    query.get("os"), query.get("architecture"), name, name, archive.length(), version
+                );
+            }
+            respond(exchange, 200, body);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to handle %s:\n%s", exchange.getRequestURI(), e);
+            respond(exchange, 500, "[]");
+        }
+    }
+
+    private void handleBinary(HttpExchange exchange) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring("/binary/".length());
+        File archive = this.served.get(name);
+        if (archive == null) {
+            respond(exchange, 404, "");
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, archive.length());
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(archive.toPath(), out);
+        }
+    }
+
+    private @Nullable File findArchive(int version, OperatingSystem os, Architecture arch) throws IOException {
+        try {
+            return new DirectoryProvider(this.runtimesFolder).provide(version, os, arch);
+        } catch (IllegalArgumentException e) {
+            if (!this.synthetic) {
+                LOGGER.warn("%s", e.getMessage());
+                return null;
+            }
+        }
+
+        Archives.Format format = os == OperatingSystem.windows ? Archives.Format.ZIP : Archives.Format.TAR_GZ;
+        File archive = new File(this.runtimesFolder, String.format("%d-%s-%s%s", version, os, arch, format.extension));
+        synchronized (this) {
+            if (!archive.isFile()) {
+                LOGGER.info("Making up a JRE archive for %d-%s-%s.", version, os, arch);
+                this.runtimesFolder.mkdirs();
+                createSyntheticRuntime(version, os, archive, format);
+            }
+        }
+        return archive;
+    }
+
+    /**
+     * Lays out something that looks like an Adoptium JRE to the bundler, with a
+     * realistically sized (and compressible) modules file. Nothing in it runs.
+     */
+    private static void createSyntheticRuntime(int version, OperatingSystem os, File archive, Archives.Format format) throws IOException {
+        String root = String.format("jdk-%d-jre/", version);
+        String home = os == OperatingSystem.macosx ? root + "Contents/Home/" : root;
+        String exe = os == OperatingSystem.windows ? ".exe" : "";
+        String lib = os == OperatingSystem.windows ? "bin/" : "lib/";
+        String library = os == OperatingSystem.windows ? "%s.dll" : os == OperatingSystem.macosx ? "lib%s.dylib" : "lib%s.so";
+
+        Random random = new Random(version); // The same archive every time.
+        BundleTree tree = new BundleTree()
+            .addBytes(home + "bin/java" + exe, randomBytes(random, 16 * 1024, false))
+            .markExecutable(home + "bin/java" + exe)
+            .addBytes(home + "lib/modules", randomBytes(random, 40 * 1024 * 1024, true))
+            .addBytes(home + lib + "server/" + String.format(library, "jvm"), randomBytes(random, 12 * 1024 * 1024, false))
+            .addString(home + "release", "JAVA_VERSION=\"" + version + "\"\n");
+        for (String name : new String[] {
+                "java",
+                "net",
+                "nio",
+                "zip",
+                "awt",
+                "fontmanager"
+        }) {
+            tree.addBytes(home + lib + String.format(library, name), randomBytes(random, 256 * 1024, false));
+        }
+        for (int i = 0; i < 64; i++) {
+            tree.addString(home + "legal/java.base/LICENSE-" + i, "Not a real license.\n".repeat(200));
+        }
+        if (os == OperatingSystem.windows) {
+            tree.addBytes(home + "bin/javaw.exe", randomBytes(random, 16 * 1024, false));
+        }
+        if (os == OperatingSystem.macosx) {
+            tree.addString(root + "Contents/Info.plist", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<plist version=\"1.0\"><dict></dict></plist>\n");
+        }
+
+        File tempFile = new File(archive.getParentFile(), archive.getName() + ".part");
+        ArchiveCreator.create(format, tree, tempFile);
+        if (!tempFile.renameTo(archive)) {
+            throw new IOException("Unable to move the synthetic runtime into place.");
+        }
+    }
+
+    /**
+     * @param compressible Roughly as compressible as class files, otherwise like
+     *                     native code.
+     */
+    private static byte[] randomBytes(Random random, int size, boolean compressible) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        if (compressible) {
+            // Squash the alphabet and repeat runs, which deflates to about a third.
+            for (int i = 0; i < size; i++) {
+                bytes[i] = (i % 64 < 40) ? (byte) ('a' + (bytes[i] & 0x07)) : bytes[i];
+            }
+        } else {
+            for (int i = 0; i < size; i += 4) {
+                bytes[i] = 0;
+            }
+        }
+        return bytes;
+    }
+
+    @Nullable
+    private static <T> T reverse(Map<T, String> mapping, @Nullable String value) {
+        for (Map.Entry<T, String> entry : mapping.entrySet()) {
+            if (entry.getValue().equals(value)) return entry.getKey();
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseQuery(@Nullable String query) {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) return result;
+
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx == -1) continue;
+            result.put(URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,296 @@
+package co.casterlabs.jcup.bundler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import co.casterlabs.jcup.bundler.BundlePlan;
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.JCupAbortException;
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.Workspace;
+import co.casterlabs.jcup.bundler.config.Config;
+import co.casterlabs.jcup.bundler.runtime.RuntimeProvider;
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.annotating.JsonClass;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Runs the whole bundler, end to end, against a local stand-in for Adoptium
+ * (see {@link AdoptiumStandIn}), so the results only depend on this machine.
+ *
+ * Cold runs start without the download cache, build folder or artifacts, warm
+ * runs keep whatever the previous run left behind. Both happen in this JVM, so
+ * "cold" is about the caches, not the JIT.
+ */
+@Command(name = "bundle-benchmark", mixinStandardHelpOptions = true, description = "Measures how long bundling takes, without the network.")
+public class BundleBenchmark implements Runnable {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("BundleBenchmark");
+    private static final File RESULTS_FOLDER = new File(JCup.BASE_FOLDER, "benchmarks");
+
+    @Option(names = {
+            "-c",
+            "--config"
+    }, description = "A config to bundle, can be given multiple times. Defaults to jcup/config.json. Their runtime settings are ignored.")
+    private List<File> configFiles = new ArrayList<>();
+
+    @Option(names = {
+            "-r",
+            "--runtimes"
+    }, description = "A folder of JRE archives to serve, named like the `directory` runtime provider expects. Defaults to jcup/benchmark-runtimes.")
+    private File runtimesFolder = new File(JCup.BASE_FOLDER, "benchmark-runtimes");
+
+    @Option(names = {
+            "--synthetic"
+    }, description = "Makes up (and keeps) a fake JRE archive for any target that doesn't have one.")
+    private boolean synthetic = false;
+
+    @Option(names = {
+            "-n",
+            "--runs"
+    }, description = "How many times to bundle, per mode. Defaults to 3.")
+    private int runs = 3;
+
+    @Option(names = {
+            "--skip-cold"
+    }, description = "Only measures warm runs.")
+    private boolean skipCold = false;
+
+    @Option(names = {
+            "-j",
+            "--jobs"
+    }, description = "How many targets to bundle at once. Defaults to 1.")
+    private int jobs = 1;
+
+    @Override
+    public void run() {
+        if (this.runs < 1) {
+            LOGGER.fatal("--runs must be at least 1, aborting.");
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+        if (this.jobs < 1) {
+            LOGGER.fatal("--jobs must be at least 1, aborting.");
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        if (this.configFiles.isEmpty()) {
+            this.configFiles.add(new File(JCup.BASE_FOLDER, "config.json"));
+        }
+
+        List<Config> configs = new ArrayList<>();
+        for (File configFile : this.configFiles) {
+            try {
+                configs.add(Rson.DEFAULT.fromJson(Files.readString(configFile.toPath()), Config.class));
+            } catch (IOException e) {
+                LOGGER.fatal("Unable to read config %s, aborting.\n%s", configFile, e);
+                System.exit(JCup.EXIT_CODE_ERROR);
+                return;
+            }
+        }
+
+        boolean canDropCaches = !this.skipCold && LaunchBenchmark.dropCaches();
+
+        try (AdoptiumStandIn standIn = new AdoptiumStandIn(this.runtimesFolder, this.synthetic)) {
+            for (Config config : configs) {
+                config.runtime.provider = RuntimeProvider.Type.mirror;
+                config.runtime.url = standIn.getUrl();
+            }
+
+            Result result = new Result();
+            result.timestamp = System.currentTimeMillis();
+            result.threads = Runtime.getRuntime().availableProcessors();
+            result.jobs = this.jobs;
+            result.pageCacheDropped = canDropCaches;
+
+            if (!this.skipCold) {
+                LOGGER.info("Bundling cold, %d times.", this.runs);
+                List<Run> runs = new ArrayList<>();
+                for (int i = 0; i < this.runs; i++) {
+                    clearCaches(standIn);
+                    if (canDropCaches) LaunchBenchmark.dropCaches();
+                    runs.add(bundle(configs, this.jobs));
+                }
+                result.cold = Stats.of(runs);
+                report("cold", result.cold);
+            }
+
+            LOGGER.info("Bundling warm, %d times (after a warmup run).", this.runs);
+            bundle(configs, this.jobs);
+            List<Run> runs = new ArrayList<>();
+            for (int i = 0; i < this.runs; i++) {
+                runs.add(bundle(configs, this.jobs));
+            }
+            result.warm = Stats.of(runs);
+            report("warm", result.warm);
+
+            File resultFile = new File(RESULTS_FOLDER, String.format("bundle-%d.json", result.timestamp));
+            RESULTS_FOLDER.mkdirs();
+            Files.writeString(resultFile.toPath(), Rson.DEFAULT.toJson(result).toString(true));
+            LOGGER.info("Wrote results to %s", resultFile.getAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.fatal("Unable to run the benchmark, aborting.\n%s", e);
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        } catch (JCupAbortException e) {
+            System.exit(e.desiredExitCode);
+            return;
+        }
+
+        Workspace.awaitCleanup();
+    }
+
+    private static Run bundle(List<Config> configs, int jobs) throws JCupAbortException {
+        // Start from a clean heap, so the peak is this run's.
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        BundlePlan plan = new BundlePlan(jobs);
+        for (Config config : configs) {
+            plan.add(config);
+        }
+
+        long bytesWritten = bytesWritten();
+        long cpuStart = cpuTime();
+        long start = System.nanoTime();
+        plan.execute();
+
+        Run run = new Run();
+        run.wallNanos = System.nanoTime() - start;
+        run.cpuNanos = cpuTime() - cpuStart;
+        run.bytesWritten = bytesWritten == -1 ? -1 : bytesWritten() - bytesWritten;
+        run.targetNanos = plan.getTargetNanos();
+        for (MemoryPoolMXBean pool : heapPools) {
+            run.peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        // Lets the next run start without the deletions still going on.
+        Workspace.awaitCleanup();
+        return run;
+    }
+
+    /**
+     * Brings back the state of a first ever run. Only the archives we served are
+     * removed from the download cache.
+     */
+    private static void clearCaches(AdoptiumStandIn standIn) {
+        for (String name : standIn.servedNames()) {
+            new File(JCup.DOWNLOAD_CACHE_FOLDER, name).delete();
+        }
+
+        for (File folder : new File[] {
+                JCup.BUILD_FOLDER,
+                JCup.ARTIFACTS_FOLDER
+        }) {
+            File[] files = folder.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (file.getName().startsWith(".")) continue; // The Workspace's own folders.
+                Workspace.delete(file);
+            }
+        }
+        Workspace.awaitCleanup();
+    }
+
+    /**
+     * @return the CPU time of the whole process (every thread, including the
+     *         stand-in's), in nanoseconds.
+     */
+    private static long cpuTime() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bytes this process caused to be written to storage, or -1 if the
+     *         OS doesn't tell us (it's Linux only).
+     */
+    private static long bytesWritten() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/io").toPath())) {
+                if (line.startsWith("write_bytes:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+
+    private static void report(String mode, Stats stats) {
+        LOGGER.info(
+            "    %s: wall p50 %dms  max %dms, CPU p50 %dms, peak heap p50 %s, written p50 %s",
+            mode, stats.wallMillis.get("p50"), stats.wallMillis.get("max"), stats.cpuMillis.get("p50"),
+            Utils.formatBytes(stats.peakHeap.get("p50")), stats.bytesWritten.get("p50") == -1 ? "unknown" : Utils.formatBytes(stats.bytesWritten.get("p50"))
+        );
+        for (Map.Entry<String, Map<String, Long>> target : stats.targetMillis.entrySet()) {
+            LOGGER.info("        %-40s p50 %dms  max %dms", target.getKey(), target.getValue().get("p50"), target.getValue().get("max"));
+        }
+    }
+
+    private static class Run {
+        private long wallNanos;
+        private long cpuNanos;
+        private long peakHeap;
+        private long bytesWritten;
+        private Map<String, Long> targetNanos;
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Result {
+        public long timestamp;
+        public int threads;
+        public int jobs;
+        public boolean pageCacheDropped;
+
+        public Stats cold;
+        public Stats warm;
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Stats {
+        public int runs;
+        public Map<String, Long> wallMillis;
+        public Map<String, Long> cpuMillis;
+        public Map<String, Long> peakHeap;
+        public Map<String, Long> bytesWritten;
+        public Map<String, Map<String, Long>> targetMillis = new LinkedHashMap<>();
+
+        private static Stats of(List<Run> runs) {
+            Stats stats = new Stats();
+            stats.runs = runs.size();
+            stats.wallMillis = LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong((r) -> TimeUnit.NANOSECONDS.toMillis(r.wallNanos)).toArray());
+            stats.cpuMillis = LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong((r) -> TimeUnit.NANOSECONDS.toMillis(r.cpuNanos)).toArray());
+            stats.peakHeap = LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong((r) -> r.peakHeap).toArray());
+            stats.bytesWritten = LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong((r) -> r.bytesWritten).toArray());
+
+            for (String target : runs.get(0).targetNanos.keySet()) {
+                stats.targetMillis.put(
+                    target,
+                    LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong((r) -> TimeUnit.NANOSECONDS.toMillis(r.targetNanos.getOrDefault(target, 0L))).toArray())
+                );
+            }
+            return stats;
+        }
+    }
+
+}
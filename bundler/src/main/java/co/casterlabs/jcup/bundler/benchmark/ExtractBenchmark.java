@@ -0,0 +1,180 @@
+package co.casterlabs.jcup.bundler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.Workspace;
+import co.casterlabs.jcup.bundler.archive.ArchiveExtractor;
+import co.casterlabs.jcup.bundler.archive.Archives;
+import co.casterlabs.jcup.bundler.archive.Decompressors;
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.annotating.JsonClass;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Compares the sequential and parallel decompression (see
+ * {@link Decompressors}) on real archives, e.g the JREs in the download cache.
+ * Both only decoding and the full extraction are measured.
+ */
+@Command(name = "extract-benchmark", mixinStandardHelpOptions = true, description = "Measures how long runtime archives take to extract.")
+public class ExtractBenchmark implements Runnable {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("ExtractBenchmark");
+    private static final File RESULTS_FOLDER = new File(JCup.BASE_FOLDER, "benchmarks");
+
+    private static final String[] MODES = {
+            "sequential",
+            "parallel"
+    };
+
+    @Option(names = {
+            "-n",
+            "--runs"
+    }, description = "How many times to extract each archive, per mode. Defaults to 5.")
+    private int runs = 5;
+
+    @Option(names = {
+            "--decode-only"
+    }, description = "Only measures the decompression, without writing any files.")
+    private boolean decodeOnly = false;
+
+    @Parameters(description = "The archives to extract (.tar.gz or .tar.xz). Defaults to every one in jcup/download-cache.")
+    private List<File> archives = new ArrayList<>();
+
+    @Override
+    public void run() {
+        if (this.runs < 1) {
+            LOGGER.fatal("--runs must be at least 1, aborting.");
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        if (this.archives.isEmpty()) {
+            File[] found = JCup.DOWNLOAD_CACHE_FOLDER.listFiles((dir, name) -> name.endsWith(Archives.Format.TAR_GZ.extension) || name.endsWith(Archives.Format.TAR_XZ.extension));
+            if (found != null) {
+                Arrays.sort(found);
+                this.archives.addAll(Arrays.asList(found));
+            }
+        }
+        if (this.archives.isEmpty()) {
+            LOGGER.fatal("No archives to benchmark, bundle something first to fill the download cache. Aborting.");
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        boolean canDropCaches = LaunchBenchmark.dropCaches();
+        if (!canDropCaches) {
+            LOGGER.warn("Unable to drop the page cache (this needs root), the archive will be read from memory after the first run.");
+        }
+
+        try {
+            for (File archive : this.archives) {
+                Archives.Format format = Archives.probeFormat(archive);
+                if (format != Archives.Format.TAR_GZ && format != Archives.Format.TAR_XZ) {
+                    LOGGER.warn("%s isn't a .tar.gz or .tar.xz, skipping.", archive);
+                    continue;
+                }
+
+                Result result = new Result();
+                result.archive = archive.getName();
+                result.timestamp = System.currentTimeMillis();
+                result.archiveSize = archive.length();
+                result.threads = Runtime.getRuntime().availableProcessors();
+                result.pageCacheDropped = canDropCaches;
+                result.decodeOnly = this.decodeOnly;
+
+                LOGGER.info("%s %s (%s), %d times per mode.", this.decodeOnly ? "Decoding" : "Extracting", archive.getName(), Utils.formatBytes(archive.length()), this.runs);
+                for (String mode : MODES) {
+                    boolean parallel = mode.equals("parallel");
+
+                    long[] millis = new long[this.runs];
+                    for (int i = 0; i < this.runs; i++) {
+                        if (canDropCaches) LaunchBenchmark.dropCaches();
+
+                        long nanos = this.decodeOnly ? decode(format, archive, parallel, result) : extract(format, archive, parallel, result);
+                        millis[i] = TimeUnit.NANOSECONDS.toMillis(nanos);
+                    }
+
+                    Map<String, Long> stats = LaunchBenchmark.Stats.percentiles(millis);
+                    result.millis.put(mode, stats);
+                    LOGGER.info(
+                        "    %-10s  min %dms  p50 %dms  max %dms  (%s/s)",
+                        mode, stats.get("min"), stats.get("p50"), stats.get("max"),
+                        Utils.formatBytes(result.uncompressedSize * 1000 / Math.max(1, stats.get("p50")))
+                    );
+                }
+
+                File resultFile = new File(RESULTS_FOLDER, String.format("%s-%d.json", archive.getName(), result.timestamp));
+                RESULTS_FOLDER.mkdirs();
+                Files.writeString(resultFile.toPath(), Rson.DEFAULT.toJson(result).toString(true));
+                LOGGER.info("Wrote results to %s", resultFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            LOGGER.fatal("Unable to run the benchmark, aborting.\n%s", e);
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        Workspace.awaitCleanup();
+    }
+
+    /**
+     * @return how long it took, in nanoseconds.
+     */
+    private static long decode(Archives.Format format, File archive, boolean parallel, Result result) throws IOException {
+        long start = System.nanoTime();
+        try (InputStream in = Decompressors.open(format, archive, parallel)) {
+            result.uncompressedSize = in.transferTo(OutputStream.nullOutputStream());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return how long it took, in nanoseconds.
+     */
+    private static long extract(Archives.Format format, File archive, boolean parallel, Result result) throws IOException {
+        File folder = Workspace.stage("benchmark");
+        try {
+            long start = System.nanoTime();
+            ArchiveExtractor.extract(format, archive, folder, UnaryOperator.identity(), parallel);
+            long nanos = System.nanoTime() - start;
+
+            try (Stream<Path> files = Files.walk(folder.toPath())) {
+                result.uncompressedSize = files.filter(Files::isRegularFile).mapToLong((f) -> f.toFile().length()).sum();
+            }
+            return nanos;
+        } finally {
+            Workspace.delete(folder);
+        }
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Result {
+        public String archive;
+        public long timestamp;
+        public long archiveSize;
+        public long uncompressedSize;
+        public int threads;
+        public boolean pageCacheDropped;
+        public boolean decodeOnly;
+
+        public Map<String, Map<String, Long>> millis = new LinkedHashMap<>();
+    }
+
+}
@@ -0,0 +1,336 @@
+package co.casterlabs.jcup.bundler.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.Workspace;
+import co.casterlabs.jcup.bundler.archive.BundleTree;
+import co.casterlabs.jcup.bundler.archive.PathMapping;
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.annotating.JsonClass;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Launches bundled artifacts through their real launcher and times them. Only
+ * artifacts that can run on this machine are supported, which for now means
+ * {@code linux_glibc}/{@code x86_64}.
+ *
+ * The app is expected to print {@link #DEFAULT_MARKER} as soon as it reaches
+ * main when {@code JCUP_BENCHMARK} is set, and then exit (see the example-app).
+ */
+@Command(name = "launch-benchmark", mixinStandardHelpOptions = true, description = "Measures how long bundled artifacts take to start.")
+public class LaunchBenchmark implements Runnable {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("LaunchBenchmark");
+    private static final File RESULTS_FOLDER = new File(JCup.BASE_FOLDER, "benchmarks");
+
+    public static final String DEFAULT_MARKER = "JCUP_BENCHMARK_MAIN";
+
+    private static final String HOST_TARGET = "-linux_glibc-x86_64.tar.gz"; // What LinuxBundler names them.
+
+    @Option(names = {
+            "-n",
+            "--runs"
+    }, description = "How many times to launch each artifact, per mode. Defaults to 20.")
+    private int runs = 20;
+
+    @Option(names = {
+            "-w",
+            "--warmup"
+    }, description = "How many unmeasured launches to do before the warm runs. Defaults to 3.")
+    private int warmup = 3;
+
+    @Option(names = {
+            "--marker"
+    }, description = "The line the app prints once it reaches main. Defaults to " + DEFAULT_MARKER + ".")
+    private String marker = DEFAULT_MARKER;
+
+    @Option(names = {
+            "--kill-after-main"
+    }, description = "Kills the app once it prints the marker, for apps that don't exit on their own.")
+    private boolean killAfterMain = false;
+
+    @Option(names = {
+            "--timeout"
+    }, description = "How long to wait for each launch, in seconds. Defaults to 30.")
+    private int timeout = 30;
+
+    @Option(names = {
+            "--skip-cold"
+    }, description = "Only measures warm launches.")
+    private boolean skipCold = false;
+
+    @Parameters(description = "The artifacts to launch. Defaults to every " + HOST_TARGET + " in jcup/artifacts.")
+    private List<File> artifacts = new ArrayList<>();
+
+    @Override
+    public void run() {
+        if (!System.getProperty("os.name", "").toLowerCase().contains("linux") || !System.getProperty("os.arch", "").matches("amd64|x86_64")) {
+            LOGGER.fatal("Launch benchmarks can only run on linux x86_64, aborting.");
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        if (this.runs < 1) {
+            LOGGER.fatal("--runs must be at least 1, aborting.");
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        if (this.artifacts.isEmpty()) {
+            File[] found = JCup.ARTIFACTS_FOLDER.listFiles((dir, name) -> name.endsWith(HOST_TARGET));
+            if (found != null) {
+                Arrays.sort(found);
+                this.artifacts.addAll(Arrays.asList(found));
+            }
+        }
+        if (this.artifacts.isEmpty()) {
+            LOGGER.fatal("No %s artifacts to benchmark, bundle some first. Aborting.", HOST_TARGET);
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        boolean canDropCaches = !this.skipCold && dropCaches();
+        if (!this.skipCold && !canDropCaches) {
+            LOGGER.warn("Unable to drop the page cache (this needs root), cold runs will only use a fresh copy of the bundle each time.");
+        }
+
+        try {
+            for (File artifact : this.artifacts) {
+                if (!artifact.getName().endsWith(HOST_TARGET)) {
+                    LOGGER.warn("%s isn't a %s artifact, skipping.", artifact, HOST_TARGET);
+                    continue;
+                }
+
+                Result result = new Result();
+                result.artifact = artifact.getName();
+                result.timestamp = System.currentTimeMillis();
+                result.pageCacheDropped = canDropCaches;
+
+                if (!this.skipCold) {
+                    LOGGER.info("Launching %s cold, %d times.", artifact.getName(), this.runs);
+                    List<Launch> launches = new ArrayList<>(this.runs);
+                    for (int i = 0; i < this.runs; i++) {
+                        // A fresh copy each time, so nothing from the last run is left around.
+                        File folder = unpack(artifact);
+                        if (canDropCaches) dropCaches();
+                        launches.add(this.launch(folder, artifactName(artifact)));
+                        Workspace.delete(folder);
+                    }
+                    result.cold = Stats.of(launches);
+                    report("cold", result.cold);
+                }
+
+                LOGGER.info("Launching %s warm, %d times (after %d warmup runs).", artifact.getName(), this.runs, this.warmup);
+                File folder = unpack(artifact);
+                for (int i = 0; i < this.warmup; i++) {
+                    this.launch(folder, artifactName(artifact));
+                }
+                List<Launch> launches = new ArrayList<>(this.runs);
+                for (int i = 0; i < this.runs; i++) {
+                    launches.add(this.launch(folder, artifactName(artifact)));
+                }
+                Workspace.delete(folder);
+                result.warm = Stats.of(launches);
+                report("warm", result.warm);
+
+                File resultFile = new File(RESULTS_FOLDER, String.format("%s-%d.json", artifact.getName(), result.timestamp));
+                RESULTS_FOLDER.mkdirs();
+                Files.writeString(resultFile.toPath(), Rson.DEFAULT.toJson(result).toString(true));
+                LOGGER.info("Wrote results to %s", resultFile.getAbsolutePath());
+            }
+        } catch (IOException | InterruptedException e) {
+            LOGGER.fatal("Unable to run the benchmark, aborting.\n%s", e);
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        Workspace.awaitCleanup();
+    }
+
+    private Launch launch(File folder, String executableName) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(new File(folder, executableName).getAbsolutePath())
+            .directory(folder)
+            .redirectErrorStream(true);
+        builder.environment().put("JCUP_BENCHMARK", "1");
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+
+        // Peak RSS can only be read while the processes are alive, so we sample it.
+        MemorySampler sampler = new MemorySampler(process.toHandle());
+        sampler.start();
+
+        Launch launch = new Launch();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (launch.mainNanos == -1 && line.trim().equals(this.marker)) {
+                    launch.mainNanos = System.nanoTime() - start;
+                    if (this.killAfterMain) {
+                        process.descendants().forEach(ProcessHandle::destroy);
+                        process.destroy();
+                    }
+                } else {
+                    LOGGER.trace("App: %s", line);
+                }
+            }
+        }
+
+        if (!process.waitFor(this.timeout, TimeUnit.SECONDS)) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            throw new IOException("Launch timed out after " + this.timeout + "s.");
+        }
+        launch.exitNanos = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+        launch.peakRss = sampler.peak;
+
+        if (launch.mainNanos == -1) {
+            throw new IOException("The app exited (code " + process.exitValue() + ") without printing " + this.marker + ", is it set up for benchmarking?");
+        }
+        return launch;
+    }
+
+    private static void report(String mode, Stats stats) {
+        LOGGER.info("    %s: main  p50 %dms  p90 %dms  p99 %dms  max %dms", mode, stats.mainMillis.get("p50"), stats.mainMillis.get("p90"), stats.mainMillis.get("p99"), stats.mainMillis.get("max"));
+        LOGGER.info("    %s: exit  p50 %dms  p90 %dms  p99 %dms  max %dms", mode, stats.exitMillis.get("p50"), stats.exitMillis.get("p90"), stats.exitMillis.get("p99"), stats.exitMillis.get("max"));
+        LOGGER.info("    %s: peak RSS  p50 %s  max %s", mode, Utils.formatBytes(stats.peakRss.get("p50")), Utils.formatBytes(stats.peakRss.get("max")));
+    }
+
+    private static File unpack(File artifact) throws IOException {
+        File folder = Workspace.stage("benchmark");
+        new BundleTree()
+            .addArchive(artifact, PathMapping.create())
+            .materialize(folder);
+        return folder;
+    }
+
+    private static String artifactName(File artifact) {
+        String name = artifact.getName();
+        return name.substring(0, name.length() - HOST_TARGET.length());
+    }
+
+    /**
+     * @return whether or not we were allowed to.
+     */
+    static boolean dropCaches() {
+        try {
+            new ProcessBuilder("sync").start().waitFor();
+            Files.writeString(new File("/proc/sys/vm/drop_caches").toPath(), "3");
+            return true;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static class MemorySampler extends Thread {
+        private final ProcessHandle process;
+        private long peak = 0;
+
+        private MemorySampler(ProcessHandle process) {
+            this.process = process;
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!this.isInterrupted() && this.process.isAlive()) {
+                // The launcher script and the JVM, the JVM is what matters though.
+                long total = rssOf(this.process.pid()) + this.process.descendants().mapToLong((p) -> rssOf(p.pid())).sum();
+                this.peak = Math.max(this.peak, total);
+
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the peak resident set size (VmHWM) of the process, or 0 if it's
+         *         gone.
+         */
+        private static long rssOf(long pid) {
+            try {
+                for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath())) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {}
+            return 0;
+        }
+    }
+
+    private static class Launch {
+        private long mainNanos = -1;
+        private long exitNanos = -1;
+        private long peakRss = 0;
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Result {
+        public String artifact;
+        public long timestamp;
+        public boolean pageCacheDropped;
+
+        public @Nullable Stats cold;
+        public Stats warm;
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Stats {
+        public int runs;
+        public Map<String, Long> mainMillis;
+        public Map<String, Long> exitMillis;
+        public Map<String, Long> peakRss;
+
+        private static Stats of(List<Launch> launches) {
+            Stats stats = new Stats();
+            stats.runs = launches.size();
+            stats.mainMillis = percentiles(launches.stream().mapToLong((l) -> TimeUnit.NANOSECONDS.toMillis(l.mainNanos)).toArray());
+            stats.exitMillis = percentiles(launches.stream().mapToLong((l) -> TimeUnit.NANOSECONDS.toMillis(l.exitNanos)).toArray());
+            stats.peakRss = percentiles(launches.stream().mapToLong((l) -> l.peakRss).toArray());
+            return stats;
+        }
+
+        static Map<String, Long> percentiles(long[] values) {
+            Arrays.sort(values);
+            Map<String, Long> result = new LinkedHashMap<>();
+            result.put("min", values[0]);
+            result.put("p50", percentile(values, 50));
+            result.put("p90", percentile(values, 90));
+            result.put("p99", percentile(values, 99));
+            result.put("max", values[values.length - 1]);
+            return result;
+        }
+
+        /**
+         * Nearest-rank.
+         */
+        private static long percentile(long[] sorted, int percentile) {
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
+}
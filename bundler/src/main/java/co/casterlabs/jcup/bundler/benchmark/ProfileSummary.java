@@ -0,0 +1,320 @@
+package co.casterlabs.jcup.bundler.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.JCup;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Summarizes what the launchers' startup profiling mode recorded (see
+ * {@link co.casterlabs.jcup.bundler.config.Config.ProfilingConfig}): the time
+ * from the launcher to the JVM to main() and on to any later marks, and how
+ * much class loading, JIT and GC happened before startup was done.
+ *
+ * Each launch is a line per phase in the folder's startup.log (written by the
+ * launcher and the companion's StartupProfile) plus a startup-<run>.jfr
+ * recording.
+ */
+@Command(name = "profile-summary", mixinStandardHelpOptions = true, description = "Summarizes the startup profiles recorded by the launchers.")
+public class ProfileSummary implements Runnable {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("ProfileSummary");
+
+    private static final Pattern RECORDING_NAME = Pattern.compile("startup-(\\d+)\\.jfr");
+    private static final String LOG_FILE = "startup.log";
+    private static final Set<String> EARLY_MARKS = Set.of("launch", "jvm", "main");
+
+    @Option(names = {
+            "-w",
+            "--window"
+    }, description = "How long after the JVM started counts as startup, in milliseconds, for launches without a mark after main. Defaults to 5000.")
+    private long windowMillis = 5000;
+
+    @Option(names = {
+            "--top"
+    }, description = "How many of the hottest methods to list. Defaults to 10.")
+    private int top = 10;
+
+    @Parameters(description = "Profile folders (e.g as sent in by users) or single recordings. Defaults to every app's folder on this machine.")
+    private List<File> inputs = new ArrayList<>();
+
+    @Override
+    public void run() {
+        if (this.inputs.isEmpty()) {
+            File[] folders = localProfilesFolder().listFiles(File::isDirectory);
+            if (folders != null) {
+                Arrays.sort(folders);
+                this.inputs.addAll(Arrays.asList(folders));
+            }
+        }
+
+        Map<String, Run> runs = new TreeMap<>();
+        try {
+            for (File input : this.inputs) {
+                File folder = input.isDirectory() ? input : input.getAbsoluteFile().getParentFile();
+                readLog(new File(folder, LOG_FILE), runs);
+
+                File[] recordings = input.isDirectory() ? input.listFiles((dir, name) -> RECORDING_NAME.matcher(name).matches()) : new File[] {
+                        input
+                };
+                if (recordings == null) continue;
+
+                for (File recording : recordings) {
+                    Matcher matcher = RECORDING_NAME.matcher(recording.getName());
+                    String id = matcher.matches() ? matcher.group(1) : recording.getName();
+                    runs.computeIfAbsent(id, Run::new).recording = recording;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.fatal("Unable to read the startup log, aborting.\n%s", e);
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        if (runs.isEmpty()) {
+            LOGGER.fatal("No startup profiles found in %s, aborting.", this.inputs.isEmpty() ? localProfilesFolder() : this.inputs);
+            System.exit(JCup.EXIT_CODE_ERROR);
+            return;
+        }
+
+        Map<String, Long> hotMethods = new HashMap<>();
+        for (Run run : runs.values()) {
+            if (run.recording == null) continue;
+            try {
+                run.analyze(this.windowMillis, hotMethods);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read %s, skipping it.\n%s", run.recording, e);
+                run.recording = null;
+            }
+        }
+
+        this.report(new ArrayList<>(runs.values()), hotMethods);
+    }
+
+    private void report(List<Run> runs, Map<String, Long> hotMethods) {
+        LOGGER.info("%d launch(es), %d with a recording.", runs.size(), runs.stream().filter((r) -> r.recording != null).count());
+
+        // Phases, slowest first.
+        Map<String, List<Long>> phases = new LinkedHashMap<>();
+        for (Run run : runs) {
+            List<Map.Entry<String, Long>> marks = run.sortedMarks();
+            for (int i = 1; i < marks.size(); i++) {
+                String phase = marks.get(i - 1).getKey() + " -> " + marks.get(i).getKey();
+                phases.computeIfAbsent(phase, (k) -> new ArrayList<>()).add(marks.get(i).getValue() - marks.get(i - 1).getValue());
+            }
+        }
+
+        Map<String, Map<String, Long>> phaseStats = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Long>> phase : phases.entrySet()) {
+            phaseStats.put(phase.getKey(), LaunchBenchmark.Stats.percentiles(phase.getValue().stream().mapToLong(Long::longValue).toArray()));
+        }
+
+        LOGGER.info("Phases (slowest first):");
+        phaseStats.entrySet()
+            .stream()
+            .sorted(Comparator.comparing((Map.Entry<String, Map<String, Long>> e) -> e.getValue().get("p50")).reversed())
+            .forEach((e) -> LOGGER.info("    %-32s p50 %dms  p90 %dms  max %dms  (%d)", e.getKey(), e.getValue().get("p50"), e.getValue().get("p90"), e.getValue().get("max"), phases.get(e.getKey()).size()));
+        if (phaseStats.isEmpty()) {
+            LOGGER.info("    None, the app needs to call StartupProfile.mark() from the companion library.");
+        }
+
+        List<Run> recorded = runs.stream().filter((r) -> r.recording != null).collect(Collectors.toList());
+        if (recorded.isEmpty()) return;
+
+        LOGGER.info("During startup:");
+        reportMetric(recorded, "Class loading", (r) -> r.classLoadNanos, (r) -> r.classesLoaded, "classes");
+        reportMetric(recorded, "JIT compilation", (r) -> r.compileNanos, (r) -> r.compilations, "methods");
+        reportMetric(recorded, "GC pauses", (r) -> r.gcPauseNanos, (r) -> r.gcs, "GCs");
+        reportMetric(recorded, "Safepoints", (r) -> r.safepointNanos, (r) -> r.safepoints, "safepoints");
+
+        if (!hotMethods.isEmpty() && this.top > 0) {
+            long total = hotMethods.values().stream().mapToLong(Long::longValue).sum();
+            LOGGER.info("Hottest methods (of %d samples):", total);
+            hotMethods.entrySet()
+                .stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(this.top)
+                .forEach((e) -> LOGGER.info("    %5.1f%%  %s", e.getValue() * 100.0 / total, e.getKey()));
+        }
+    }
+
+    private static void reportMetric(List<Run> runs, String name, ToLongFunction<Run> nanos, ToLongFunction<Run> count, String unit) {
+        Map<String, Long> time = LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong((r) -> TimeUnit.NANOSECONDS.toMillis(nanos.applyAsLong(r))).toArray());
+        Map<String, Long> counts = LaunchBenchmark.Stats.percentiles(runs.stream().mapToLong(count).toArray());
+        LOGGER.info("    %-16s p50 %dms  max %dms, p50 %d %s", name, time.get("p50"), time.get("max"), counts.get("p50"), unit);
+    }
+
+    /**
+     * Lines are {@code <run>\t<phase>\t<epoch millis>}.
+     */
+    private static void readLog(File log, Map<String, Run> runs) throws IOException {
+        if (!log.isFile()) return;
+
+        for (String line : Files.readAllLines(log.toPath())) {
+            String[] parts = line.split("\t");
+            if (parts.length != 3) continue;
+            try {
+                runs.computeIfAbsent(parts[0], Run::new).marks.put(parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException ignored) {}
+        }
+    }
+
+    /**
+     * @return where the launchers on this machine keep the profiles.
+     */
+    private static File localProfilesFolder() {
+        String home = System.getProperty("user.home");
+        String os = System.getProperty("os.name", "").toLowerCase();
+        if (os.contains("win")) {
+            String localAppData = System.getenv("LOCALAPPDATA");
+            return new File(localAppData == null ? home : localAppData, "jcup/profiles");
+        } else if (os.contains("mac")) {
+            return new File(home, "Library/Logs/jcup/profiles");
+        } else {
+            String stateHome = System.getenv("XDG_STATE_HOME");
+            return new File(stateHome == null ? home + "/.local/state" : stateHome, "jcup/profiles");
+        }
+    }
+
+    private static class Run {
+        private final String id;
+        private final Map<String, Long> marks = new LinkedHashMap<>(); // Phase -> epoch millis.
+        private @Nullable File recording;
+
+        private long classLoadNanos;
+        private long classesLoaded;
+        private long compileNanos;
+        private long compilations;
+        private long gcPauseNanos;
+        private long gcs;
+        private long safepointNanos;
+        private long safepoints;
+
+        private Run(String id) {
+            this.id = id;
+        }
+
+        private List<Map.Entry<String, Long>> sortedMarks() {
+            return this.marks.entrySet()
+                .stream()
+                .sorted(Map.Entry.comparingByValue())
+                .collect(Collectors.toList());
+        }
+
+        /**
+         * Startup is from the JVM starting to the last mark after main, or to the
+         * end of the window if there isn't one.
+         */
+        private void analyze(long windowMillis, Map<String, Long> hotMethods) throws IOException {
+            List<RecordedEvent> events = new ArrayList<>();
+            try (RecordingFile file = new RecordingFile(this.recording.toPath())) {
+                while (file.hasMoreEvents()) {
+                    RecordedEvent event = file.readEvent();
+                    if (event.getEventType().getName().equals("jdk.JVMInformation")) {
+                        this.marks.putIfAbsent("jvm", event.getInstant("jvmStartTime").toEpochMilli());
+                    } else {
+                        events.add(event);
+                    }
+                }
+            }
+
+            Long jvmStart = this.marks.get("jvm");
+            if (jvmStart == null) {
+                jvmStart = events.stream().mapToLong((e) -> e.getStartTime().toEpochMilli()).min().orElse(0);
+            }
+            long end = this.marks.entrySet()
+                .stream()
+                .filter((mark) -> !EARLY_MARKS.contains(mark.getKey()))
+                .mapToLong(Map.Entry::getValue)
+                .max()
+                .orElse(jvmStart + windowMillis);
+            Instant from = Instant.ofEpochMilli(jvmStart);
+            Instant to = Instant.ofEpochMilli(end);
+
+            // Class loads nest (loading a class loads its super classes), so only
+            // count the outermost ones.
+            Map<Long, List<long[]>> classLoads = new HashMap<>();
+            for (RecordedEvent event : events) {
+                if (event.getStartTime().isBefore(from) || !event.getStartTime().isBefore(to)) continue;
+
+                switch (event.getEventType().getName()) {
+                    case "jdk.ClassLoad":
+                        this.classesLoaded++;
+                        long thread = event.getThread() == null ? -1 : event.getThread().getJavaThreadId();
+                        classLoads.computeIfAbsent(thread, (k) -> new ArrayList<>()).add(new long[] {
+                                nanosOf(event.getStartTime()),
+                                nanosOf(event.getEndTime())
+                        });
+                        break;
+
+                    case "jdk.Compilation":
+                        this.compilations++;
+                        this.compileNanos += event.getDuration().toNanos();
+                        break;
+
+                    case "jdk.GarbageCollection":
+                        this.gcs++;
+                        this.gcPauseNanos += event.getDuration("sumOfPauses").toNanos();
+                        break;
+
+                    case "jdk.SafepointBegin":
+                        this.safepoints++;
+                        this.safepointNanos += event.getDuration().toNanos();
+                        break;
+
+                    case "jdk.ExecutionSample":
+                        RecordedStackTrace stackTrace = event.getStackTrace();
+                        if (stackTrace == null || stackTrace.getFrames().isEmpty()) break;
+                        RecordedFrame frame = stackTrace.getFrames().get(0);
+                        String method = frame.getMethod().getType().getName() + '.' + frame.getMethod().getName();
+                        hotMethods.merge(method, 1L, Long::sum);
+                        break;
+                }
+            }
+
+            for (List<long[]> intervals : classLoads.values()) {
+                intervals.sort(Comparator.comparingLong((i) -> i[0]));
+                long coveredUntil = Long.MIN_VALUE;
+                for (long[] interval : intervals) {
+                    long start = Math.max(interval[0], coveredUntil);
+                    if (interval[1] > start) {
+                        this.classLoadNanos += interval[1] - start;
+                    }
+                    coveredUntil = Math.max(coveredUntil, interval[1]);
+                }
+            }
+
+            LOGGER.debug("%s: %d classes loaded, %d compilations, %d GCs until %s.", this.id, this.classesLoaded, this.compilations, this.gcs, to);
+        }
+
+        private static long nanosOf(Instant instant) {
+            return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+        }
+    }
+
+}
@@ -1,11 +1,16 @@
 package co.casterlabs.jcup.bundler.config;
 
+import java.io.File;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import co.casterlabs.jcup.bundler.archive.SquashFsWriter;
+import co.casterlabs.jcup.bundler.runtime.RuntimeProvider;
 import co.casterlabs.rakurai.json.annotating.JsonClass;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
+import lombok.NonNull;
 
 @JsonClass(exposeAll = true)
 public class Config {
@@ -13,13 +18,38 @@ public class Config {
     public String executableId = "co.casterlabs.jcup.example_app";
     public String appIconPath = "jcup-example-app.png";
 
-    public String vmArgs = "-Xms1M -jar jcup-example-app.jar";
+    public String vmArgs = "-Xms1M -jar jcup-example-app.jar"; // Supports placeholders on Linux & macOS, see VmArgTemplates.
     public int javaVersion = 17;
+    public RuntimeConfig runtime = new RuntimeConfig();
+
+    public boolean streamArtifacts = false; // Skips the build folder and writes the artifacts directly.
+    public boolean incrementalArtifacts = true; // Copies unchanged entries from the previous .zip artifact instead of compressing them again.
+    public boolean selfExtracting = false; // Also produces a single-file executable, Linux only for now.
+    public boolean singleInstance = false; // The Linux launcher hands its args to the running instance, see jcup-companion.
+    public boolean sharedRuntime = false; // Linux & macOS launchers install the runtime once per user and share it between apps with the same runtime.
 
     public Map<String, String> mainInclude = Map.of(
         "jcup-example-app.jar", "jcup-example-app.jar"
     );
 
+    public FolderInclude[] folderInclude = {};
+
+    public PruneConfig prune = new PruneConfig(
+        new String[] {
+                "docs"
+        },
+        new String[0],
+        new String[0]
+    );
+
+    public AppImageConfig appImage = new AppImageConfig();
+    public JarOptimizationConfig jarOptimization = new JarOptimizationConfig();
+    public SizeBudgetConfig sizeBudget = new SizeBudgetConfig();
+    public CompressionConfig compression = new CompressionConfig();
+    public ProfilingConfig profiling = new ProfilingConfig();
+    public SplashConfig splash = new SplashConfig();
+    public OciConfig oci = new OciConfig();
+
     public OSSpecificConfig[] toCreate = {
             new OSSpecificConfig(
                 new OperatingSystem[] {
@@ -30,7 +60,8 @@ public class Config {
                         Architecture.x86
                 },
                 null,
-                Collections.emptyMap()
+                Collections.emptyMap(),
+                null
             ),
             new OSSpecificConfig(
                 new OperatingSystem[] {
@@ -43,7 +74,8 @@ public class Config {
                         Architecture.x86_64
                 },
                 null,
-                Collections.emptyMap()
+                Collections.emptyMap(),
+                null
             ),
             new OSSpecificConfig(
                 new OperatingSystem[] {
@@ -55,7 +87,8 @@ public class Config {
                         Architecture.aarch64
                 },
                 null,
-                Collections.emptyMap()
+                Collections.emptyMap(),
+                null
             ),
             new OSSpecificConfig(
                 new OperatingSystem[] {
@@ -65,10 +98,45 @@ public class Config {
                         Architecture.arm
                 },
                 null,
-                Collections.emptyMap()
+                Collections.emptyMap(),
+                null
             )
     };
 
+    /**
+     * Makes the paths in here absolute, for when they're relative to something
+     * other than the working directory (e.g a Maven module's folder).
+     */
+    public Config resolvePaths(@NonNull File base) {
+        this.appIconPath = resolve(base, this.appIconPath);
+        this.mainInclude = resolveKeys(base, this.mainInclude);
+        for (FolderInclude folder : this.folderInclude) {
+            folder.from = resolve(base, folder.from);
+        }
+        for (OSSpecificConfig ossc : this.toCreate) {
+            ossc.extraInclude = resolveKeys(base, ossc.extraInclude);
+        }
+        this.appImage.runtimePath = resolve(base, this.appImage.runtimePath);
+        this.jarOptimization.classList = resolve(base, this.jarOptimization.classList);
+        this.profiling.settingsPath = resolve(base, this.profiling.settingsPath);
+        this.splash.imagePath = resolve(base, this.splash.imagePath);
+        this.runtime.directory = resolve(base, this.runtime.directory);
+        this.oci.baseImagePath = resolve(base, this.oci.baseImagePath);
+        return this;
+    }
+
+    private static String resolve(File base, String path) {
+        if (path == null || new File(path).isAbsolute()) return path;
+        return new File(base, path).getPath();
+    }
+
+    private static Map<String, String> resolveKeys(File base, Map<String, String> map) {
+        if (map == null) return null;
+        Map<String, String> resolved = new LinkedHashMap<>();
+        map.forEach((path, to) -> resolved.put(resolve(base, path), to));
+        return resolved;
+    }
+
     @NoArgsConstructor
     @AllArgsConstructor
     @JsonClass(exposeAll = true)
@@ -78,6 +146,219 @@ public class Config {
 
         public String extraVmArgs;
         public Map<String, String> extraInclude;
+
+        public PruneConfig extraPrune;
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class AppImageConfig {
+        public boolean enabled = false; // Produces an .AppImage alongside the .tar.gz for Linux targets.
+
+        public SquashFsWriter.Compressor compressor = SquashFsWriter.Compressor.GZIP;
+        public int compressionLevel = 9;
+        public int blockSize = 128 * 1024;
+
+        /**
+         * A local AppImage runtime to use, instead of downloading one from
+         * {@link #runtimeUrl}.
+         */
+        public String runtimePath = null;
+        public String runtimeUrl = "https://github.com/AppImage/type2-runtime/releases/download/continuous/runtime-{arch}";
+    }
+
+    /**
+     * Repacks the included jars that are on the `-jar`/`-cp` classpath so they're
+     * faster to load, see {@link co.casterlabs.jcup.bundler.jars.JarOptimizer}.
+     */
+    @JsonClass(exposeAll = true)
+    public static class JarOptimizationConfig {
+        public boolean enabled = false;
+
+        public boolean merge = true; // Merges them into a single jar, rewriting the vmArgs to match.
+        public int compressionLevel = 0; // For classes, 0 stores them uncompressed.
+
+        /**
+         * A list of classes (in load order) recorded from a training run, e.g with
+         * {@code java -XX:DumpLoadedClassList=classes.lst -jar app.jar}. Used to
+         * put the classes needed at startup at the front of the jar.
+         */
+        public String classList = null;
+    }
+
+    /**
+     * How hard each file in the .zip/.tar.gz artifacts gets compressed. The first
+     * rule that matches a path in the bundle wins, see
+     * {@link co.casterlabs.jcup.bundler.archive.CompressionPolicy}.
+     */
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonClass(exposeAll = true)
+    public static class CompressionConfig {
+        public int level = 6; // 0 stores the files, 1-9 are the deflate levels.
+
+        public CompressionRule[] rules = {
+                // Already compressed, deflating them again costs CPU and saves next to nothing.
+                new CompressionRule(
+                    new String[] {
+                            "*.jar",
+                            "*.zip",
+                            "*.7z",
+                            "*.gz",
+                            "*.xz",
+                            "*.png",
+                            "*.jpg",
+                            "*.icns",
+                            "*.ico"
+                    },
+                    0
+                ),
+                // The runtime's class image, 5 is ~25% less CPU than 6 for ~1% more bytes.
+                new CompressionRule(
+                    new String[] {
+                            "**/lib/modules"
+                    },
+                    5
+                )
+        };
+    }
+
+    /**
+     * Copies a folder into the app, keeping its structure and permissions. The
+     * globs are relative to {@link #from}, see
+     * co.casterlabs.jcup.bundler.Utils#compileGlob.
+     */
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonClass(exposeAll = true)
+    public static class FolderInclude {
+        public String from;
+        public String to = ""; // Relative to the app folder, empty for the app folder itself.
+        public String[] include = {}; // Empty includes everything.
+        public String[] exclude = {};
+    }
+
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonClass(exposeAll = true)
+    public static class CompressionRule {
+        public String[] match; // Globs, see co.casterlabs.jcup.bundler.Utils#compileGlob.
+        public int level;
+    }
+
+    /**
+     * Fails the build when an artifact gets too big. Sizes are of the compressed
+     * artifact, in megabytes, and 0 disables the check.
+     */
+    @JsonClass(exposeAll = true)
+    public static class SizeBudgetConfig {
+        public long maxSizeMB = 0;
+        public long maxGrowthMB = 0; // Compared to the previous build of the same artifact.
+
+        /**
+         * Overrides {@link #maxSizeMB} for specific targets, keyed by
+         * {@code <os>-<arch>}, e.g {@code linux_glibc-x86_64}.
+         */
+        public Map<String, Long> targets = Collections.emptyMap();
+    }
+
+    /**
+     * An opt-in startup profiling mode for the shipped bundles (Linux and macOS,
+     * Windows isn't supported yet). The launchers only profile when the user asks for it, by setting the JCUP_PROFILE
+     * environment variable or creating an {@code enabled} file in the app's
+     * per-user profile folder. Summarize the recordings with the
+     * {@code profile-summary} command.
+     */
+    @JsonClass(exposeAll = true)
+    public static class ProfilingConfig {
+        public boolean enabled = false; // Ships what the launchers need to profile, requires an executableId.
+
+        public int durationSeconds = 30; // How long the JFR recording runs for, it's also dumped when the app exits.
+
+        /**
+         * A JFR settings file to use instead of the built-in one, which only
+         * records what {@code profile-summary} looks at.
+         */
+        public String settingsPath = null;
+    }
+
+    /**
+     * A splash screen that the JVM shows while it starts (with {@code -splash:}),
+     * so something is on screen right after launch. AWT closes it when the
+     * first window shows, otherwise use the companion's Splash.close().
+     */
+    @JsonClass(exposeAll = true)
+    public static class SplashConfig {
+        public boolean enabled = false;
+
+        /**
+         * A .png, .gif or .jpg to show as-is, with an optional {@code name@2x.ext}
+         * next to it for HiDPI screens. Otherwise the app icon is put on a plain
+         * background.
+         */
+        public String imagePath = null;
+
+        // For the one made from the app icon.
+        public int width = 400;
+        public int height = 260;
+        public String background = "#FFFFFF";
+    }
+
+    /**
+     * Also produces an OCI (container) image for each Linux target, as an
+     * {@code .oci.tar} that {@code podman load} or
+     * {@code skopeo copy oci-archive:...} take. The runtime, the jars in
+     * subfolders (e.g libs/) and the rest of the app are separate layers, so a
+     * new version of the app only has to push its own files.
+     */
+    @JsonClass(exposeAll = true)
+    public static class OciConfig {
+        public boolean enabled = false;
+
+        /**
+         * A local OCI image layout to build on top of, e.g from
+         * {@code skopeo copy docker://debian:12-slim oci:base}. Without one the
+         * image has only the app, no shell or libc.
+         */
+        public String baseImagePath = null;
+
+        public String tag = "latest";
+        public int compressionLevel = 6; // 1-9, gzip.
+    }
+
+    /**
+     * Where the JREs come from, see
+     * {@link co.casterlabs.jcup.bundler.runtime.RuntimeProvider}.
+     */
+    @JsonClass(exposeAll = true)
+    public static class RuntimeConfig {
+        public RuntimeProvider.Type provider = RuntimeProvider.Type.adoptium;
+
+        public String url = null; // For `mirror`, the base url of an Adoptium-compatible API.
+        public String directory = null; // For `directory`, a folder of pre-fetched archives.
+    }
+
+    /**
+     * Controls which files get stripped out of the runtime. Paths are relative to
+     * the runtime folder.
+     */
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonClass(exposeAll = true)
+    public static class PruneConfig {
+        /**
+         * See {@link co.casterlabs.jcup.bundler.runtime.PrunePreset}.
+         */
+        public String[] presets = {};
+
+        /**
+         * Globs of additional files to remove.
+         */
+        public String[] exclude = {};
+
+        /**
+         * Globs of files to always keep, even if a preset or exclude matches them.
+         */
+        public String[] include = {};
     }
 
 }
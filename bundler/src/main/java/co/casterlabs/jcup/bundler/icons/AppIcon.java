@@ -33,6 +33,10 @@ public class AppIcon {
         this.size = this.image.getWidth();
     }
 
+    BufferedImage getImage() {
+        return this.image;
+    }
+
     public byte[] toPng() throws IOException {
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
             new PngImageParser().writeImage(this.image, baos, null);
@@ -0,0 +1,124 @@
+package co.casterlabs.jcup.bundler.icons;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.formats.png.PngImageParser;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The image the JVM shows (with {@code -splash:}) while it starts, so there's
+ * something on screen right away. Either a given image, or made from the app
+ * icon.
+ *
+ * The JVM picks the {@code @2x} version on HiDPI screens by itself, as long as
+ * it's next to the normal one.
+ */
+public class SplashImage {
+    private static final int ICON_SIZE = 128;
+
+    private final String extension;
+    private final byte[] image;
+    private final @Nullable byte[] scaledImage;
+
+    private SplashImage(String extension, byte[] image, @Nullable byte[] scaledImage) {
+        this.extension = extension;
+        this.image = image;
+        this.scaledImage = scaledImage;
+    }
+
+    /**
+     * @return the file name, e.g {@code splash.png}.
+     */
+    public String getName() {
+        return "splash" + this.extension;
+    }
+
+    /**
+     * @return the HiDPI file name, e.g {@code splash@2x.png}, or null if there's
+     *         no HiDPI version.
+     */
+    public @Nullable String getScaledName() {
+        return this.scaledImage == null ? null : "splash@2x" + this.extension;
+    }
+
+    public byte[] getImage() {
+        return this.image;
+    }
+
+    public @Nullable byte[] getScaledImage() {
+        return this.scaledImage;
+    }
+
+    /**
+     * Uses the image as-is. The JVM can show PNGs, JPEGs and (animated) GIFs. A
+     * {@code name@2x.ext} next to it is used as the HiDPI version.
+     */
+    public static SplashImage from(File imageFile) throws IOException {
+        String name = imageFile.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot == -1 ? "" : name.substring(dot).toLowerCase();
+        if (!extension.equals(".png") && !extension.equals(".gif") && !extension.equals(".jpg") && !extension.equals(".jpeg")) {
+            throw new IOException("Splash images must be a .png, .gif or .jpg: " + imageFile);
+        }
+
+        File scaledFile = new File(imageFile.getParentFile(), name.substring(0, dot) + "@2x" + name.substring(dot));
+        return new SplashImage(
+            extension,
+            Files.readAllBytes(imageFile.toPath()),
+            scaledFile.isFile() ? Files.readAllBytes(scaledFile.toPath()) : null
+        );
+    }
+
+    /**
+     * Puts the icon in the middle of a plain background.
+     */
+    public static SplashImage from(AppIcon icon, int width, int height, Color background) throws IOException {
+        return new SplashImage(
+            ".png",
+            toPng(render(icon.getImage(), width, height, background, 1)),
+            toPng(render(icon.getImage(), width, height, background, 2))
+        );
+    }
+
+    private static BufferedImage render(BufferedImage icon, int width, int height, Color background, int scale) {
+        BufferedImage image = new BufferedImage(width * scale, height * scale, BufferedImage.TYPE_INT_RGB);
+        int iconSize = Math.min(Math.min(ICON_SIZE, Math.min(width, height) / 2), icon.getWidth()) * scale;
+
+        Graphics2D g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+        g2d.setColor(background);
+        g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+
+        // A hairline border, so it doesn't blend into a window of the same color.
+        g2d.setColor(isDark(background) ? background.brighter() : background.darker());
+        g2d.drawRect(0, 0, image.getWidth() - 1, image.getHeight() - 1);
+
+        g2d.drawImage(icon, (image.getWidth() - iconSize) / 2, (image.getHeight() - iconSize) / 2, iconSize, iconSize, null);
+        g2d.dispose();
+        return image;
+    }
+
+    private static boolean isDark(Color color) {
+        return (color.getRed() * 299 + color.getGreen() * 587 + color.getBlue() * 114) / 1000 < 128;
+    }
+
+    private static byte[] toPng(BufferedImage image) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            new PngImageParser().writeImage(image, baos, null);
+            return baos.toByteArray();
+        } catch (ImageWriteException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,447 @@
+package co.casterlabs.jcup.bundler.jars;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.Workspace;
+import co.casterlabs.jcup.bundler.config.Config.JarOptimizationConfig;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Repacks the included jars that are on the classpath (the {@code -jar} or
+ * {@code -cp} in the vmArgs) so they're faster to load:
+ * <ul>
+ * <li>They're merged into one jar, so the JVM only has to open and search one
+ * file.</li>
+ * <li>Classes are stored uncompressed (or with fast compression), so loading
+ * them doesn't have to inflate.</li>
+ * <li>The classes from a training run's class list come first (in load order),
+ * so startup reads the jar sequentially.</li>
+ * </ul>
+ */
+public class JarOptimizer {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("JarOptimizer");
+    private static final File WORK_FOLDER = new File(JCup.BUILD_FOLDER, "jars");
+
+    private static final List<String> CLASSPATH_ARGS = Arrays.asList("-cp", "-classpath", "--class-path");
+
+    private static final int HASH_LENGTH = 16;
+
+    private static final Map<String, Result> cache = new HashMap<>();
+    private static final Set<String> used = new HashSet<>();
+
+    /**
+     * @param name     The app's executableName, its folders from previous runs
+     *                 get cleaned up.
+     * @param includes The path in the bundle mapped to the file to include.
+     */
+    public static synchronized Result optimize(@NonNull String name, @NonNull JarOptimizationConfig config, @NonNull Map<String, File> includes, @NonNull String vmArgs) throws IOException {
+        // Every target of an app gets the same jars, so only do the work once.
+        String key = cacheKey(config, includes, vmArgs);
+        Result cached = cache.get(key);
+        if (cached != null) return cached;
+
+        File workFolder = new File(WORK_FOLDER, name + '-' + DigestUtils.sha256Hex(key).substring(0, HASH_LENGTH));
+        File staged = Workspace.stage(workFolder.getName());
+        Result result;
+        try {
+            result = optimize(config, includes, vmArgs, staged);
+        } catch (IOException e) {
+            Workspace.delete(staged);
+            throw e;
+        }
+        Workspace.commit(staged, workFolder);
+        used.add(workFolder.getName());
+        deleteStale(name);
+
+        // Point at where the jars ended up.
+        for (Map.Entry<String, File> include : result.includes.entrySet()) {
+            if (staged.equals(include.getValue().getParentFile())) {
+                include.setValue(new File(workFolder, include.getValue().getName()));
+            }
+        }
+        cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Deletes the app's folders that this run didn't produce, i.e the ones from
+     * before a jar or the config changed. Also the ones from before the folders
+     * were named after the app.
+     */
+    private static void deleteStale(String name) {
+        File[] stale = WORK_FOLDER.listFiles((dir, folder) -> {
+            if (used.contains(folder)) return false;
+
+            String hash;
+            if (folder.length() == HASH_LENGTH) {
+                hash = folder;
+            } else if (folder.length() == name.length() + 1 + HASH_LENGTH && folder.startsWith(name + '-')) {
+                hash = folder.substring(name.length() + 1);
+            } else {
+                return false; // Another app's.
+            }
+            return hash.matches("[0-9a-f]+");
+        });
+
+        if (stale != null) {
+            for (File folder : stale) {
+                LOGGER.debug("Deleting stale jars folder %s.", folder);
+                Workspace.delete(folder);
+            }
+        }
+    }
+
+    private static Result optimize(JarOptimizationConfig config, Map<String, File> includes, String vmArgs, File workFolder) throws IOException {
+        List<String> args = new ArrayList<>(Arrays.asList(vmArgs.trim().split("\\s+")));
+        List<String> classList = config.classList == null ? Collections.emptyList() : readClassList(new File(config.classList));
+
+        // Figure out the classpath, as paths in the bundle.
+        List<String> classpath = new LinkedList<>();
+        int jarIndex = args.indexOf("-jar");
+        int cpIndex = -1;
+        String cpSeparator = null;
+
+        if (jarIndex != -1 && jarIndex + 1 < args.size()) {
+            String mainJar = args.get(jarIndex + 1);
+            classpath.add(mainJar);
+            if (includes.containsKey(mainJar)) {
+                classpath.addAll(readManifestClassPath(mainJar, includes.get(mainJar)));
+            }
+        } else {
+            for (String arg : CLASSPATH_ARGS) {
+                cpIndex = args.indexOf(arg);
+                if (cpIndex != -1) break;
+            }
+            if (cpIndex == -1 || cpIndex + 1 >= args.size()) {
+                LOGGER.warn("No -jar or -cp in the vmArgs, so there's nothing to optimize.");
+                return new Result(includes, vmArgs);
+            }
+
+            String value = args.get(cpIndex + 1);
+            cpSeparator = value.contains(";") ? ";" : ":";
+            classpath.addAll(Arrays.asList(value.split(cpSeparator)));
+        }
+
+        // We can only touch the jars that we're including.
+        List<String> jars = new LinkedList<>();
+        for (String path : classpath) {
+            if (path.endsWith(".jar") && includes.containsKey(path) && !jars.contains(path)) {
+                jars.add(path);
+            }
+        }
+        if (jars.isEmpty()) {
+            LOGGER.warn("None of the jars on the classpath are included, so there's nothing to optimize.");
+            return new Result(includes, vmArgs);
+        }
+
+        Map<String, File> newIncludes = new LinkedHashMap<>(includes);
+
+        if (config.merge && jars.size() > 1) {
+            // Everything gets merged into the first jar.
+            String mergedPath = jars.get(0);
+            List<File> inputs = new ArrayList<>(jars.size());
+            for (String jar : jars) {
+                inputs.add(includes.get(jar));
+                newIncludes.remove(jar);
+            }
+
+            File merged = new File(workFolder, new File(mergedPath).getName());
+            writeJar(inputs, merged, classList, config.compressionLevel, jars.subList(1, jars.size()), mergedPath);
+            newIncludes.put(mergedPath, merged);
+
+            if (cpIndex != -1) {
+                List<String> newClasspath = new LinkedList<>();
+                for (String path : classpath) {
+                    if (!jars.contains(path)) {
+                        newClasspath.add(path);
+                    } else if (path.equals(mergedPath)) {
+                        newClasspath.add(mergedPath);
+                    }
+                }
+                args.set(cpIndex + 1, String.join(cpSeparator, newClasspath));
+            } // Otherwise the merged manifest's Class-Path has been updated instead.
+
+            LOGGER.info("Merged %d jars into %s.", jars.size(), mergedPath);
+        } else {
+            int index = 0;
+            for (String jar : jars) {
+                File repacked = new File(workFolder, (index++) + "-" + new File(jar).getName());
+                writeJar(Arrays.asList(includes.get(jar)), repacked, classList, config.compressionLevel, Collections.emptyList(), jar);
+                newIncludes.put(jar, repacked);
+            }
+            LOGGER.info("Repacked %d jar(s).", jars.size());
+        }
+
+        return new Result(newIncludes, String.join(" ", args));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void writeJar(List<File> inputs, File output, List<String> classList, int compressionLevel, List<String> mergedAway, String outputPath) throws IOException {
+        List<ZipFile> zips = new ArrayList<>(inputs.size());
+        try {
+            Manifest manifest = null;
+            Map<String, Source> entries = new LinkedHashMap<>();
+            Map<String, ByteArrayOutputStream> services = new LinkedHashMap<>();
+            boolean multiRelease = false;
+            int duplicates = 0;
+            int droppedSignatures = 0;
+
+            for (File input : inputs) {
+                ZipFile zip = new ZipFile(input);
+                zips.add(zip);
+
+                for (ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                    String name = entry.getName();
+
+                    if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            Manifest read = new Manifest(in);
+                            multiRelease |= "true".equalsIgnoreCase(read.getMainAttributes().getValue("Multi-Release"));
+                            if (manifest == null) manifest = read; // The first jar's manifest wins.
+                        }
+                        continue;
+                    }
+
+                    // Merging invalidates any signatures.
+                    if (inputs.size() > 1 && isSignature(name)) {
+                        droppedSignatures++;
+                        continue;
+                    }
+
+                    // Service files get concatenated, rather than the first one winning.
+                    if (name.startsWith("META-INF/services/") && !entry.isDirectory()) {
+                        ByteArrayOutputStream content = services.computeIfAbsent(name, (n) -> new ByteArrayOutputStream());
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            in.transferTo(content);
+                        }
+                        content.write('\n');
+                        continue;
+                    }
+
+                    if (entries.containsKey(name)) {
+                        duplicates++; // Just like on the classpath, the first one wins.
+                        continue;
+                    }
+                    entries.put(name, new Source(zip, entry));
+                }
+            }
+
+            if (duplicates > 0) {
+                LOGGER.debug("Skipped %d duplicate entries while writing %s.", duplicates, outputPath);
+            }
+            if (droppedSignatures > 0) {
+                LOGGER.warn("Dropped %d signature file(s) while merging into %s, merged jars can't stay signed.", droppedSignatures, outputPath);
+            }
+
+            if (manifest != null) {
+                Attributes attributes = manifest.getMainAttributes();
+                if (multiRelease) {
+                    attributes.putValue("Multi-Release", "true");
+                }
+                if (!mergedAway.isEmpty()) {
+                    rewriteManifestClassPath(attributes, outputPath, mergedAway);
+                }
+            }
+
+            // META-INF first (the manifest has to be the very first entry), then the
+            // classes in the order they're loaded and then everything else.
+            Set<String> order = new LinkedHashSet<>(entries.size());
+            for (String name : entries.keySet()) {
+                if (name.startsWith("META-INF/")) order.add(name);
+            }
+            for (String className : classList) {
+                String name = className + ".class";
+                if (entries.containsKey(name)) order.add(name);
+            }
+            order.addAll(entries.keySet());
+
+            try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(output)) {
+                if (compressionLevel > 0) {
+                    out.setLevel(compressionLevel);
+                }
+
+                if (manifest != null) {
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    manifest.write(content);
+                    writeEntry(out, JarFile.MANIFEST_NAME, content.toByteArray(), ZipEntry.DEFLATED, System.currentTimeMillis());
+                }
+                for (Map.Entry<String, ByteArrayOutputStream> service : services.entrySet()) {
+                    writeEntry(out, service.getKey(), service.getValue().toByteArray(), ZipEntry.DEFLATED, System.currentTimeMillis());
+                }
+
+                for (String name : order) {
+                    Source source = entries.get(name);
+
+                    if (name.endsWith(".class")) {
+                        byte[] content;
+                        try (InputStream in = source.zip.getInputStream(source.entry)) {
+                            content = in.readAllBytes();
+                        }
+                        writeEntry(out, name, content, compressionLevel == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED, source.entry.getTime());
+                    } else {
+                        // Leave everything else as-is, no need to inflate & deflate it again.
+                        try (InputStream in = source.zip.getRawInputStream(source.entry)) {
+                            out.addRawArchiveEntry(new ZipArchiveEntry(source.entry), in);
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (ZipFile zip : zips) {
+                zip.close();
+            }
+        }
+    }
+
+    private static void writeEntry(ZipArchiveOutputStream out, String name, byte[] content, int method, long time) throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(method);
+        entry.setTime(time);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setCrc(crc.getValue());
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+        }
+
+        out.putArchiveEntry(entry);
+        out.write(content);
+        out.closeArchiveEntry();
+    }
+
+    private static boolean isSignature(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) return false;
+
+        String upper = name.toUpperCase();
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
+    }
+
+    /**
+     * @return the manifest's Class-Path, as paths in the bundle.
+     */
+    private static List<String> readManifestClassPath(String jarPath, File jarFile) throws IOException {
+        try (JarFile jar = new JarFile(jarFile)) {
+            Manifest manifest = jar.getManifest();
+            if (manifest == null) return Collections.emptyList();
+
+            String value = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+            if (value == null || value.isBlank()) return Collections.emptyList();
+
+            List<String> classpath = new LinkedList<>();
+            for (String relative : value.trim().split("\\s+")) {
+                classpath.add(resolveRelative(jarPath, relative));
+            }
+            return classpath;
+        }
+    }
+
+    private static void rewriteManifestClassPath(Attributes attributes, String jarPath, List<String> mergedAway) {
+        String value = attributes.getValue(Attributes.Name.CLASS_PATH);
+        if (value == null || value.isBlank()) return;
+
+        List<String> kept = new LinkedList<>();
+        for (String relative : value.trim().split("\\s+")) {
+            if (!mergedAway.contains(resolveRelative(jarPath, relative))) {
+                kept.add(relative);
+            }
+        }
+
+        if (kept.isEmpty()) {
+            attributes.remove(Attributes.Name.CLASS_PATH);
+        } else {
+            attributes.put(Attributes.Name.CLASS_PATH, String.join(" ", kept));
+        }
+    }
+
+    private static String resolveRelative(String jarPath, String relative) {
+        int slash = jarPath.lastIndexOf('/');
+        String path = slash == -1 ? relative : jarPath.substring(0, slash + 1) + relative;
+        return path.startsWith("./") ? path.substring(2) : path;
+    }
+
+    /**
+     * Reads either a {@code -XX:DumpLoadedClassList} file or the output of
+     * {@code -Xlog:class+load}.
+     *
+     * @return internal class names, e.g {@code java/lang/Object}.
+     */
+    static List<String> readClassList(File file) throws IOException {
+        List<String> classes = new LinkedList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            int logPrefix = line.indexOf("[class,load] ");
+            if (logPrefix != -1) {
+                line = line.substring(logPrefix + "[class,load] ".length());
+            }
+
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("@")) continue; // Comments and lambda forms.
+
+            String name = line.split("\\s+", 2)[0];
+            classes.add(name.replace('.', '/'));
+        }
+        return classes;
+    }
+
+    private static String cacheKey(JarOptimizationConfig config, Map<String, File> includes, String vmArgs) {
+        StringBuilder key = new StringBuilder()
+            .append(config.merge).append('|')
+            .append(config.compressionLevel).append('|')
+            .append(config.classList).append('|')
+            .append(vmArgs);
+        for (Map.Entry<String, File> include : includes.entrySet()) {
+            File file = include.getValue();
+            key.append('|').append(include.getKey())
+                .append('=').append(file.getAbsolutePath())
+                .append(':').append(file.length())
+                .append(':').append(file.lastModified());
+        }
+        return key.toString();
+    }
+
+    @AllArgsConstructor
+    public static class Result {
+        /**
+         * The path in the bundle mapped to the file to include.
+         */
+        public final Map<String, File> includes;
+
+        public final String vmArgs;
+    }
+
+    @AllArgsConstructor
+    private static class Source {
+        private final ZipFile zip;
+        private final ZipArchiveEntry entry;
+    }
+
+}
@@ -0,0 +1,244 @@
+package co.casterlabs.jcup.bundler.platforms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.JCupAbortException;
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.archive.Archives;
+import co.casterlabs.jcup.bundler.archive.Decompressors;
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.Config;
+import co.casterlabs.jcup.bundler.config.Config.SizeBudgetConfig;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.annotating.JsonClass;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Breaks an artifact's size down by what's in it, compares it against the
+ * previous build of the same artifact and enforces the configured budgets.
+ */
+class ArtifactSizes {
+    private static final FastLogger LOGGER = Bundler.LOGGER.createChild("Sizes");
+    private static final File SIZES_FOLDER = new File(JCup.BUILD_FOLDER, "sizes");
+
+    private static final long MB = 1024 * 1024;
+
+    static void check(@NonNull Config config, @NonNull File artifact, @NonNull OperatingSystem os, @NonNull Architecture arch, @NonNull Archives.Format format) throws JCupAbortException {
+        Breakdown breakdown;
+        try {
+            breakdown = analyze(config, artifact, format);
+        } catch (IOException e) {
+            LOGGER.fatal("Unable to read back the artifact, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+
+        File breakdownFile = new File(SIZES_FOLDER, artifact.getName() + ".json");
+        Breakdown previous = null;
+        if (breakdownFile.isFile()) {
+            try {
+                previous = Rson.DEFAULT.fromJson(Files.readString(breakdownFile.toPath()), Breakdown.class);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read the previous size breakdown, ignoring.\n%s", e);
+            }
+        }
+
+        report(artifact.getName(), breakdown, previous);
+        enforce(config.sizeBudget, String.format("%s-%s", os, arch), breakdown, previous);
+
+        // Only once it passed, otherwise re-running would let the growth slip through.
+        try {
+            SIZES_FOLDER.mkdirs();
+            Files.writeString(breakdownFile.toPath(), Rson.DEFAULT.toJson(breakdown).toString(true));
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save the size breakdown, ignoring.\n%s", e);
+        }
+    }
+
+    private static void report(String name, Breakdown breakdown, @Nullable Breakdown previous) {
+        LOGGER.info(
+            "%s is %s (%s uncompressed)%s.",
+            name, Utils.formatBytes(breakdown.compressed), Utils.formatBytes(breakdown.uncompressed),
+            previous == null ? "" : ", " + Utils.formatBytesDelta(breakdown.compressed - previous.compressed) + " since the last build"
+        );
+
+        for (Map.Entry<String, CategorySize> entry : breakdown.categories.entrySet()) {
+            CategorySize size = entry.getValue();
+            CategorySize previousSize = previous == null ? null : previous.categories.get(entry.getKey());
+
+            LOGGER.info(
+                "    %-16s %10s %10s uncompressed%s",
+                entry.getKey(), Utils.formatBytes(size.compressed), Utils.formatBytes(size.uncompressed),
+                previous == null ? "" : "  " + Utils.formatBytesDelta(size.compressed - (previousSize == null ? 0 : previousSize.compressed))
+            );
+        }
+
+        if (previous != null) {
+            for (String category : previous.categories.keySet()) {
+                if (!breakdown.categories.containsKey(category)) {
+                    LOGGER.info("    %-16s is gone (was %s).", category, Utils.formatBytes(previous.categories.get(category).compressed));
+                }
+            }
+        }
+    }
+
+    private static void enforce(SizeBudgetConfig budget, String target, Breakdown breakdown, @Nullable Breakdown previous) throws JCupAbortException {
+        long maxSize = budget.targets.getOrDefault(target, budget.maxSizeMB) * MB;
+        if (maxSize > 0 && breakdown.compressed > maxSize) {
+            LOGGER.fatal(
+                "The %s artifact is %s, which is over its budget of %s, aborting.",
+                target, Utils.formatBytes(breakdown.compressed), Utils.formatBytes(maxSize)
+            );
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+
+        long maxGrowth = budget.maxGrowthMB * MB;
+        if (maxGrowth > 0 && previous != null && breakdown.compressed - previous.compressed > maxGrowth) {
+            LOGGER.fatal(
+                "The %s artifact grew by %s since the last build, which is over the budget of %s, aborting.",
+                target, Utils.formatBytes(breakdown.compressed - previous.compressed), Utils.formatBytes(maxGrowth)
+            );
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+    }
+
+    private static Breakdown analyze(Config config, File artifact, Archives.Format format) throws IOException {
+        Map<String, CategorySize> categories = new TreeMap<>();
+        Breakdown breakdown = new Breakdown();
+        breakdown.compressed = artifact.length();
+
+        switch (format) {
+            case ZIP:
+                try (ZipFile zip = new ZipFile(artifact)) {
+                    for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+                        if (entry.isDirectory()) continue;
+                        categories
+                            .computeIfAbsent(categorize(config, entry.getName()), (k) -> new CategorySize())
+                            .add(entry.getCompressedSize(), entry.getSize());
+                    }
+                }
+                break;
+
+            case TAR_GZ:
+                // Gzip has no per-entry sizes, so we attribute whatever was read from the
+                // file while going over each entry. It's close enough at this scale.
+                try (
+                    CountingInputStream fin = new CountingInputStream(new FileInputStream(artifact));
+                    InputStream gzin = Decompressors.guard(new GzipCompressorInputStream(fin));
+                    TarArchiveInputStream ain = new TarArchiveInputStream(gzin)) {
+                    ArchiveEntry entry;
+                    long last = 0;
+                    while ((entry = ain.getNextEntry()) != null) {
+                        if (entry.isDirectory()) continue;
+                        ain.skip(Long.MAX_VALUE);
+                        categories
+                            .computeIfAbsent(categorize(config, entry.getName()), (k) -> new CategorySize())
+                            .add(fin.count - last, entry.getSize());
+                        last = fin.count;
+                    }
+                }
+                break;
+
+            default:
+                throw new IOException("Unsupported format: " + format);
+        }
+
+        // Largest first.
+        categories.entrySet()
+            .stream()
+            .sorted((a, b) -> Long.compare(b.getValue().compressed, a.getValue().compressed))
+            .forEach((e) -> breakdown.categories.put(e.getKey(), e.getValue()));
+
+        for (CategorySize size : categories.values()) {
+            breakdown.uncompressed += size.uncompressed;
+        }
+        return breakdown;
+    }
+
+    private static String categorize(Config config, String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+
+        String inRuntime = null;
+        if (path.startsWith("runtime/")) {
+            inRuntime = path.substring("runtime/".length());
+        } else if (path.contains("/runtime/")) {
+            inRuntime = path.substring(path.indexOf("/runtime/") + "/runtime/".length()); // e.g macOS's Contents/Resources/runtime/
+        }
+
+        if (inRuntime != null) {
+            if (inRuntime.equals("lib/modules")) return "runtime/modules";
+            if (name.endsWith(".so") || name.endsWith(".dll") || name.endsWith(".dylib")) return "runtime/natives";
+            return "runtime/other";
+        }
+
+        if (name.equals(config.executableName) || name.equals(config.executableName + ".exe")) return "launcher";
+        if (name.endsWith(".jar")) return "app/jars";
+        return "app/other";
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) this.count++;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) this.count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class Breakdown {
+        public long compressed;
+        public long uncompressed;
+        public Map<String, CategorySize> categories = new LinkedHashMap<>();
+    }
+
+    @JsonClass(exposeAll = true)
+    public static class CategorySize {
+        public long compressed;
+        public long uncompressed;
+
+        private void add(long compressed, long uncompressed) {
+            this.compressed += compressed;
+            this.uncompressed += uncompressed;
+        }
+    }
+
+}
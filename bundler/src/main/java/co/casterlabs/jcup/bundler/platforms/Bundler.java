@@ -1,20 +1,52 @@
 package co.casterlabs.jcup.bundler.platforms;
 
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
 import org.jetbrains.annotations.Nullable;
 
 import co.casterlabs.jcup.bundler.JCup;
 import co.casterlabs.jcup.bundler.JCupAbortException;
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.Workspace;
+import co.casterlabs.jcup.bundler.archive.ArchiveCreator;
+import co.casterlabs.jcup.bundler.archive.Archives;
+import co.casterlabs.jcup.bundler.archive.BundleTree;
+import co.casterlabs.jcup.bundler.archive.CompressionPolicy;
+import co.casterlabs.jcup.bundler.archive.PathMapping;
 import co.casterlabs.jcup.bundler.config.Architecture;
 import co.casterlabs.jcup.bundler.config.Config;
+import co.casterlabs.jcup.bundler.config.Config.FolderInclude;
 import co.casterlabs.jcup.bundler.config.Config.OSSpecificConfig;
 import co.casterlabs.jcup.bundler.config.OperatingSystem;
 import co.casterlabs.jcup.bundler.icons.AppIcon;
+import co.casterlabs.jcup.bundler.icons.SplashImage;
+import co.casterlabs.jcup.bundler.jars.JarOptimizer;
+import co.casterlabs.jcup.bundler.runtime.RuntimePruner;
+import co.casterlabs.jcup.bundler.runtime.RuntimeProvider;
+import co.casterlabs.jcup.bundler.runtime.SharedRuntimes.SharedRuntime;
 import lombok.NonNull;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 
 public interface Bundler {
     static final FastLogger LOGGER = JCup.LOGGER.createChild("Bundler");
 
+    static final String PROFILING_SETTINGS = "startup.jfc";
+
     public void bundle(@NonNull Config config, @Nullable AppIcon icon, @NonNull OSSpecificConfig ossc, @NonNull Architecture arch) throws JCupAbortException;
 
     public static Bundler getBundler(OperatingSystem os) {
@@ -26,4 +58,331 @@ public interface Bundler {
         };
     }
 
+    /**
+     * Turns the tree into an artifact, either by streaming it straight into the
+     * archive or by staging it in the build folder first.
+     */
+    static File createArtifact(@NonNull Config config, @NonNull BundleTree tree, @NonNull OperatingSystem os, @NonNull Architecture arch, @NonNull Archives.Format format) throws JCupAbortException {
+        File archiveFile = new File(JCup.ARTIFACTS_FOLDER, String.format("%s-%s-%s%s", config.executableName, os, arch, format.extension));
+
+        CompressionPolicy policy;
+        try {
+            policy = new CompressionPolicy(config.compression);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid compression config, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+
+        // Lets unchanged entries be copied over instead of compressed again.
+        File previous = config.incrementalArtifacts && archiveFile.isFile() ? archiveFile : null;
+
+        if (config.streamArtifacts) {
+            try {
+                ArchiveCreator.create(format, tree, archiveFile, policy, previous);
+            } catch (IOException e) {
+                LOGGER.fatal("Unable to create %s file, aborting.\n%s", format.extension, e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+        } else {
+            File buildFolder = new File(JCup.BUILD_FOLDER, String.format("%s-%s-%s", config.executableName, os, arch));
+            Set<String> executables;
+            File staged = null;
+            try {
+                // Build it on the side and swap it in once complete.
+                staged = Workspace.stage(buildFolder.getName());
+                // Unchanged files get linked from the previous build instead of copied.
+                executables = tree.materialize(staged, buildFolder.isDirectory() ? buildFolder : null);
+                Workspace.commit(staged, buildFolder);
+            } catch (IOException e) {
+                if (staged != null) Workspace.delete(staged);
+                LOGGER.fatal("Unable to write the bundle to the build folder, aborting.\n%s", e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+
+            try {
+                // We pass along the executables since not every host can record them (e.g Windows).
+                ArchiveCreator.create(format, buildFolder, archiveFile, executables, policy, previous);
+            } catch (IOException e) {
+                LOGGER.fatal("Unable to create %s file, aborting.\n%s", format.extension, e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+        }
+
+        LOGGER.info("Produced artifact: %s", archiveFile.getAbsolutePath());
+        policy.report(LOGGER);
+        ArtifactSizes.check(config, archiveFile, os, arch, format);
+        return archiveFile;
+    }
+
+    /**
+     * Adds all of the `include`'d files and folders, the splash screen and the
+     * vmargs.txt to the tree, under the given prefix. The jars get optimized
+     * along the way, if enabled.
+     *
+     * An include can be a file, a folder (copied as a whole into the destination
+     * folder) or a glob like {@code libs/*.jar} (each match is copied into the
+     * destination folder, keeping its path relative to the glob's base).
+     */
+    static void addApp(@NonNull Config config, @NonNull OSSpecificConfig ossc, @Nullable AppIcon icon, @NonNull BundleTree tree, @NonNull String prefix) throws JCupAbortException {
+        Map<String, String> toInclude = new LinkedHashMap<>(config.mainInclude);
+        if (ossc.extraInclude != null) {
+            toInclude.putAll(ossc.extraInclude);
+        }
+
+        Map<String, File> includes = new LinkedHashMap<>();
+        List<FolderInclude> folders = new LinkedList<>(Arrays.asList(config.folderInclude));
+        for (Entry<String, String> entry : toInclude.entrySet()) {
+            File toIncludeFile = new File(entry.getKey());
+            if (toIncludeFile.isFile()) {
+                includes.put(entry.getValue(), toIncludeFile);
+            } else if (toIncludeFile.isDirectory()) {
+                folders.add(new FolderInclude(entry.getKey(), entry.getValue(), new String[0], new String[0]));
+            } else if (isGlob(entry.getKey())) {
+                includes.putAll(expandGlob(entry.getKey(), entry.getValue()));
+            } else {
+                LOGGER.fatal("Unable to find `include`'d file %s, aborting.", toIncludeFile);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+        }
+
+        String vmArgs = buildVmArgs(config, ossc);
+
+        if (config.jarOptimization.enabled) {
+            try {
+                JarOptimizer.Result result = JarOptimizer.optimize(config.executableName, config.jarOptimization, includes, vmArgs);
+                includes = result.includes;
+                vmArgs = result.vmArgs;
+            } catch (IOException e) {
+                LOGGER.fatal("Unable to optimize the jars, aborting.\n%s", e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+        }
+
+        for (Entry<String, File> include : includes.entrySet()) {
+            tree.addFile(prefix + include.getKey(), include.getValue());
+        }
+        for (FolderInclude folder : folders) {
+            File from = new File(folder.from);
+            if (!from.isDirectory()) {
+                LOGGER.fatal("Unable to find `include`'d folder %s, aborting.", from);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+
+            PathMapping mapping = PathMapping.create().prefix(prefix + asFolder(folder.to));
+            for (String glob : folder.include) {
+                mapping.include(glob);
+            }
+            for (String glob : folder.exclude) {
+                mapping.exclude(glob);
+            }
+            tree.addFolder(from, mapping);
+        }
+
+        SplashImage splash = createSplash(config, icon);
+        if (splash != null) {
+            tree.addBytes(prefix + splash.getName(), splash.getImage());
+            if (splash.getScaledName() != null) {
+                tree.addBytes(prefix + splash.getScaledName(), splash.getScaledImage());
+            }
+
+            // The launchers start the JVM from the folder with the vmargs.txt (e.g
+            // Contents/Resources/ on macOS), so it's right next to us.
+            vmArgs = "-splash:" + splash.getName() + ' ' + vmArgs;
+        }
+
+        tree.addString(prefix + "vmargs.txt", vmArgs);
+    }
+
+    private static @Nullable SplashImage createSplash(Config config, @Nullable AppIcon icon) throws JCupAbortException {
+        if (!config.splash.enabled) return null;
+
+        if (config.splash.imagePath != null) {
+            try {
+                return SplashImage.from(new File(config.splash.imagePath));
+            } catch (IOException e) {
+                LOGGER.fatal("Unable to read splash.imagePath %s, aborting.\n%s", config.splash.imagePath, e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+        }
+
+        if (icon == null) {
+            LOGGER.warn("There's no app icon to make a splash screen from, set splash.imagePath. Continuing without one.");
+            return null;
+        }
+
+        try {
+            return SplashImage.from(icon, config.splash.width, config.splash.height, Color.decode(config.splash.background));
+        } catch (NumberFormatException e) {
+            LOGGER.fatal("Invalid splash.background %s, it should be like #FFFFFF. Aborting.", config.splash.background);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        } catch (IOException e) {
+            LOGGER.fatal("Unable to make the splash screen, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+    }
+
+    // The same wildcards Utils.compileGlob supports, anything else (e.g `[`) is literal.
+    private static boolean isGlob(String path) {
+        return path.contains("*") || path.contains("?");
+    }
+
+    private static String asFolder(@Nullable String path) {
+        if (path == null || path.isEmpty()) return "";
+        path = path.replace('\\', '/');
+        return path.endsWith("/") ? path : path + '/';
+    }
+
+    /**
+     * Finds the files matching the glob, walking from its base (the part before
+     * the first wildcard).
+     *
+     * @return the files, keyed by their destination.
+     */
+    private static Map<String, File> expandGlob(String glob, String to) throws JCupAbortException {
+        glob = glob.replace('\\', '/');
+
+        String base = "";
+        String[] parts = glob.split("/");
+        for (int i = 0; i < parts.length - 1 && !isGlob(parts[i]); i++) {
+            base += parts[i] + '/';
+        }
+
+        // Match the whole path, so a slash-less glob doesn't match in subfolders.
+        Pattern pattern = Utils.compileGlob("./" + glob.substring(base.length()));
+        File baseFolder = new File(base.isEmpty() ? "." : base);
+
+        Map<String, File> files = new TreeMap<>();
+        if (baseFolder.isDirectory()) {
+            try (Stream<Path> stream = Files.walk(baseFolder.toPath())) {
+                stream
+                    .filter(Files::isRegularFile)
+                    .forEach((file) -> {
+                        String relative = baseFolder.toPath().relativize(file).toString().replace(File.separatorChar, '/');
+                        if (pattern.matcher("./" + relative).matches()) {
+                            files.put(asFolder(to) + relative, file.toFile());
+                        }
+                    });
+            } catch (IOException e) {
+                LOGGER.fatal("Unable to list the files matching %s, aborting.\n%s", glob, e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+        }
+
+        if (files.isEmpty()) {
+            LOGGER.fatal("Nothing matches the `include`'d glob %s, aborting.", glob);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+        return files;
+    }
+
+    static RuntimeProvider createRuntimeProvider(@NonNull Config config) throws JCupAbortException {
+        try {
+            return RuntimeProvider.from(config.runtime);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid runtime config, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+    }
+
+    static RuntimePruner createPruner(@NonNull Config config, @NonNull OSSpecificConfig ossc, @NonNull String runtimePrefix) throws JCupAbortException {
+        try {
+            return new RuntimePruner(runtimePrefix, config.prune, ossc.extraPrune);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid prune config, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+    }
+
+    /**
+     * Tells the launcher to hand its args to the running instance (if any), using
+     * the executableId to find it.
+     */
+    static void addInstanceFile(@NonNull Config config, @NonNull BundleTree tree, @NonNull String prefix) throws JCupAbortException {
+        if (!config.singleInstance) return;
+
+        checkExecutableId(config, "singleInstance");
+        tree.addString(prefix + "instance.txt", config.executableId);
+    }
+
+    /**
+     * Ships what the launcher needs for the startup profiling mode: the
+     * executableId (which names the per-user profile folder), the JFR options and
+     * the JFR settings.
+     */
+    static void addProfiling(@NonNull Config config, @NonNull BundleTree tree, @NonNull String prefix) throws JCupAbortException {
+        if (!config.profiling.enabled) return;
+
+        checkExecutableId(config, "profiling");
+        if (config.profiling.durationSeconds < 1) {
+            LOGGER.fatal("profiling.durationSeconds must be at least 1, aborting.");
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+
+        tree.addString(
+            prefix + "profiling.txt",
+            config.executableId + '\n'
+                + String.format("settings=%s,duration=%ds,dumponexit=true,name=jcup-startup", PROFILING_SETTINGS, config.profiling.durationSeconds) + '\n'
+        );
+
+        if (config.profiling.settingsPath == null) {
+            tree.addResource(prefix + PROFILING_SETTINGS, "/" + PROFILING_SETTINGS, false);
+        } else {
+            File settings = new File(config.profiling.settingsPath);
+            if (!settings.isFile()) {
+                LOGGER.fatal("Unable to find profiling.settingsPath %s, aborting.", settings);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+            }
+            tree.addFile(prefix + PROFILING_SETTINGS, settings);
+        }
+    }
+
+    private static void checkExecutableId(Config config, String feature) throws JCupAbortException {
+        // The launchers use it as a folder name.
+        if (!config.executableId.matches("[A-Za-z0-9._-]+")) {
+            LOGGER.fatal("executableId may only contain letters, numbers, '.', '_' and '-' when using %s, aborting.", feature);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+    }
+
+    /**
+     * Tells the launcher which runtime it has, so it can be installed into the
+     * per-user store once and then shared by every app with the same one. The
+     * bundled runtime stays as the fallback.
+     *
+     * @param mapping The mapping the runtime was added to the tree with.
+     * @param prefix  Where the launcher looks for the runtime.id file.
+     */
+    static void addRuntimeId(@NonNull Config config, @NonNull OSSpecificConfig ossc, @NonNull SharedRuntime runtime, @NonNull UnaryOperator<String> mapping, @NonNull BundleTree tree, @NonNull String runtimePrefix, @NonNull String prefix) throws JCupAbortException {
+        if (!config.sharedRuntime) return;
+
+        // A pruner of our own, so the hashing doesn't show up in the pruning report.
+        RuntimePruner pruner = createPruner(config, ossc, runtimePrefix);
+        try {
+            tree.addString(prefix + "runtime.id", runtime.contentHash(mapping, runtimePrefix, pruner));
+        } catch (IOException e) {
+            LOGGER.fatal("Unable to hash the runtime, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+    }
+
+    /**
+     * @see VmArgTemplates
+     */
+    private static String buildVmArgs(@NonNull Config config, @NonNull OSSpecificConfig ossc) throws JCupAbortException {
+        String vmArgs;
+        if (ossc.extraVmArgs == null || ossc.extraVmArgs.isEmpty()) {
+            vmArgs = config.vmArgs;
+        } else {
+            vmArgs = ossc.extraVmArgs + ' ' + config.vmArgs;
+        }
+
+        try {
+            VmArgTemplates.validate(vmArgs);
+        } catch (IllegalArgumentException e) {
+            LOGGER.fatal("Invalid vmArgs, aborting.\n%s", e);
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+        return vmArgs;
+    }
+
 }
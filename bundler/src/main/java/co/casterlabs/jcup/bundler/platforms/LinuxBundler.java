@@ -1,31 +1,33 @@
 package co.casterlabs.jcup.bundler.platforms;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.util.Map.Entry;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
 
 import org.jetbrains.annotations.Nullable;
 
-import co.casterlabs.commons.platform.OSDistribution;
-import co.casterlabs.commons.platform.Platform;
-import co.casterlabs.jcup.bundler.Adoptium;
+import co.casterlabs.jcup.bundler.AppImageRuntime;
 import co.casterlabs.jcup.bundler.JCup;
 import co.casterlabs.jcup.bundler.JCupAbortException;
-import co.casterlabs.jcup.bundler.Main;
-import co.casterlabs.jcup.bundler.Utils;
-import co.casterlabs.jcup.bundler.archive.ArchiveCreator;
-import co.casterlabs.jcup.bundler.archive.ArchiveExtractor;
 import co.casterlabs.jcup.bundler.archive.Archives;
 import co.casterlabs.jcup.bundler.archive.Archives.Format;
+import co.casterlabs.jcup.bundler.archive.BundleEntry;
+import co.casterlabs.jcup.bundler.archive.BundleTree;
+import co.casterlabs.jcup.bundler.archive.OciImageWriter;
+import co.casterlabs.jcup.bundler.archive.PathMapping;
+import co.casterlabs.jcup.bundler.archive.SquashFsWriter;
 import co.casterlabs.jcup.bundler.config.Architecture;
 import co.casterlabs.jcup.bundler.config.Config;
 import co.casterlabs.jcup.bundler.config.Config.OSSpecificConfig;
 import co.casterlabs.jcup.bundler.config.OperatingSystem;
 import co.casterlabs.jcup.bundler.icons.AppIcon;
+import co.casterlabs.jcup.bundler.runtime.RuntimePruner;
+import co.casterlabs.jcup.bundler.runtime.SharedRuntimes;
+import co.casterlabs.jcup.bundler.runtime.SharedRuntimes.SharedRuntime;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.NonNull;
@@ -37,19 +39,27 @@ class LinuxBundler implements Bundler {
     static final Bundler INSTANCE_MUSL = new LinuxBundler(OperatingSystem.linux_musl);
     private static final FastLogger LOGGER = Bundler.LOGGER.createChild("Linux");
 
+    /**
+     * Containers start fresh every time, so installing the runtime into the
+     * per-user store, looking for a running instance or profiling "first" launches
+     * would only add to every start.
+     */
+    private static final Set<String> NOT_IN_OCI = Set.of("runtime.id", "instance.txt", "profiling.txt", Bundler.PROFILING_SETTINGS);
+
     private final OperatingSystem os;
 
     @Override
     public void bundle(@NonNull Config config, @Nullable AppIcon icon, @NonNull OSSpecificConfig ossc, @NonNull Architecture arch) throws JCupAbortException {
-        File buildFolder = JCup.createBuildFolder(this.os, arch);
-        Utils.deleteRecursively(buildFolder); // Empty it out.
+        BundleTree tree = new BundleTree();
+
+        RuntimePruner pruner = Bundler.createPruner(config, ossc, "runtime/");
+        tree.addFilter(pruner);
 
-        // Download the JRE and extract it to the runtime/ folder.
+        // Get the (shared) JRE and map it into the runtime/ folder.
         {
-            File runtimeFolder = new File(buildFolder, "runtime");
-            File archive;
+            SharedRuntime runtime;
             try {
-                archive = Adoptium.download(config.javaVersion, arch, this.os);
+                runtime = SharedRuntimes.get(Bundler.createRuntimeProvider(config), config.javaVersion, this.os, arch);
             } catch (IllegalArgumentException e) {
                 LOGGER.warn("Unsupported build target, ignoring.\n%s", e);
                 return;
@@ -58,120 +68,155 @@ class LinuxBundler implements Bundler {
                 throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
             }
 
+            PathMapping mapping = PathMapping.create().prefix("runtime/");
+            runtime.addTo(tree, mapping);
+            Bundler.addRuntimeId(config, ossc, runtime, mapping, tree, "runtime/", "");
+        }
+
+        // Includes & the VM args file.
+        Bundler.addApp(config, ossc, icon, tree, "");
+        Bundler.addInstanceFile(config, tree, "");
+        Bundler.addProfiling(config, tree, "");
+
+        // Add the launcher executable.
+        tree.addResource(config.executableName, "/unix-launcher", true);
+
+        byte[] iconPng = null;
+        if (icon != null) {
             try {
-                ArchiveExtractor.extract(
-                    Archives.probeFormat(archive),
-                    archive,
-                    runtimeFolder
-                );
+                iconPng = icon.toPng();
+                tree.addBytes(config.executableName + ".png", iconPng);
             } catch (IOException e) {
-                LOGGER.fatal("Unable to extract JRE, aborting.\n%s", e);
-                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+                LOGGER.warn("Unable to write image icon, ignoring.\n%s", e);
             }
+        }
+
+        // Mark files as executable.
+        tree.markExecutable("runtime/bin/java");
 
-            // Clean it all up.
+        File artifact = Bundler.createArtifact(config, tree, this.os, arch, Format.TAR_GZ);
+        pruner.report(LOGGER);
+
+        if (config.selfExtracting) {
+            File sfxFile = new File(JCup.ARTIFACTS_FOLDER, String.format("%s-%s-%s.run", config.executableName, this.os, arch));
             try {
-                if (buildFolder.list().length == 1) {
-                    // It's nested. Let's fix that.
-                    File nestedFolder = runtimeFolder.listFiles()[0];
-                    LOGGER.debug("Reorganizing the VM files.");
-                    for (File nestedFolderChild : nestedFolder.listFiles()) {
-                        Files.move(nestedFolderChild.toPath(), new File(runtimeFolder, nestedFolderChild.getName()).toPath());
-                    }
-                    nestedFolder.delete();
-                }
+                SelfExtracting.createUnix(config.executableName, artifact, sfxFile);
+                LOGGER.info("Produced artifact: %s", sfxFile.getAbsolutePath());
             } catch (IOException e) {
-                LOGGER.fatal("Unable to move JRE files, aborting.\n%s", e);
+                LOGGER.fatal("Unable to create self-extracting executable, aborting.\n%s", e);
                 throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
             }
+        }
 
-            Utils.deleteRecursively(new File(runtimeFolder, "man")); // Delete any manpages.
-            Utils.deleteRecursively(new File(runtimeFolder, "docs")); // Delete any manpages.
+        // Before the AppImage, which adds its own files to the tree.
+        if (config.oci.enabled) {
+            this.createOciImage(config, tree, arch);
         }
 
-        // Includes.
-        try {
-            for (Entry<String, String> entry : config.mainInclude.entrySet()) {
-                File toIncludeFile = new File(entry.getKey());
-                File includedFile = new File(buildFolder, entry.getValue());
-                Files.copy(toIncludeFile.toPath(), includedFile.toPath());
-            }
-            for (Entry<String, String> entry : ossc.extraInclude.entrySet()) {
-                File toIncludeFile = new File(entry.getKey());
-                File includedFile = new File(buildFolder, entry.getValue());
-                Files.copy(toIncludeFile.toPath(), includedFile.toPath());
-            }
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to copy `include`'d files, aborting.\n%s", e);
-            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        if (config.appImage.enabled) {
+            this.createAppImage(config, tree, iconPng, arch);
         }
 
-        // Create the VM args file.
+        LOGGER.info("Done!");
+    }
+
+    private void createOciImage(Config config, BundleTree tree, Architecture arch) throws JCupAbortException {
+        String ociArch = ociArchitecture(arch);
+        String prefix = "opt/" + config.executableName + '/';
+        File ociFile = new File(JCup.ARTIFACTS_FOLDER, String.format("%s-%s-%s.oci.tar", config.executableName, this.os, arch));
+
         try {
-            String vmArgs;
-            if (ossc.extraVmArgs == null || ossc.extraVmArgs.isEmpty()) {
-                vmArgs = config.vmArgs;
+            OciImageWriter writer = new OciImageWriter(new File(JCup.BUILD_FOLDER, "oci-layers"), config.oci.compressionLevel, ociArch);
+            if (config.oci.baseImagePath == null) {
+                LOGGER.warn("No oci.baseImagePath is set, the image won't have a shell or libc to run the launcher with.");
             } else {
-                vmArgs = ossc.extraVmArgs + ' ' + config.vmArgs;
+                writer.base(new File(config.oci.baseImagePath));
             }
-            Files.writeString(new File(buildFolder, "vmargs.txt").toPath(), vmArgs);
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to write vmargs.txt, aborting.\n%s", e);
-            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-        }
 
-        // Add the launcher executable.
-        try (InputStream in = Main.class.getResourceAsStream("/unix-launcher");
-            OutputStream out = new FileOutputStream(new File(buildFolder, config.executableName))) {
-            in.transferTo(out);
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to copy native executable, aborting.\n%s", e);
+            if (config.sharedRuntime || config.singleInstance || config.profiling.enabled) {
+                LOGGER.warn("sharedRuntime, singleInstance and profiling don't apply to the OCI image, ignoring.");
+            }
+
+            // Least to most likely to change, so the layers in front stay cached.
+            writer
+                .addLayer(tree, (e) -> e.path.startsWith("runtime/"), prefix)
+                .addLayer(tree, (e) -> !e.path.startsWith("runtime/") && isDependency(e), prefix)
+                .addLayer(tree, (e) -> !e.path.startsWith("runtime/") && !isDependency(e) && !NOT_IN_OCI.contains(e.path), prefix)
+                .finish(ociFile, config.oci.tag, "/" + prefix, "/" + prefix + config.executableName);
+            LOGGER.info("Produced artifact: %s", ociFile.getAbsolutePath());
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.fatal("Unable to create OCI image, aborting.\n%s", e);
             throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
         }
+    }
 
-        if (icon != null) {
-            try {
-                Files.write(
-                    new File(buildFolder, config.executableName + ".png").toPath(),
-                    icon.toPng()
-                );
-            } catch (IOException e) {
-                LOGGER.warn("Unable to write image icon, ignoring.\n%s", e);
-            }
-        }
+    /**
+     * Jars in a folder (e.g libs/) are the app's dependencies, which change less
+     * often than the app itself.
+     */
+    private static boolean isDependency(BundleEntry entry) {
+        return entry.path.endsWith(".jar") && entry.path.indexOf('/') != -1;
+    }
 
-        // Mark files as executable.
-        final String[] NEED_TO_MARK_EXEC = {
-                config.executableName,
-                "runtime/bin/java"
+    private static String ociArchitecture(Architecture arch) {
+        return switch (arch) {
+            case x86 -> "386";
+            case x86_64 -> "amd64";
+            case arm -> "arm";
+            case aarch64 -> "arm64";
+            case riscv64 -> "riscv64";
         };
+    }
 
-        if (Platform.osDistribution == OSDistribution.WINDOWS_NT) {
-            LOGGER.warn(
-                "Windows doesn't support marking files (%s) as executable, this will likely cause problems for your users. I hope you know what you are doing.",
-                String.join(", ", NEED_TO_MARK_EXEC)
-            );
-        } else {
-            for (String path : NEED_TO_MARK_EXEC) {
-                File file = new File(buildFolder, path);
-                if (!file.setExecutable(true)) {
-                    LOGGER.fatal("Unable to mark %s as executable, aborting.", file);
-                    throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-                }
+    private void createAppImage(Config config, BundleTree tree, @Nullable byte[] iconPng, Architecture arch) throws JCupAbortException {
+        File runtimeFile;
+        if (config.appImage.runtimePath == null) {
+            try {
+                runtimeFile = AppImageRuntime.download(config.appImage.runtimeUrl, arch);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Unsupported AppImage target, ignoring.\n%s", e);
+                return;
+            } catch (IOException | InterruptedException e) {
+                LOGGER.fatal("Unable to download AppImage runtime, aborting.\n%s", e);
+                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
             }
+        } else {
+            runtimeFile = new File(config.appImage.runtimePath);
         }
 
+        // The AppDir needs a few extra files.
+        tree.addResource("AppRun", "/unix-launcher", true);
+        tree.addString(
+            config.executableName + ".desktop",
+            "[Desktop Entry]\n"
+                + "Type=Application\n"
+                + "Name=" + config.executableName + "\n"
+                + "Exec=" + config.executableName + "\n"
+                + "Icon=" + config.executableName + "\n"
+                + "Categories=Utility;\n"
+        );
+        if (iconPng != null) {
+            tree.addBytes(".DirIcon", iconPng);
+        }
+
+        File appImageFile = new File(JCup.ARTIFACTS_FOLDER, String.format("%s-%s-%s.AppImage", config.executableName, this.os, arch));
         try {
-            File archiveFile = new File(JCup.ARTIFACTS_FOLDER, String.format("%s-%s-%s.tar.gz", config.executableName, this.os, arch));
-            ArchiveCreator.create(Format.TAR_GZ, buildFolder, archiveFile);
-            LOGGER.info("Produced artifact: %s", archiveFile.getAbsolutePath());
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to create .tar.gz file, aborting.\n%s", e);
+            // The runtime finds the image right after its own ELF data.
+            Files.copy(runtimeFile.toPath(), appImageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            try (
+                FileChannel channel = FileChannel.open(appImageFile.toPath(), StandardOpenOption.WRITE);
+                SquashFsWriter writer = new SquashFsWriter(channel, runtimeFile.length(), config.appImage.compressor, config.appImage.compressionLevel, config.appImage.blockSize)) {
+                tree.walk(writer::add);
+                writer.finish();
+            }
+
+            Archives.applyMode(appImageFile, BundleEntry.MODE_EXECUTABLE);
+            LOGGER.info("Produced artifact: %s", appImageFile.getAbsolutePath());
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.fatal("Unable to create .AppImage file, aborting.\n%s", e);
             throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
         }
-
-        // TODO .AppImage
-        LOGGER.info("Done!");
     }
 
 }
@@ -0,0 +1,74 @@
+package co.casterlabs.jcup.bundler.platforms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import co.casterlabs.jcup.bundler.archive.Archives;
+import co.casterlabs.jcup.bundler.archive.BundleEntry;
+import lombok.NonNull;
+
+/**
+ * Glues a stub in front of a Linux bundle artifact. On first launch the stub extracts
+ * the bundle into a per-user cache folder keyed by the bundle's hash, every
+ * launch after that goes straight to the cached copy.
+ */
+class SelfExtracting {
+    private static final int HASH_LENGTH = 16;
+
+    /**
+     * @param payload a .tar.gz bundle.
+     */
+    static void createUnix(@NonNull String name, @NonNull File payload, @NonNull File destFile) throws IOException {
+        String hash = hash(payload).substring(0, HASH_LENGTH);
+
+        String template;
+        try (InputStream in = SelfExtracting.class.getResourceAsStream("/unix-sfx")) {
+            template = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        template = template
+            .replace("{name}", shellQuote(name))
+            .replace("{hash}", hash);
+
+        // The payload offset is part of the script, so we have to go until the length
+        // settles.
+        byte[] script;
+        int payloadStart = 0;
+        while (true) {
+            script = template
+                .replace("{payload_start}", String.valueOf(payloadStart))
+                .getBytes(StandardCharsets.UTF_8);
+            if (payloadStart == script.length + 1) break; // tail -c +N is 1-based.
+            payloadStart = script.length + 1;
+        }
+
+        try (OutputStream out = new FileOutputStream(destFile)) {
+            out.write(script);
+            try (InputStream in = new FileInputStream(payload)) {
+                in.transferTo(out);
+            }
+        }
+        Archives.applyMode(destFile, BundleEntry.MODE_EXECUTABLE);
+    }
+
+    /**
+     * Single-quotes the string for sh, where nothing inside is special except the
+     * quote itself.
+     */
+    private static String shellQuote(String str) {
+        return '\'' + str.replace("'", "'\\''") + '\'';
+    }
+
+    private static String hash(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return DigestUtils.sha256Hex(in);
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package co.casterlabs.jcup.bundler.platforms;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.NonNull;
+
+/**
+ * The Linux and macOS launchers resolve these placeholders in vmargs.txt when
+ * the app starts, e.g {@code -Xmx{{memory_percent|50}}m}:
+ * <ul>
+ * <li>{@code {{memory_percent|N}}}: N% of the memory available to the app, in
+ * megabytes. Cgroup limits are respected on Linux.</li>
+ * <li>{@code {{memory_at_least|MB|A|B}}}: A if at least MB megabytes are
+ * available, otherwise B.</li>
+ * <li>{@code {{cpu_count}}}: The number of cpus available to the app.</li>
+ * <li>{@code {{cpu_at_least|N|A|B}}}: A if at least N cpus are available,
+ * otherwise B, e.g {@code {{cpu_at_least|2|-XX:+UseG1GC|-XX:+UseSerialGC}}}.</li>
+ * </ul>
+ * If a placeholder can't be resolved then the launcher leaves the whole
+ * argument out, so the JVM falls back to its own defaults.
+ */
+public class VmArgTemplates {
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{(.*?)\\}\\}");
+
+    /**
+     * @throws IllegalArgumentException if the placeholders wouldn't resolve.
+     */
+    public static void validate(@NonNull String vmArgs) {
+        for (String arg : vmArgs.trim().split("\\s+")) {
+            Matcher matcher = PLACEHOLDER.matcher(arg);
+            while (matcher.find()) {
+                validatePlaceholder(matcher.group(1));
+            }
+
+            if (matcher.replaceAll("").contains("{{")) {
+                throw new IllegalArgumentException("Unterminated placeholder (placeholders may not contain whitespace): " + arg);
+            }
+        }
+    }
+
+    private static void validatePlaceholder(String placeholder) {
+        String[] parts = placeholder.split("\\|", -1);
+        switch (parts[0]) {
+            case "memory_percent": {
+                expectParts(placeholder, parts, 2);
+                int percent = parseNumber(placeholder, parts[1]);
+                if (percent < 1 || percent > 100) {
+                    throw new IllegalArgumentException("Percentage must be between 1 and 100: {{" + placeholder + "}}");
+                }
+                return;
+            }
+
+            case "cpu_count":
+                expectParts(placeholder, parts, 1);
+                return;
+
+            case "memory_at_least":
+            case "cpu_at_least":
+                expectParts(placeholder, parts, 4);
+                parseNumber(placeholder, parts[1]);
+                return;
+
+            default:
+                throw new IllegalArgumentException("Unknown placeholder: {{" + placeholder + "}}");
+        }
+    }
+
+    private static void expectParts(String placeholder, String[] parts, int count) {
+        if (parts.length != count) {
+            throw new IllegalArgumentException(String.format("Expected %d argument(s) but got %d: {{%s}}", count - 1, parts.length - 1, placeholder));
+        }
+    }
+
+    private static int parseNumber(String placeholder, String number) {
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number but got \"" + number + "\": {{" + placeholder + "}}");
+        }
+    }
+
+}
@@ -1,28 +1,22 @@
 package co.casterlabs.jcup.bundler.platforms;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Files;
-import java.util.Map.Entry;
 
 import org.jetbrains.annotations.Nullable;
 
-import co.casterlabs.jcup.bundler.Adoptium;
 import co.casterlabs.jcup.bundler.JCup;
 import co.casterlabs.jcup.bundler.JCupAbortException;
-import co.casterlabs.jcup.bundler.Utils;
-import co.casterlabs.jcup.bundler.archive.ArchiveCreator;
-import co.casterlabs.jcup.bundler.archive.ArchiveExtractor;
-import co.casterlabs.jcup.bundler.archive.Archives;
 import co.casterlabs.jcup.bundler.archive.Archives.Format;
+import co.casterlabs.jcup.bundler.archive.BundleTree;
+import co.casterlabs.jcup.bundler.archive.PathMapping;
 import co.casterlabs.jcup.bundler.config.Architecture;
 import co.casterlabs.jcup.bundler.config.Config;
 import co.casterlabs.jcup.bundler.config.Config.OSSpecificConfig;
 import co.casterlabs.jcup.bundler.config.OperatingSystem;
 import co.casterlabs.jcup.bundler.icons.AppIcon;
+import co.casterlabs.jcup.bundler.runtime.RuntimePruner;
+import co.casterlabs.jcup.bundler.runtime.SharedRuntimes;
+import co.casterlabs.jcup.bundler.runtime.SharedRuntimes.SharedRuntime;
 import lombok.NonNull;
 import xyz.e3ndr.fastloggingframework.logging.FastLogger;
 
@@ -32,15 +26,18 @@ class WindowsBundler implements Bundler {
 
     @Override
     public void bundle(@NonNull Config config, @Nullable AppIcon icon, @NonNull OSSpecificConfig ossc, @NonNull Architecture arch) throws JCupAbortException {
-        File buildFolder = JCup.createBuildFolder(OperatingSystem.windows, arch);
-        Utils.deleteRecursively(buildFolder); // Empty it out.
+        checkUnsupported(config, ossc);
 
-        // Download the JRE and extract it to the runtime/ folder.
+        BundleTree tree = new BundleTree();
+
+        RuntimePruner pruner = Bundler.createPruner(config, ossc, "runtime/");
+        tree.addFilter(pruner);
+
+        // Get the (shared) JRE and map it into the runtime/ folder.
         {
-            File runtimeFolder = new File(buildFolder, "runtime");
-            File archive;
+            SharedRuntime runtime;
             try {
-                archive = Adoptium.download(config.javaVersion, arch, OperatingSystem.windows);
+                runtime = SharedRuntimes.get(Bundler.createRuntimeProvider(config), config.javaVersion, OperatingSystem.windows, arch);
             } catch (IllegalArgumentException e) {
                 LOGGER.warn("Unsupported build target, ignoring.\n%s", e);
                 return;
@@ -49,102 +46,53 @@ class WindowsBundler implements Bundler {
                 throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
             }
 
-            try {
-                ArchiveExtractor.extract(
-                    Archives.probeFormat(archive),
-                    archive,
-                    runtimeFolder
-                );
-            } catch (IOException e) {
-                LOGGER.fatal("Unable to extract JRE, aborting.\n%s", e);
-                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-            }
-
-            // Clean it all up.
-            try {
-                if (buildFolder.list().length == 1) {
-                    // It's nested. Let's fix that.
-                    File nestedFolder = runtimeFolder.listFiles()[0];
-                    LOGGER.debug("Reorganizing the VM files.");
-                    for (File nestedFolderChild : nestedFolder.listFiles()) {
-                        Files.move(nestedFolderChild.toPath(), new File(runtimeFolder, nestedFolderChild.getName()).toPath());
-                    }
-                    nestedFolder.delete();
-                }
-            } catch (IOException e) {
-                LOGGER.fatal("Unable to move JRE files, aborting.\n%s", e);
-                throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-            }
-
-            Utils.deleteRecursively(new File(runtimeFolder, "man")); // Delete any manpages.
-            Utils.deleteRecursively(new File(runtimeFolder, "docs")); // Delete any manpages.
+            PathMapping mapping = PathMapping.create().prefix("runtime/");
+            runtime.addTo(tree, mapping);
         }
 
-        // Includes.
-        try {
-            for (Entry<String, String> entry : config.mainInclude.entrySet()) {
-                File toIncludeFile = new File(entry.getKey());
-                File includedFile = new File(buildFolder, entry.getValue());
-                Files.copy(toIncludeFile.toPath(), includedFile.toPath());
-            }
-            for (Entry<String, String> entry : ossc.extraInclude.entrySet()) {
-                File toIncludeFile = new File(entry.getKey());
-                File includedFile = new File(buildFolder, entry.getValue());
-                Files.copy(toIncludeFile.toPath(), includedFile.toPath());
-            }
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to copy `include`'d files, aborting.\n%s", e);
-            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-        }
-
-        // Create the VM args file.
-        try {
-            String vmArgs;
-            if (ossc.extraVmArgs == null || ossc.extraVmArgs.isEmpty()) {
-                vmArgs = config.vmArgs;
-            } else {
-                vmArgs = ossc.extraVmArgs + ' ' + config.vmArgs;
-            }
-            Files.writeString(new File(buildFolder, "vmargs.txt").toPath(), vmArgs);
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to write vmargs.txt, aborting.\n%s", e);
-            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-        }
+        // Includes & the VM args file.
+        Bundler.addApp(config, ossc, icon, tree, "");
 
         // Add the launcher exe.
-        try (InputStream in = JCup.class.getResourceAsStream(arch == Architecture.x86 ? "/windows-launcher-x86.exe" : "/windows-launcher-x86_64.exe");
-            OutputStream out = new FileOutputStream(new File(buildFolder, config.executableName + ".exe"))) {
-            in.transferTo(out);
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to copy native executable, aborting.\n%s", e);
-            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-        }
+        tree.addResource(config.executableName + ".exe", arch == Architecture.x86 ? "/windows-launcher-x86.exe" : "/windows-launcher-x86_64.exe", true);
 
         // Add the icon
         // TODO modify the .exe with this icon instead.
         if (icon != null) {
             try {
-                Files.write(
-                    new File(buildFolder, config.executableName + ".ico").toPath(),
-                    icon.toIco()
-                );
+                tree.addBytes(config.executableName + ".ico", icon.toIco());
             } catch (IOException e) {
                 LOGGER.warn("Unable to write image icon, ignoring.\n%s", e);
             }
         }
 
         // Create the build artifact.
-        try {
-            File archiveFile = new File(JCup.ARTIFACTS_FOLDER, String.format("%s-%s-%s.zip", config.executableName, OperatingSystem.windows, arch));
-            ArchiveCreator.create(Format.ZIP, buildFolder, archiveFile);
-            LOGGER.info("Produced artifact: %s", archiveFile.getAbsolutePath());
-        } catch (IOException e) {
-            LOGGER.fatal("Unable to create .zip file, aborting.\n%s", e);
-            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
-        }
+        Bundler.createArtifact(config, tree, OperatingSystem.windows, arch, Format.ZIP);
+        pruner.report(LOGGER);
 
         // TODO msi installer.
         LOGGER.info("Done!");
     }
 
+    private static void checkUnsupported(Config config, OSSpecificConfig ossc) throws JCupAbortException {
+        // java.exe would get the placeholder as-is and refuse to start.
+        if (config.vmArgs.contains("{{") || (ossc.extraVmArgs != null && ossc.extraVmArgs.contains("{{"))) {
+            LOGGER.fatal("vmArgs placeholders aren't supported on Windows yet, aborting.");
+            throw new JCupAbortException(JCup.EXIT_CODE_ERROR);
+        }
+
+        if (config.singleInstance) {
+            LOGGER.warn("singleInstance isn't supported on Windows yet, ignoring.");
+        }
+        if (config.sharedRuntime) {
+            LOGGER.warn("sharedRuntime isn't supported on Windows yet, ignoring.");
+        }
+        if (config.profiling.enabled) {
+            LOGGER.warn("Profiling isn't supported on Windows yet, ignoring.");
+        }
+        if (config.selfExtracting) {
+            LOGGER.warn("selfExtracting isn't supported on Windows yet, ignoring.");
+        }
+    }
+
 }
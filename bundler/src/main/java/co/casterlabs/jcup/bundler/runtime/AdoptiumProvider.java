@@ -0,0 +1,136 @@
+package co.casterlabs.jcup.bundler.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import co.casterlabs.rakurai.json.Rson;
+import co.casterlabs.rakurai.json.element.JsonArray;
+import co.casterlabs.rakurai.json.element.JsonElement;
+import co.casterlabs.rakurai.json.element.JsonObject;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Downloads JREs using the Adoptium API, or anything that serves the same API
+ * (e.g a mirror on the LAN). Relative package links are resolved against the
+ * API's url, so a mirror can serve the packages itself.
+ */
+public class AdoptiumProvider implements RuntimeProvider {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("AdoptiumDownloader");
+
+    public static final String DEFAULT_URL = "https://api.adoptium.net";
+
+    private static final HttpClient httpClient = HttpClient
+        .newBuilder()
+        .followRedirects(Redirect.ALWAYS)
+        .build();
+
+    public static final Map<Architecture, String> ARCH_MAPPING = Map.of(
+        Architecture.x86, "x86",
+        Architecture.x86_64, "x64",
+        Architecture.arm, "arm",
+        Architecture.aarch64, "aarch64",
+        Architecture.riscv64, "riscv64"
+    );
+
+    public static final Map<OperatingSystem, String> OS_MAPPING = Map.of(
+        OperatingSystem.linux_glibc, "linux",
+        OperatingSystem.linux_musl, "alpine-linux",
+        OperatingSystem.macosx, "mac",
+        OperatingSystem.windows, "windows"
+    );
+
+    private final String url;
+
+    public AdoptiumProvider(@NonNull String url) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    @Override
+    public String id() {
+        return "adoptium:" + this.url;
+    }
+
+    @Override
+    public File provide(int version, @NonNull OperatingSystem os, @NonNull Architecture arch) throws IOException, InterruptedException {
+        LOGGER.info("Looking for build (%d:%s:%s) at %s", version, arch, os, this.url);
+        URI apiUri = URI.create(
+            (this.url + "/v3/assets/latest/{version}/hotspot?architecture={arch}&image_type=jre&os={os}&vendor=eclipse")
+                .replace("{version}", String.valueOf(version))
+                .replace("{arch}", ARCH_MAPPING.get(arch))
+                .replace("{os}", OS_MAPPING.get(os))
+        );
+
+        HttpResponse<String> apiResponse = httpClient.send(
+            HttpRequest.newBuilder()
+                .uri(apiUri)
+                .GET()
+                .build(),
+            HttpResponse.BodyHandlers.ofString()
+        );
+        if (apiResponse.statusCode() != 200) {
+            throw new IOException("Unable to look up build, got status " + apiResponse.statusCode());
+        }
+
+        JsonArray json = Rson.DEFAULT.fromJson(apiResponse.body(), JsonArray.class);
+        LOGGER.trace("Loaded build data: %s", json);
+
+        String binaryUrl = null;
+        String binaryName = null;
+        for (JsonElement e : json) {
+            JsonObject object = e.getAsObject();
+            if (object.containsKey("binary")) {
+                JsonObject binaryObject = object.getObject("binary");
+                if (binaryObject.containsKey("package")) {
+                    JsonObject packageObject = binaryObject.getObject("package");
+                    binaryUrl = packageObject.getString("link");
+                    binaryName = packageObject.getString("name");
+                    break;
+                }
+            }
+        }
+
+        if (binaryUrl == null || binaryName == null) {
+            throw new IllegalArgumentException("Unable to find download for " + version + ":" + arch + ":" + os);
+        }
+
+        URI binaryUri = apiUri.resolve(binaryUrl);
+        File binaryArchive = new File(JCup.DOWNLOAD_CACHE_FOLDER, binaryName);
+        LOGGER.debug("Url: %s, Path: %s", binaryUri, binaryArchive);
+
+        if (binaryArchive.exists()) {
+            LOGGER.info("This JRE build is cached. Using that instead.");
+        } else {
+            LOGGER.info("Found a link. Downloading...");
+
+            // Download to the side, so an interrupted download never ends up in the cache.
+            File tempFile = new File(JCup.DOWNLOAD_CACHE_FOLDER, binaryName + ".part");
+            HttpResponse<?> response = httpClient.send(
+                HttpRequest.newBuilder()
+                    .uri(binaryUri)
+                    .GET()
+                    .build(),
+                HttpResponse.BodyHandlers.ofFile(tempFile.toPath())
+            );
+            if (response.statusCode() != 200) {
+                tempFile.delete();
+                throw new IOException("Unable to download JRE, got status " + response.statusCode());
+            }
+            if (!tempFile.renameTo(binaryArchive)) {
+                throw new IOException("Unable to move the JRE into the download cache.");
+            }
+            LOGGER.info("Finished downloading...");
+        }
+        return binaryArchive;
+    }
+
+}
@@ -0,0 +1,100 @@
+package co.casterlabs.jcup.bundler.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.archive.Archives;
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Picks JREs out of a folder of pre-fetched archives. Archives can either be
+ * named like jcup's targets (e.g {@code 17-linux_glibc-x86_64.tar.gz}) or keep
+ * the names Adoptium gave them (e.g
+ * {@code OpenJDK17U-jre_x64_linux_hotspot_17.0.9_9.tar.gz}), in which case the
+ * newest one wins.
+ */
+public class DirectoryProvider implements RuntimeProvider {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("DirectoryProvider");
+
+    private final File directory;
+
+    public DirectoryProvider(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public String id() {
+        return "directory:" + this.directory.getAbsolutePath();
+    }
+
+    @Override
+    public File provide(int javaVersion, @NonNull OperatingSystem os, @NonNull Architecture arch) throws IOException {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + this.directory.getAbsolutePath());
+        }
+
+        String jcupName = String.format("%d-%s-%s", javaVersion, os, arch);
+        String adoptiumPrefix = String.format("OpenJDK%dU-jre_%s_%s_hotspot_", javaVersion, AdoptiumProvider.ARCH_MAPPING.get(arch), AdoptiumProvider.OS_MAPPING.get(os));
+
+        List<File> candidates = Arrays.stream(files)
+            .filter(File::isFile)
+            .filter((file) -> Archives.probeFormat(file) != null)
+            .filter((file) -> {
+                String name = file.getName();
+                return name.startsWith(adoptiumPrefix) || name.equals(jcupName + Archives.probeFormat(file).extension);
+            })
+            .sorted(Comparator.comparing(File::getName, DirectoryProvider::compareVersions).reversed())
+            .collect(Collectors.toList());
+
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No archive for %s in %s", jcupName, this.directory.getAbsolutePath()));
+        }
+
+        // Exact names win over the newest Adoptium one.
+        File chosen = candidates
+            .stream()
+            .filter((file) -> file.getName().startsWith(jcupName + '.'))
+            .findFirst()
+            .orElse(candidates.get(0));
+        LOGGER.info("Using %s for %s.", chosen, jcupName);
+        return chosen;
+    }
+
+    /**
+     * Compares the runs of digits numerically, so {@code 17.0.10} is newer than
+     * {@code 17.0.9}.
+     */
+    static int compareVersions(String a, String b) {
+        int i = 0, j = 0;
+        while (i < a.length() && j < b.length()) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+
+            if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                int startA = i, startB = j;
+                while (i < a.length() && Character.isDigit(a.charAt(i))) i++;
+                while (j < b.length() && Character.isDigit(b.charAt(j))) j++;
+
+                String numberA = a.substring(startA, i).replaceFirst("^0+(?=.)", "");
+                String numberB = b.substring(startB, j).replaceFirst("^0+(?=.)", "");
+                int result = numberA.length() != numberB.length() ? Integer.compare(numberA.length(), numberB.length()) : numberA.compareTo(numberB);
+                if (result != 0) return result;
+            } else {
+                if (ca != cb) return Character.compare(ca, cb);
+                i++;
+                j++;
+            }
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+}
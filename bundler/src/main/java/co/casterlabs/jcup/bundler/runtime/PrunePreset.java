@@ -0,0 +1,25 @@
+package co.casterlabs.jcup.bundler.runtime;
+
+/**
+ * Built-in sets of runtime files that most apps never touch.
+ */
+public enum PrunePreset {
+    // @formatter:off
+    docs         ("man/**", "docs/**"),
+    legal        ("legal/**"),
+    sources      ("lib/src.zip"),
+    headers      ("include/**"),
+    debug_symbols("*.debuginfo", "*.diz", "*.pdb", "**/*.dSYM/**"),
+    ;
+    // @formatter:on
+
+    /**
+     * Globs, relative to the runtime folder.
+     */
+    public final String[] globs;
+
+    private PrunePreset(String... globs) {
+        this.globs = globs;
+    }
+
+}
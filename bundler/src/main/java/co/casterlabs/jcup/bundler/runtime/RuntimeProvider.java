@@ -0,0 +1,71 @@
+package co.casterlabs.jcup.bundler.runtime;
+
+import java.io.File;
+import java.io.IOException;
+
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.Config.RuntimeConfig;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import lombok.NonNull;
+
+/**
+ * Where the JREs come from, see {@link RuntimeConfig}.
+ */
+public interface RuntimeProvider {
+
+    /**
+     * @return an archive of the JRE, in any of the
+     *         {@link co.casterlabs.jcup.bundler.archive.Archives.Format}s.
+     *
+     * @throws IllegalArgumentException if there's no runtime for the target.
+     */
+    public File provide(int javaVersion, @NonNull OperatingSystem os, @NonNull Architecture arch) throws IOException, InterruptedException;
+
+    /**
+     * Identifies the source, runtimes from different sources are never shared.
+     */
+    public String id();
+
+    /**
+     * @throws IllegalArgumentException if the config is incomplete.
+     */
+    public static RuntimeProvider from(@NonNull RuntimeConfig config) {
+        switch (config.provider) {
+            case adoptium:
+                return new AdoptiumProvider(AdoptiumProvider.DEFAULT_URL);
+
+            case mirror:
+                if (config.url == null || config.url.isBlank()) {
+                    throw new IllegalArgumentException("The mirror provider needs a `url`.");
+                }
+                return new AdoptiumProvider(config.url);
+
+            case directory:
+                if (config.directory == null || config.directory.isBlank()) {
+                    throw new IllegalArgumentException("The directory provider needs a `directory`.");
+                }
+                return new DirectoryProvider(new File(config.directory));
+
+            default:
+                throw new IllegalArgumentException("Unknown provider: " + config.provider);
+        }
+    }
+
+    public static enum Type {
+        /**
+         * Downloads from api.adoptium.net.
+         */
+        adoptium,
+
+        /**
+         * Downloads from a server with the same API as Adoptium, at `url`.
+         */
+        mirror,
+
+        /**
+         * Picks from a folder of pre-fetched archives, at `directory`.
+         */
+        directory,
+    }
+
+}
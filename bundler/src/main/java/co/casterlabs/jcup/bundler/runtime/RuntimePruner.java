@@ -0,0 +1,124 @@
+package co.casterlabs.jcup.bundler.runtime;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.Utils;
+import co.casterlabs.jcup.bundler.archive.BundleEntry;
+import co.casterlabs.jcup.bundler.config.Config.PruneConfig;
+import lombok.NonNull;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Strips unneeded files out of the runtime as the bundle is being walked, and
+ * keeps track of how much each rule saved.
+ */
+public class RuntimePruner implements Predicate<BundleEntry> {
+    private final String runtimePrefix;
+
+    private final List<Pattern> keep = new ArrayList<>();
+    private final Map<String, List<Pattern>> rules = new LinkedHashMap<>();
+    private final Map<String, long[]> savings = new LinkedHashMap<>(); // name -> {files, bytes}
+
+    /**
+     * @param runtimePrefix where the runtime lives in the bundle, e.g
+     *                      {@code runtime/}.
+     */
+    public RuntimePruner(@NonNull String runtimePrefix, @Nullable PruneConfig... configs) {
+        this.runtimePrefix = runtimePrefix;
+
+        for (PruneConfig config : configs) {
+            if (config == null) continue;
+
+            if (config.presets != null) {
+                for (String presetName : config.presets) {
+                    PrunePreset preset;
+                    try {
+                        preset = PrunePreset.valueOf(presetName);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown prune preset: " + presetName);
+                    }
+
+                    for (String glob : preset.globs) {
+                        this.addRule(preset.name(), glob);
+                    }
+                }
+            }
+            if (config.exclude != null) {
+                for (String glob : config.exclude) {
+                    this.addRule(glob, glob);
+                }
+            }
+            if (config.include != null) {
+                for (String glob : config.include) {
+                    this.keep.add(Utils.compileGlob(glob));
+                }
+            }
+        }
+    }
+
+    private void addRule(String name, String glob) {
+        this.rules
+            .computeIfAbsent(name, (k) -> new ArrayList<>())
+            .add(Utils.compileGlob(glob));
+    }
+
+    /**
+     * @return true, if the entry should be kept.
+     */
+    @Override
+    public boolean test(BundleEntry entry) {
+        if (!entry.path.startsWith(this.runtimePrefix)) return true; // Not part of the runtime.
+        String path = entry.path.substring(this.runtimePrefix.length());
+
+        for (Pattern pattern : this.keep) {
+            if (pattern.matcher(path).matches()) return true;
+        }
+
+        for (Map.Entry<String, List<Pattern>> rule : this.rules.entrySet()) {
+            for (Pattern pattern : rule.getValue()) {
+                if (pattern.matcher(path).matches()) {
+                    synchronized (this.savings) {
+                        long[] saved = this.savings.computeIfAbsent(rule.getKey(), (k) -> new long[2]);
+                        saved[0]++;
+                        saved[1] += entry.size;
+                    }
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Logs how much each rule saved so far, and resets the counters.
+     */
+    public void report(@NonNull FastLogger logger) {
+        synchronized (this.savings) {
+            if (this.savings.isEmpty()) {
+                logger.info("No runtime files were pruned.");
+                return;
+            }
+
+            long totalFiles = 0;
+            long totalBytes = 0;
+            StringBuilder report = new StringBuilder();
+            for (Map.Entry<String, long[]> saved : this.savings.entrySet()) {
+                totalFiles += saved.getValue()[0];
+                totalBytes += saved.getValue()[1];
+                report.append(String.format("\n    %-24s %6d files %12s", saved.getKey(), saved.getValue()[0], Utils.formatBytes(saved.getValue()[1])));
+            }
+
+            logger.info("Pruned %d files (%s) from the runtime:%s", totalFiles, Utils.formatBytes(totalBytes), report);
+            this.savings.clear();
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+package co.casterlabs.jcup.bundler.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.Workspace;
+import co.casterlabs.jcup.bundler.archive.BundleEntry;
+import co.casterlabs.jcup.bundler.archive.BundleTree;
+import co.casterlabs.jcup.bundler.archive.PathMapping;
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+import xyz.e3ndr.fastloggingframework.logging.FastLogger;
+
+/**
+ * Fetches each runtime once per process. A runtime that only one bundle needs
+ * is streamed straight from its archive into that bundle. One that several
+ * need is extracted once and every bundle then reads from the same folder,
+ * which costs a trip through the disk but saves decoding the archive again for
+ * each of them. Any pruning happens per bundle (as a tree filter), so the
+ * runtime is always complete.
+ */
+public class SharedRuntimes {
+    private static final FastLogger LOGGER = JCup.LOGGER.createChild("SharedRuntimes");
+    private static final File RUNTIMES_FOLDER = new File(JCup.BUILD_FOLDER, "runtimes");
+
+    private static final Map<Key, Holder> runtimes = new ConcurrentHashMap<>();
+
+    /**
+     * @throws IllegalArgumentException if there's no runtime for the target.
+     */
+    public static SharedRuntime get(@NonNull RuntimeProvider provider, int javaVersion, @NonNull OperatingSystem os, @NonNull Architecture arch) throws IOException, InterruptedException {
+        Key key = new Key(provider.id(), javaVersion, os, arch);
+        Holder holder = runtimes.computeIfAbsent(key, (k) -> new Holder(k, provider));
+
+        // Only the first caller does the work, everyone else waits for it (and gets the same result).
+        synchronized (holder) {
+            if (holder.runtime == null && holder.failure == null) {
+                try {
+                    File archive = holder.provider.provide(key.javaVersion, key.os, key.arch);
+                    if (holder.users < 2) {
+                        // Nobody else will read it, so there's nothing to gain from extracting it.
+                        LOGGER.debug("Streaming runtime %s, it only has one user.", key);
+                        return new SharedRuntime(null, archive, Collections.emptySet());
+                    }
+                    holder.runtime = extract(archive, holder.key);
+                } catch (IOException | InterruptedException | IllegalArgumentException e) {
+                    holder.failure = e;
+                }
+            }
+
+            if (holder.failure instanceof IOException) throw (IOException) holder.failure;
+            if (holder.failure instanceof InterruptedException) throw (InterruptedException) holder.failure;
+            if (holder.failure instanceof IllegalArgumentException) throw (IllegalArgumentException) holder.failure;
+            return holder.runtime;
+        }
+    }
+
+    /**
+     * Registers a user of the runtime (e.g a target that's about to be bundled),
+     * which keeps it around until a matching
+     * {@link #release(RuntimeProvider, int, OperatingSystem, Architecture)}. A
+     * runtime with more than one user is extracted instead of streamed, and plans
+     * running at the same time (e.g in a parallel Maven build) don't delete it
+     * from under each other.
+     */
+    public static void retain(@NonNull RuntimeProvider provider, int javaVersion, @NonNull OperatingSystem os, @NonNull Architecture arch) {
+        runtimes.compute(new Key(provider.id(), javaVersion, os, arch), (key, holder) -> {
+            if (holder == null) holder = new Holder(key, provider);
+            holder.users++;
+            return holder;
+        });
+    }
+
+    /**
+     * Deletes the extracted runtime, once nothing else is going to use it.
+     */
+    public static void release(@NonNull RuntimeProvider provider, int javaVersion, @NonNull OperatingSystem os, @NonNull Architecture arch) {
+        runtimes.computeIfPresent(new Key(provider.id(), javaVersion, os, arch), (key, holder) -> {
+            if (--holder.users > 0) return holder; // Still in use.
+
+            synchronized (holder) {
+                if (holder.runtime != null) {
+                    LOGGER.debug("Releasing runtime %s.", holder.key);
+                    Workspace.delete(holder.runtime.folder);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static SharedRuntime extract(File archive, Key key) throws IOException {
+        // Different providers can have the same target, keep them apart.
+        String name = String.format("%d-%s-%s-%s", key.javaVersion, key.os, key.arch, DigestUtils.sha256Hex(key.providerId).substring(0, 8));
+        File folder = new File(RUNTIMES_FOLDER, name);
+
+        LOGGER.info("Extracting runtime %s.", key);
+        File staged = Workspace.stage(name);
+        Set<String> executables;
+        try {
+            executables = new BundleTree()
+                .addArchive(archive, PathMapping.create().stripComponents(1)) // It's nested. Let's fix that.
+                .materialize(staged);
+        } catch (IOException e) {
+            Workspace.delete(staged);
+            throw e;
+        }
+        Workspace.commit(staged, folder); // Replaces any left over from a previous run.
+
+        return new SharedRuntime(folder, archive, Collections.unmodifiableSet(executables));
+    }
+
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class SharedRuntime {
+        /**
+         * The root of the extracted runtime, e.g {@code bin/java} is directly
+         * inside. Null if the runtime is streamed from the {@link #archive}.
+         */
+        public final @Nullable File folder;
+
+        /**
+         * The archive the runtime comes from, its root is nested one folder deep.
+         */
+        public final File archive;
+
+        /**
+         * The paths (relative to {@link #folder}) that were executable in the
+         * archive, since not every host can record it.
+         */
+        public final Set<String> executables;
+
+        /**
+         * Adds the runtime to the tree, under the given prefix.
+         */
+        public void addTo(@NonNull BundleTree tree, @NonNull String prefix) {
+            this.addTo(tree, PathMapping.create().prefix(prefix));
+        }
+
+        /**
+         * @param mapping Maps the path in the runtime to the path in the bundle.
+         *                Return null to leave the file out.
+         */
+        public void addTo(@NonNull BundleTree tree, @NonNull UnaryOperator<String> mapping) {
+            if (this.folder == null) {
+                // It's nested. Let's fix that.
+                tree.addArchive(this.archive, (path) -> {
+                    String stripped = BundleTree.stripComponents(path, 1);
+                    return stripped == null ? null : mapping.apply(stripped);
+                });
+                return;
+            }
+
+            tree.addFolder(this.folder, mapping);
+            for (String executable : this.executables) {
+                String path = mapping.apply(executable);
+                if (path != null) {
+                    tree.markExecutable(path);
+                }
+            }
+        }
+
+        /**
+         * Hashes the files that {@link #addTo(BundleTree, UnaryOperator)} would put
+         * under the runtime prefix (after the filter), so identical runtimes get the
+         * same hash no matter which app they're bundled with (or whether they were
+         * streamed).
+         */
+        public String contentHash(@NonNull UnaryOperator<String> mapping, @NonNull String runtimePrefix, @NonNull Predicate<BundleEntry> filter) throws IOException {
+            // The tree is walked in archive order, so each file is hashed on its own and
+            // then combined in path order.
+            Map<String, byte[]> files = new TreeMap<>();
+
+            BundleTree tree = new BundleTree();
+            this.addTo(tree, PathMapping.create());
+            tree.walk((entry, in) -> {
+                String path = mapping.apply(entry.path);
+                if (path == null || !path.startsWith(runtimePrefix)) return;
+
+                BundleEntry mapped = new BundleEntry(path, entry.size, entry.isExecutable() ? BundleEntry.MODE_EXECUTABLE : BundleEntry.MODE_FILE, 0);
+                if (!filter.test(mapped)) return;
+
+                MessageDigest digest = DigestUtils.getSha256Digest();
+                if (entry.isSymlink()) {
+                    digest.update((byte) 2);
+                    digest.update(entry.symlinkTarget.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    digest.update((byte) (entry.isExecutable() ? 1 : 0));
+                    DigestUtils.updateDigest(digest, in);
+                }
+                files.put(path.substring(runtimePrefix.length()), digest.digest());
+            });
+
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(file.getValue());
+            }
+            return Hex.encodeHexString(digest.digest());
+        }
+
+    }
+
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class Key {
+        private final String providerId;
+        private final int javaVersion;
+        private final OperatingSystem os;
+        private final Architecture arch;
+    }
+
+    private static class Holder {
+        private final Key key;
+        private final RuntimeProvider provider;
+        private SharedRuntime runtime;
+        private Exception failure;
+        private int users; // Guarded by the map.
+
+        private Holder(Key key, RuntimeProvider provider) {
+            this.key = key;
+            this.provider = provider;
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.UnrecognizedExtraField;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import co.casterlabs.jcup.bundler.archive.Archives.Format;
+import co.casterlabs.jcup.bundler.config.Config.CompressionConfig;
+import co.casterlabs.jcup.bundler.config.Config.CompressionRule;
+
+public class ArchiveCreatorTest {
+    private static final ZipShort LEVEL_HEADER_ID = new ZipShort(0x434A); // See ArchiveCreator.
+
+    @TempDir
+    File temp;
+
+    @Test
+    public void zipReusesUnchangedEntries() throws IOException {
+        File source = new File(this.temp, "source");
+        write(source, "same.txt", text(20_000, 'a'));
+        write(source, "changed.txt", text(20_000, 'b'));
+
+        // A previous build that compressed same.txt at level 1 but says it's level 6,
+        // so we can tell whether its bytes were copied or compressed again.
+        File zip = new File(this.temp, "app.zip");
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip)) {
+            out.setLevel(1);
+            for (String name : new String[] {
+                    "same.txt",
+                    "changed.txt"
+            }) {
+                ZipArchiveEntry entry = new ZipArchiveEntry(name);
+                entry.setMethod(ZipEntry.DEFLATED);
+                entry.addExtraField(levelField(6));
+                out.putArchiveEntry(entry);
+                out.write(Files.readAllBytes(new File(source, name).toPath()));
+                out.closeArchiveEntry();
+            }
+        }
+        byte[] previousSame = raw(zip, "same.txt");
+
+        // Same size, different content.
+        write(source, "changed.txt", text(20_000, 'c'));
+        write(source, "new.txt", text(5_000, 'd'));
+
+        CompressionPolicy policy = policy(6);
+        ArchiveCreator.create(Format.ZIP, new BundleTree().addFolder("", source), zip, policy, zip);
+
+        assertArrayEquals(previousSame, raw(zip, "same.txt"), "same.txt should've been copied as-is.");
+        assertFalse(new File(this.temp, "app.zip.part").exists());
+        assertContentMatches(zip, source);
+
+        // A different level means compressing again.
+        ArchiveCreator.create(Format.ZIP, new BundleTree().addFolder("", source), zip, policy(9), zip);
+        assertFalse(Arrays.equals(previousSame, raw(zip, "same.txt")), "same.txt should've been compressed again.");
+        assertContentMatches(zip, source);
+    }
+
+    @Test
+    public void zipIgnoresEntriesWithoutLevel() throws IOException {
+        File source = new File(this.temp, "source");
+        write(source, "file.txt", text(20_000, 'a'));
+
+        File zip = new File(this.temp, "other.zip");
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip)) {
+            out.setLevel(1);
+            out.putArchiveEntry(new ZipArchiveEntry("file.txt"));
+            out.write(Files.readAllBytes(new File(source, "file.txt").toPath()));
+            out.closeArchiveEntry();
+        }
+        byte[] previous = raw(zip, "file.txt");
+
+        ArchiveCreator.create(Format.ZIP, new BundleTree().addFolder("", source), zip, policy(6), zip);
+        assertFalse(Arrays.equals(previous, raw(zip, "file.txt")));
+        assertContentMatches(zip, source);
+    }
+
+    @Test
+    public void tarStoresDuplicatesAsHardLinks() throws IOException {
+        byte[] content = new byte[100_000];
+        new Random(3).nextBytes(content);
+
+        File source = new File(this.temp, "source");
+        write(source, "a/original", content);
+        write(source, "b/copy", content);
+        write(source, "c/executable", content); // Different mode, so not a link.
+        write(source, "small", "small".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(new File(source, "b/symlink").toPath(), Path.of("../a/original"));
+
+        File tar = new File(this.temp, "app.tar.gz");
+        BundleTree tree = new BundleTree()
+            .addFolder("", source)
+            .markExecutable("c/executable");
+        ArchiveCreator.create(Format.TAR_GZ, tree, tar);
+
+        // What's in the archive.
+        Map<String, TarArchiveEntry> entries = new HashMap<>();
+        try (TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(new FileInputStream(tar)))) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+        assertTrue(entries.get("b/copy").isLink());
+        assertEquals("a/original", entries.get("b/copy").getLinkName());
+        assertFalse(entries.get("a/original").isLink());
+        assertFalse(entries.get("c/executable").isLink());
+        assertEquals(BundleEntry.MODE_EXECUTABLE, entries.get("c/executable").getMode() & 07777);
+        assertTrue(entries.get("b/symlink").isSymbolicLink());
+        assertEquals("../a/original", entries.get("b/symlink").getLinkName());
+
+        // Extracting it.
+        File extracted = new File(this.temp, "extracted");
+        ArchiveExtractor.extract(Format.TAR_GZ, tar, extracted);
+        assertArrayEquals(content, Files.readAllBytes(new File(extracted, "a/original").toPath()));
+        assertArrayEquals(content, Files.readAllBytes(new File(extracted, "b/copy").toPath()));
+        assertArrayEquals(content, Files.readAllBytes(new File(extracted, "c/executable").toPath()));
+        assertTrue(Files.isSymbolicLink(new File(extracted, "b/symlink").toPath()));
+
+        // And reading it into another bundle, which fills the hard links in.
+        Map<String, byte[]> walked = new HashMap<>();
+        Map<String, String> symlinks = new HashMap<>();
+        new BundleTree()
+            .addArchive(tar, (path) -> path)
+            .walk((entry, in) -> {
+                if (entry.isSymlink()) {
+                    symlinks.put(entry.path, entry.symlinkTarget);
+                } else {
+                    walked.put(entry.path, in.readAllBytes());
+                }
+            });
+        assertArrayEquals(content, walked.get("a/original"));
+        assertArrayEquals(content, walked.get("b/copy"));
+        assertArrayEquals(content, walked.get("c/executable"));
+        assertEquals("../a/original", symlinks.get("b/symlink"));
+        assertNull(walked.get("b/symlink"));
+    }
+
+    private static CompressionPolicy policy(int level) {
+        return new CompressionPolicy(new CompressionConfig(level, new CompressionRule[0]));
+    }
+
+    private static UnrecognizedExtraField levelField(int level) {
+        UnrecognizedExtraField field = new UnrecognizedExtraField();
+        field.setHeaderId(LEVEL_HEADER_ID);
+        field.setLocalFileDataData(new byte[] {
+                (byte) level
+        });
+        return field;
+    }
+
+    private static byte[] raw(File zip, String name) throws IOException {
+        try (ZipFile file = new ZipFile(zip); InputStream in = file.getRawInputStream(file.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Inflates every entry (which checks the CRCs) and compares it to the source.
+     */
+    private static void assertContentMatches(File zip, File source) throws IOException {
+        int count = 0;
+        try (java.util.zip.ZipFile file = new java.util.zip.ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                try (InputStream in = file.getInputStream(entry)) {
+                    assertArrayEquals(Files.readAllBytes(new File(source, entry.getName()).toPath()), in.readAllBytes(), entry.getName());
+                }
+                count++;
+            }
+        }
+        assertEquals(source.list().length, count);
+    }
+
+    private static byte[] text(int length, char c) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) (i % 80 == 79 ? '\n' : c);
+        }
+        return text;
+    }
+
+    private static void write(File folder, String path, byte[] content) throws IOException {
+        File file = new File(folder, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content);
+    }
+
+}
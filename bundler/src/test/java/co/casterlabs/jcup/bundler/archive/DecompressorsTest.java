@@ -0,0 +1,121 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import co.casterlabs.jcup.bundler.archive.Archives.Format;
+
+public class DecompressorsTest {
+    private static final int[] BLOCK_SIZES = {
+            1,
+            300 * 1024,
+            64 * 1024,
+            2 * 1024 * 1024 + 7,
+            0, // Does nothing, blocks can't be empty.
+            1024 * 1024,
+            13
+    };
+
+    @TempDir
+    File temp;
+
+    @Test
+    public void parallelMatchesSequential() throws IOException {
+        File archive = new File(this.temp, "blocks.tar.xz");
+        writeMultiBlockXz(archive);
+
+        byte[] expected;
+        try (InputStream in = new XZCompressorInputStream(new FileInputStream(archive))) {
+            expected = in.readAllBytes();
+        }
+
+        for (int threads : new int[] {
+                2,
+                3,
+                8
+        }) {
+            try (InputStream in = Decompressors.open(Format.TAR_XZ, archive, true, threads)) {
+                assertEquals("ParallelXZInputStream", in.getClass().getSimpleName(), "Should've taken the parallel path.");
+                assertArrayEquals(expected, readMixed(in), "Output with " + threads + " threads.");
+            }
+        }
+
+        // And the sequential paths, for good measure.
+        try (InputStream in = Decompressors.open(Format.TAR_XZ, archive, true, 1)) {
+            assertNotEquals("ParallelXZInputStream", in.getClass().getSimpleName());
+            assertArrayEquals(expected, readMixed(in));
+        }
+        try (InputStream in = Decompressors.open(Format.TAR_XZ, archive, false, 8)) {
+            assertArrayEquals(expected, readMixed(in));
+        }
+    }
+
+    @Test
+    public void closingEarlyIsFine() throws IOException {
+        File archive = new File(this.temp, "blocks.tar.xz");
+        writeMultiBlockXz(archive);
+
+        try (InputStream in = Decompressors.open(Format.TAR_XZ, archive, true, 4)) {
+            in.readNBytes(400 * 1024);
+        }
+    }
+
+    /**
+     * Some compressible and some random data, split into blocks like
+     * {@code xz -T0} would.
+     */
+    private static void writeMultiBlockXz(File file) throws IOException {
+        Random random = new Random(1234);
+
+        try (XZOutputStream out = new XZOutputStream(new FileOutputStream(file), new LZMA2Options(1))) {
+            for (int i = 0; i < BLOCK_SIZES.length; i++) {
+                byte[] block = new byte[BLOCK_SIZES[i]];
+                if (i % 2 == 0) {
+                    random.nextBytes(block);
+                } else {
+                    for (int j = 0; j < block.length; j++) {
+                        block[j] = (byte) ('a' + (j / 7) % 26);
+                    }
+                }
+                out.write(block);
+                out.endBlock();
+            }
+        }
+    }
+
+    /**
+     * Reads with a mix of single bytes and odd sized buffers, so reads straddle
+     * the block boundaries.
+     */
+    private static byte[] readMixed(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7919];
+
+        while (true) {
+            int b = in.read();
+            if (b == -1) break;
+            out.write(b);
+
+            int read = in.read(buffer, 0, buffer.length);
+            if (read == -1) break;
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,437 @@
+package co.casterlabs.jcup.bundler.archive;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.tukaani.xz.XZInputStream;
+
+import co.casterlabs.jcup.bundler.archive.SquashFsWriter.Compressor;
+
+public class SquashFsWriterTest {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int NO_FRAGMENT = 0xFFFFFFFF;
+    private static final long MTIME = 1_700_000_000_000L;
+
+    @TempDir
+    File temp;
+
+    @Test
+    public void roundTripGzip() throws IOException {
+        this.roundTrip(Compressor.GZIP);
+    }
+
+    @Test
+    public void roundTripXz() throws IOException {
+        this.roundTrip(Compressor.XZ);
+    }
+
+    /**
+     * The image is written after some leading bytes, like an AppImage's runtime.
+     */
+    private void roundTrip(Compressor compressor) throws IOException {
+        Random random = new Random(42);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+
+        byte[] randomBlocks = new byte[BLOCK_SIZE * 3 + 123]; // Uncompressible, with a tail.
+        random.nextBytes(randomBlocks);
+        files.put("bin/random", randomBlocks);
+        files.put("bin/random-copy", randomBlocks.clone());
+
+        byte[] exact = new byte[BLOCK_SIZE * 2]; // No tail, so no fragment.
+        for (int i = 0; i < exact.length; i++) {
+            exact[i] = (byte) (i % 7);
+        }
+        files.put("lib/exact", exact);
+
+        files.put("empty", new byte[0]);
+        files.put("lib/empty-too", new byte[0]);
+        files.put("small.txt", "Hello!".getBytes(StandardCharsets.UTF_8));
+        files.put("lib/small-copy.txt", "Hello!".getBytes(StandardCharsets.UTF_8));
+
+        // More than 256 entries, which takes more than one directory header.
+        for (int i = 0; i < 300; i++) {
+            files.put("many/file-" + i, ("content of " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        // And a listing that's too big for a basic directory inode.
+        for (int i = 0; i < 3000; i++) {
+            files.put(String.format("huge/a-pretty-long-file-name-%04d", i), new byte[] {
+                    (byte) i
+            });
+        }
+
+        byte[] prefix = "not part of the image".getBytes(StandardCharsets.UTF_8);
+        Map<String, String> symlinks = new LinkedHashMap<>();
+        symlinks.put("bin/link", "random");
+        symlinks.put("lib/up", "../small.txt");
+        // Symlink inodes are small enough for more than 256 of them to share a
+        // metadata block, so the directory header has to split them up itself.
+        for (int i = 0; i < 300; i++) {
+            symlinks.put(String.format("many/link-%03d", i), "x");
+        }
+        byte[] bytes = this.write(compressor, prefix, files, symlinks);
+        assertArrayEquals(prefix, Arrays.copyOf(bytes, prefix.length), "The leading bytes should be untouched.");
+        assertEquals(0, (bytes.length - prefix.length) % 4096, "The image should be padded to 4K.");
+
+        Map<String, Inode> read = new SquashFsReader(bytes, prefix.length).read();
+
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Inode inode = read.get(file.getKey());
+            assertTrue(inode != null, "Missing " + file.getKey());
+            assertEquals(SquashFsReader.TYPE_FILE, inode.type, file.getKey());
+            assertArrayEquals(file.getValue(), inode.content, file.getKey());
+            assertEquals(file.getKey().startsWith("bin/") ? 0755 : 0644, inode.mode, file.getKey());
+            assertEquals(MTIME / 1000, inode.modificationTime & 0xFFFFFFFFL, file.getKey());
+        }
+        assertEquals("random", read.get("bin/link").symlinkTarget);
+        assertEquals("../small.txt", read.get("lib/up").symlinkTarget);
+
+        // Duplicates share their data.
+        assertEquals(read.get("bin/random").blocksStart, read.get("bin/random-copy").blocksStart);
+        assertEquals(read.get("small.txt").fragmentOffset, read.get("lib/small-copy.txt").fragmentOffset);
+        assertEquals(NO_FRAGMENT, read.get("lib/exact").fragmentIndex);
+        assertNotEquals(NO_FRAGMENT, read.get("bin/random").fragmentIndex);
+
+        // Every inode has its own number, with the root last.
+        Set<Integer> numbers = new HashSet<>();
+        for (Inode inode : read.values()) {
+            assertTrue(numbers.add(inode.number), "Duplicate inode number " + inode.number);
+        }
+        assertEquals(read.size(), numbers.size());
+        assertEquals(read.size(), read.get("").number, "The root should be the last inode.");
+    }
+
+    @Test
+    public void duplicatesAreStoredOnce() throws IOException {
+        byte[] content = new byte[BLOCK_SIZE * 5 + 10];
+        new Random(7).nextBytes(content);
+
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("a", content);
+        long alone = bytesUsed(this.write(Compressor.GZIP, new byte[0], files, Map.of()));
+
+        files.put("b", content.clone());
+        files.put("c/d", content.clone());
+        long withCopies = bytesUsed(this.write(Compressor.GZIP, new byte[0], files, Map.of()));
+
+        // Only the inodes and directory entries should've been added.
+        assertTrue(withCopies - alone < 256, "Grew by " + (withCopies - alone) + " bytes.");
+    }
+
+    private byte[] write(Compressor compressor, byte[] prefix, Map<String, byte[]> files, Map<String, String> symlinks) throws IOException {
+        File image = File.createTempFile("image", ".sqfs", this.temp);
+        Files.write(image.toPath(), prefix);
+
+        try (
+            FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.WRITE);
+            SquashFsWriter writer = new SquashFsWriter(channel, prefix.length, compressor, 6, BLOCK_SIZE)) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                int mode = file.getKey().startsWith("bin/") ? BundleEntry.MODE_EXECUTABLE : BundleEntry.MODE_FILE;
+                writer.add(new BundleEntry(file.getKey(), file.getValue().length, mode, MTIME), new ByteArrayInputStream(file.getValue()));
+            }
+            for (Map.Entry<String, String> symlink : symlinks.entrySet()) {
+                writer.add(BundleEntry.symlink(symlink.getKey(), symlink.getValue(), MTIME), InputStream.nullInputStream());
+            }
+            writer.finish();
+        }
+        return Files.readAllBytes(image.toPath());
+    }
+
+    private static long bytesUsed(byte[] image) {
+        return ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN).getLong(40);
+    }
+
+    private static class Inode {
+        int type;
+        int mode;
+        int modificationTime;
+        int number;
+
+        long blocksStart;
+        int fragmentIndex = NO_FRAGMENT;
+        int fragmentOffset;
+        byte[] content;
+        String symlinkTarget;
+    }
+
+    /**
+     * Just enough of a SquashFS 4.0 reader to check what the writer wrote,
+     * following the layout in the kernel's fs/squashfs/squashfs_fs.h.
+     */
+    private static class SquashFsReader {
+        static final int TYPE_DIRECTORY = 1;
+        static final int TYPE_FILE = 2;
+        static final int TYPE_SYMLINK = 3;
+        static final int TYPE_EXTENDED_DIRECTORY = 8;
+        static final int TYPE_EXTENDED_FILE = 9;
+
+        private final ByteBuffer image;
+        private final int compressor;
+        private final int blockSize;
+        private final int inodeCount;
+        private final long rootRef;
+        private final long inodeTable;
+        private final long directoryTable;
+        private final long fragmentTable;
+
+        private final Map<String, Inode> inodes = new LinkedHashMap<>();
+
+        SquashFsReader(byte[] bytes, int offset) {
+            this.image = ByteBuffer.wrap(bytes, offset, bytes.length - offset).slice().order(ByteOrder.LITTLE_ENDIAN);
+
+            assertEquals(0x73717368, this.image.getInt(0), "magic");
+            this.inodeCount = this.image.getInt(4);
+            this.blockSize = this.image.getInt(12);
+            this.compressor = this.image.getShort(20);
+            assertEquals(4, this.image.getShort(28), "major version");
+            this.rootRef = this.image.getLong(32);
+            this.inodeTable = this.image.getLong(64);
+            this.directoryTable = this.image.getLong(72);
+            this.fragmentTable = this.image.getLong(80);
+        }
+
+        Map<String, Inode> read() throws IOException {
+            this.readInode(this.rootRef, "");
+            assertEquals(this.inodeCount, this.inodes.size(), "inode count");
+            return this.inodes;
+        }
+
+        private void readInode(long ref, String path) throws IOException {
+            MetadataCursor cursor = new MetadataCursor(this.inodeTable, ref);
+            Inode inode = new Inode();
+            inode.type = cursor.getShort();
+            inode.mode = cursor.getShort();
+            cursor.getShort(); // uid
+            cursor.getShort(); // gid
+            inode.modificationTime = cursor.getInt();
+            inode.number = cursor.getInt();
+            this.inodes.put(path, inode);
+
+            switch (inode.type) {
+                case TYPE_DIRECTORY: {
+                    int block = cursor.getInt();
+                    cursor.getInt(); // link count
+                    int size = cursor.getShort();
+                    int offset = cursor.getShort();
+                    this.readListing(block, offset, size, path);
+                    break;
+                }
+
+                case TYPE_EXTENDED_DIRECTORY: {
+                    cursor.getInt(); // link count
+                    int size = cursor.getInt();
+                    int block = cursor.getInt();
+                    cursor.getInt(); // parent
+                    cursor.getShort(); // index count
+                    int offset = cursor.getShort();
+                    this.readListing(block, offset, size, path);
+                    break;
+                }
+
+                case TYPE_FILE:
+                case TYPE_EXTENDED_FILE: {
+                    long size;
+                    if (inode.type == TYPE_FILE) {
+                        inode.blocksStart = cursor.getInt() & 0xFFFFFFFFL;
+                        inode.fragmentIndex = cursor.getInt();
+                        inode.fragmentOffset = cursor.getInt();
+                        size = cursor.getInt() & 0xFFFFFFFFL;
+                    } else {
+                        inode.blocksStart = cursor.getLong();
+                        size = cursor.getLong();
+                        cursor.getLong(); // sparse
+                        cursor.getInt(); // link count
+                        inode.fragmentIndex = cursor.getInt();
+                        inode.fragmentOffset = cursor.getInt();
+                        cursor.getInt(); // xattr
+                    }
+                    inode.content = this.readContent(cursor, inode, size);
+                    break;
+                }
+
+                case TYPE_SYMLINK: {
+                    cursor.getInt(); // link count
+                    inode.symlinkTarget = new String(cursor.getBytes(cursor.getInt()), StandardCharsets.UTF_8);
+                    break;
+                }
+
+                default:
+                    throw new IOException("Unexpected inode type " + inode.type + " for " + path);
+            }
+        }
+
+        private void readListing(int block, int offset, int size, String path) throws IOException {
+            MetadataCursor cursor = new MetadataCursor(this.directoryTable, ((long) block << 16) | offset);
+            int remaining = size - 3; // . and ..
+            String previous = null;
+
+            while (remaining > 0) {
+                int count = cursor.getInt() + 1;
+                long inodeBlock = cursor.getInt() & 0xFFFFFFFFL;
+                int baseNumber = cursor.getInt();
+                remaining -= 12;
+                assertTrue(count <= 256, "Too many entries under one header.");
+
+                for (int i = 0; i < count; i++) {
+                    int inodeOffset = cursor.getShort();
+                    short numberDelta = (short) cursor.getShort();
+                    cursor.getShort(); // type
+                    String name = new String(cursor.getBytes(cursor.getShort() + 1), StandardCharsets.UTF_8);
+                    remaining -= 8 + name.getBytes(StandardCharsets.UTF_8).length;
+
+                    assertTrue(previous == null || previous.compareTo(name) < 0, "Entries must be sorted: " + previous + ", " + name);
+                    previous = name;
+
+                    String childPath = path.isEmpty() ? name : path + '/' + name;
+                    this.readInode((inodeBlock << 16) | inodeOffset, childPath);
+                    assertEquals(baseNumber + numberDelta, this.inodes.get(childPath).number, childPath);
+                }
+            }
+            assertEquals(0, remaining, "listing size of " + path);
+        }
+
+        private byte[] readContent(MetadataCursor cursor, Inode inode, long size) throws IOException {
+            boolean hasFragment = inode.fragmentIndex != NO_FRAGMENT;
+            long blockCount = hasFragment ? size / this.blockSize : (size + this.blockSize - 1) / this.blockSize;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long position = inode.blocksStart;
+            for (long i = 0; i < blockCount; i++) {
+                int word = cursor.getInt();
+                int length = word & 0xFFFFFF;
+                byte[] data = this.bytes(position, length);
+                out.write((word & (1 << 24)) == 0 ? this.decompress(data) : data);
+                position += length;
+            }
+
+            if (hasFragment) {
+                long lookup = this.image.getLong((int) (this.fragmentTable + (inode.fragmentIndex * 16L / 8192) * 8));
+                MetadataCursor entry = new MetadataCursor(lookup, (inode.fragmentIndex * 16L) % 8192);
+                long start = entry.getLong();
+                int word = entry.getInt();
+                int length = word & 0xFFFFFF;
+                byte[] fragment = this.bytes(start, length);
+                if ((word & (1 << 24)) == 0) {
+                    fragment = this.decompress(fragment);
+                }
+                out.write(fragment, inode.fragmentOffset, (int) (size % this.blockSize));
+            }
+
+            assertEquals(size, out.size(), "file size");
+            return out.toByteArray();
+        }
+
+        private byte[] bytes(long position, int length) {
+            byte[] data = new byte[length];
+            this.image.get((int) position, data);
+            return data;
+        }
+
+        private byte[] decompress(byte[] data) throws IOException {
+            switch (this.compressor) {
+                case 1: {
+                    Inflater inflater = new Inflater();
+                    try {
+                        inflater.setInput(data);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[8192];
+                        while (!inflater.finished()) {
+                            int read = inflater.inflate(buffer);
+                            if (read == 0 && inflater.needsInput()) throw new IOException("Truncated zlib data.");
+                            out.write(buffer, 0, read);
+                        }
+                        return out.toByteArray();
+                    } catch (DataFormatException e) {
+                        throw new IOException(e);
+                    } finally {
+                        inflater.end();
+                    }
+                }
+
+                case 4:
+                    try (InputStream in = new XZInputStream(new ByteArrayInputStream(data))) {
+                        return in.readAllBytes();
+                    }
+
+                default:
+                    throw new IOException("Unexpected compressor " + this.compressor);
+            }
+        }
+
+        /**
+         * Reads through consecutive metadata blocks, starting at a reference of the
+         * form {@code (block start << 16) | offset in block}.
+         */
+        private class MetadataCursor {
+            private long nextBlock;
+            private ByteBuffer block;
+
+            MetadataCursor(long tableStart, long ref) throws IOException {
+                this.nextBlock = tableStart + (ref >>> 16);
+                this.advance();
+                this.block.position((int) (ref & 0xFFFF));
+            }
+
+            private void advance() throws IOException {
+                int header = image.getShort((int) this.nextBlock) & 0xFFFF;
+                int length = header & 0x7FFF;
+                byte[] data = bytes(this.nextBlock + 2, length);
+                if ((header & 0x8000) == 0) {
+                    data = decompress(data);
+                }
+                assertTrue(data.length <= 8192, "Metadata blocks hold at most 8K.");
+                this.nextBlock += 2 + length;
+                this.block = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            byte[] getBytes(int length) throws IOException {
+                byte[] result = new byte[length];
+                int filled = 0;
+                while (filled < length) {
+                    if (!this.block.hasRemaining()) this.advance();
+                    int toCopy = Math.min(length - filled, this.block.remaining());
+                    this.block.get(result, filled, toCopy);
+                    filled += toCopy;
+                }
+                return result;
+            }
+
+            int getShort() throws IOException {
+                return ByteBuffer.wrap(this.getBytes(2)).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
+            }
+
+            int getInt() throws IOException {
+                return ByteBuffer.wrap(this.getBytes(4)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            }
+
+            long getLong() throws IOException {
+                return ByteBuffer.wrap(this.getBytes(8)).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package co.casterlabs.jcup.companion;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
+
+/**
+ * The unix launcher writes each invocation to a file and then writes that
+ * file's name (as a line) to a fifo that we read from. Lines that small are
+ * written atomically, so launches can't interleave.
+ */
+class FifoTransport implements Transport {
+    static final String FIFO_FILE = "args";
+    static final String MESSAGE_PREFIX = "message-";
+
+    private final Path dir;
+    private final Path fifo;
+
+    FifoTransport(Path dir) {
+        this.dir = dir;
+        this.fifo = dir.resolve(FIFO_FILE);
+    }
+
+    @Override
+    public void listen(Consumer<Invocation> listener) throws IOException {
+        Files.deleteIfExists(this.fifo);
+        try {
+            Process mkfifo = new ProcessBuilder("mkfifo", "-m", "600", this.fifo.toString())
+                .inheritIO()
+                .start();
+            if (mkfifo.waitFor() != 0) {
+                throw new IOException("mkfifo exited with " + mkfifo.exitValue());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        Thread thread = new Thread(() -> {
+            int failures = 0;
+            while (true) {
+                // Opening blocks until someone writes and we hit EOF once every writer is done.
+                try (BufferedReader reader = Files.newBufferedReader(this.fifo, StandardCharsets.UTF_8)) {
+                    failures = 0;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Invocation invocation = this.readMessage(line);
+                        if (invocation != null) {
+                            Transport.deliver(listener, invocation);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!Files.exists(this.fifo)) {
+                        // e.g $XDG_RUNTIME_DIR got cleaned up, the launchers start new instances from now on.
+                        LOGGER.log(System.Logger.Level.WARNING, "The fifo is gone, no longer listening for other launches.", e);
+                        return;
+                    }
+                    if (!Transport.backOff(++failures, e)) {
+                        return;
+                    }
+                }
+            }
+        }, "JCup SingleInstance Listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Invocation readMessage(String name) {
+        // Don't let anyone point us outside of our folder.
+        if (!name.startsWith(MESSAGE_PREFIX) || name.contains("/")) {
+            return null;
+        }
+
+        Path message = this.dir.resolve(name);
+        if (!Files.isRegularFile(message)) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(message);
+            Files.delete(message);
+            return Invocation.deserialize(bytes);
+        } catch (IOException e) {
+            // Only this message is lost, keep listening.
+            LOGGER.log(System.Logger.Level.WARNING, "Unable to read " + message + ", ignoring.", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void send(Invocation invocation) throws IOException {
+        String name = MESSAGE_PREFIX + ProcessHandle.current().pid();
+        Path temp = this.dir.resolve(name + ".tmp");
+        Files.write(temp, invocation.serialize());
+        Files.move(temp, this.dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+
+        try (OutputStream out = Files.newOutputStream(this.fifo)) {
+            out.write((name + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package co.casterlabs.jcup.companion;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A launch of the app that was handed over to the running instance.
+ */
+public class Invocation {
+
+    /**
+     * The directory the launch happened in, for resolving relative paths in
+     * {@link #args}.
+     */
+    public final String workingDirectory;
+
+    public final List<String> args;
+
+    public Invocation(String workingDirectory, List<String> args) {
+        this.workingDirectory = workingDirectory;
+        this.args = Collections.unmodifiableList(args);
+    }
+
+    @Override
+    public String toString() {
+        return "Invocation(workingDirectory=" + this.workingDirectory + ", args=" + this.args + ")";
+    }
+
+    /**
+     * The wire format, shared with the launchers: the working directory followed
+     * by the args, each terminated with a NUL.
+     */
+    byte[] serialize() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(this.workingDirectory.getBytes(StandardCharsets.UTF_8));
+        out.write(0);
+        for (String arg : this.args) {
+            out.writeBytes(arg.getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+
+    static Invocation deserialize(byte[] bytes) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == 0) {
+                fields.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+
+        if (fields.isEmpty()) {
+            return new Invocation("", new ArrayList<>());
+        }
+        return new Invocation(fields.get(0), fields.subList(1, fields.size()));
+    }
+
+}
@@ -0,0 +1,107 @@
+package co.casterlabs.jcup.companion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Receives the arguments of later launches when the app is bundled with
+ * {@code singleInstance} enabled. The Linux launcher hands its arguments to
+ * the running instance (if there is one) instead of starting another JVM.
+ * Elsewhere every launch gets its own JVM and {@link #claim} always succeeds.
+ *
+ * <pre>
+ * public static void main(String[] args) throws IOException {
+ *     if (!SingleInstance.claim(args, (invocation) -> openFiles(invocation.args))) {
+ *         return; // Another instance was faster and got our arguments.
+ *     }
+ *     openFiles(Arrays.asList(args));
+ * }
+ * </pre>
+ */
+public class SingleInstance {
+    /**
+     * Set by the launcher, points to the folder that is shared by every launch of
+     * the app (for the current user).
+     */
+    public static final String PROPERTY = "jcup.instance";
+
+    /**
+     * Set by the launcher, since it changes directory before starting the JVM.
+     */
+    public static final String CWD_PROPERTY = "jcup.cwd";
+
+    static final String LOCK_FILE = "lock";
+    static final String PID_FILE = "listener.pid";
+
+    private static final long FORWARD_TIMEOUT = 10_000;
+
+    private static FileChannel lockChannel; // Held for the lifetime of the JVM.
+    private static FileLock lock;
+
+    /**
+     * Tries to become the running instance. Launches that happen while we're
+     * running get handed to the listener, on a background thread.
+     *
+     * @return false, if another instance is already running. It has been handed
+     *         our args and this one should exit.
+     */
+    public static synchronized boolean claim(String[] args, Consumer<Invocation> listener) throws IOException {
+        String instanceDir = System.getProperty(PROPERTY);
+        if (instanceDir == null) {
+            return true; // Not launched in single-instance mode, e.g from an IDE.
+        }
+        if (lock != null) {
+            throw new IllegalStateException("Already claimed.");
+        }
+
+        Path dir = Path.of(instanceDir);
+        Files.createDirectories(dir);
+        Transport transport = Transport.get(dir);
+
+        FileChannel channel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired = channel.tryLock();
+
+        if (acquired == null) {
+            // Two launches raced past the launcher, hand our args to the winner.
+            channel.close();
+            String cwd = System.getProperty(CWD_PROPERTY, new File("").getAbsolutePath());
+            Invocation invocation = new Invocation(cwd, Arrays.asList(args));
+            forward(dir, transport, invocation);
+            return false;
+        }
+
+        lockChannel = channel;
+        lock = acquired;
+
+        Files.deleteIfExists(dir.resolve(PID_FILE));
+        transport.listen(listener);
+
+        // The launchers only talk to us once this exists.
+        Files.writeString(dir.resolve(PID_FILE), String.valueOf(ProcessHandle.current().pid()));
+        return true;
+    }
+
+    private static void forward(Path dir, Transport transport, Invocation invocation) throws IOException {
+        long giveUpAt = System.currentTimeMillis() + FORWARD_TIMEOUT;
+        while (!Files.exists(dir.resolve(PID_FILE))) {
+            if (System.currentTimeMillis() > giveUpAt) {
+                throw new IOException("The running instance never started listening.");
+            }
+            try {
+                Thread.sleep(25);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        transport.send(invocation);
+    }
+
+}
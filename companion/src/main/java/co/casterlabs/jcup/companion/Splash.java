@@ -0,0 +1,35 @@
+package co.casterlabs.jcup.companion;
+
+import java.awt.SplashScreen;
+
+/**
+ * The splash screen the JVM shows while it starts, when the app is bundled with
+ * {@code splash} enabled. AWT closes it once the first window shows, so a
+ * Swing app doesn't need this. Call {@link #close()} if the app shows something
+ * else first (e.g a JavaFX stage or a tray icon), or has nothing to show.
+ *
+ * <pre>
+ * public static void main(String[] args) {
+ *     Stage stage = createStage();
+ *     stage.show();
+ *     Splash.close();
+ * }
+ * </pre>
+ */
+public class Splash {
+
+    /**
+     * Closes the splash screen, if there is one. Safe to call more than once.
+     */
+    public static void close() {
+        try {
+            SplashScreen splash = SplashScreen.getSplashScreen();
+            if (splash != null && splash.isVisible()) {
+                splash.close();
+            }
+        } catch (UnsupportedOperationException | IllegalStateException ignored) {
+            // Nothing to close, or headless.
+        }
+    }
+
+}
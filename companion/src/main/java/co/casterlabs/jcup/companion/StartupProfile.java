@@ -0,0 +1,59 @@
+package co.casterlabs.jcup.companion;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Marks how far startup got when the app is bundled with {@code profiling}
+ * enabled and the user turned profiling on (see the launchers). The marks end
+ * up in the same log as the launcher's, so the bundler's
+ * {@code profile-summary} command can tell where the time went.
+ *
+ * <pre>
+ * public static void main(String[] args) {
+ *     StartupProfile.mark("main");
+ *     // ...
+ *     StartupProfile.mark("window-shown");
+ * }
+ * </pre>
+ *
+ * Does nothing when not profiling, so it's safe to leave in.
+ */
+public class StartupProfile {
+    /**
+     * Set by the launcher, the per-user folder with the log and the recordings.
+     */
+    public static final String DIR_PROPERTY = "jcup.profile.dir";
+
+    /**
+     * Set by the launcher, identifies this launch in the log.
+     */
+    public static final String RUN_PROPERTY = "jcup.profile.run";
+
+    static final String LOG_FILE = "startup.log";
+
+    /**
+     * Logs that startup reached the given phase, now. When the JVM started comes
+     * from the recording.
+     */
+    public static synchronized void mark(String phase) {
+        long now = System.currentTimeMillis();
+
+        String dir = System.getProperty(DIR_PROPERTY);
+        String run = System.getProperty(RUN_PROPERTY);
+        if (dir == null || run == null) {
+            return; // Not profiling.
+        }
+
+        String line = run + '\t' + phase.replaceAll("\\s", "-") + '\t' + now + '\n';
+        try {
+            Files.writeString(Path.of(dir, LOG_FILE), line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ignored) {
+            // Profiling must never break the app.
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package co.casterlabs.jcup.companion;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * How the launchers talk to the running instance, this has to be something the
+ * launcher can do cheaply (and from a shell script).
+ */
+interface Transport {
+    System.Logger LOGGER = System.getLogger("co.casterlabs.jcup.companion.SingleInstance");
+
+    /**
+     * How many times in a row the listener may fail before it gives up, waiting a
+     * bit longer each time.
+     */
+    int MAX_FAILURES = 5;
+    long RETRY_DELAY = 250;
+
+    public void listen(Consumer<Invocation> listener) throws IOException;
+
+    public void send(Invocation invocation) throws IOException;
+
+    /**
+     * Hands the invocation to the app, a listener that throws doesn't stop us from
+     * listening.
+     */
+    public static void deliver(Consumer<Invocation> listener, Invocation invocation) {
+        try {
+            listener.accept(invocation);
+        } catch (RuntimeException e) {
+            LOGGER.log(System.Logger.Level.ERROR, "The SingleInstance listener threw.", e);
+        }
+    }
+
+    /**
+     * @return false, if the listener should give up.
+     */
+    public static boolean backOff(int failures, IOException cause) {
+        if (failures >= MAX_FAILURES) {
+            LOGGER.log(System.Logger.Level.ERROR, "Failed " + failures + " times in a row, no longer listening for other launches.", cause);
+            return false;
+        }
+
+        LOGGER.log(System.Logger.Level.WARNING, "Unable to listen for other launches, retrying.", cause);
+        try {
+            Thread.sleep(RETRY_DELAY * failures);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Only the unix launcher supports single-instance mode for now, so there's
+     * only the one.
+     */
+    public static Transport get(Path dir) {
+        return new FifoTransport(dir);
+    }
+
+}
@@ -7,6 +7,7 @@ import java.awt.Font;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.util.Arrays;
 
 import javax.swing.JButton;
@@ -16,11 +17,30 @@ import javax.swing.JPanel;
 import javax.swing.SwingConstants;
 import javax.swing.UIManager;
 
+import co.casterlabs.jcup.companion.SingleInstance;
+import co.casterlabs.jcup.companion.Splash;
+import co.casterlabs.jcup.companion.StartupProfile;
+
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        // For the bundler's launch-benchmark command, which times how long it takes to get here.
+        if (System.getenv("JCUP_BENCHMARK") != null) {
+            System.out.println("JCUP_BENCHMARK_MAIN");
+            return;
+        }
+
+        // Only does anything when bundled with `profiling` enabled and the user turned it on.
+        StartupProfile.mark("main");
+
         System.out.println(Arrays.toString(args));
 
+        // Only does anything when bundled with `singleInstance` enabled.
+        if (!SingleInstance.claim(args, (invocation) -> System.out.println(invocation))) {
+            Splash.close(); // Only when bundled with `splash` enabled, there's no window to close it for us.
+            return; // The running instance got our args.
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); // Set the look and feel to system default
         } catch (Exception ignored) {}
@@ -55,6 +75,7 @@ public class Main {
         int y = (screenSize.height - frame.getHeight()) / 2;
         frame.setLocation(x, y);
         frame.setVisible(true);
+        StartupProfile.mark("window-shown");
     }
 
 }
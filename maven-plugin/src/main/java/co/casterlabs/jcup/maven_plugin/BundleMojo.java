@@ -0,0 +1,313 @@
+package co.casterlabs.jcup.maven_plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import co.casterlabs.jcup.bundler.JCup;
+import co.casterlabs.jcup.bundler.JCupAbortException;
+import co.casterlabs.jcup.bundler.config.Architecture;
+import co.casterlabs.jcup.bundler.config.Config;
+import co.casterlabs.jcup.bundler.config.Config.FolderInclude;
+import co.casterlabs.jcup.bundler.config.Config.OSSpecificConfig;
+import co.casterlabs.jcup.bundler.config.OperatingSystem;
+import co.casterlabs.rakurai.json.Rson;
+import xyz.e3ndr.fastloggingframework.logging.LogLevel;
+
+/**
+ * Runs the bundler inside of the build's JVM, after {@code package}. Same
+ * configs as the command line, except that relative paths in them are relative
+ * to the project's folder and the project's jar (and optionally its
+ * dependencies) are included for you.
+ *
+ * <pre>
+ * &lt;plugin&gt;
+ *     &lt;groupId&gt;co.casterlabs&lt;/groupId&gt;
+ *     &lt;artifactId&gt;jcup-maven-plugin&lt;/artifactId&gt;
+ *     &lt;version&gt;1.0.0&lt;/version&gt;
+ *     &lt;executions&gt;
+ *         &lt;execution&gt;
+ *             &lt;goals&gt;
+ *                 &lt;goal&gt;bundle&lt;/goal&gt;
+ *             &lt;/goals&gt;
+ *         &lt;/execution&gt;
+ *     &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ *
+ * The jcup/ folder (download cache, build folder and artifacts) is the one in
+ * the directory Maven runs in, so the modules of a (parallel) build share their
+ * downloads and runtimes. Nothing is bundled when none of the inputs changed
+ * since the last successful run.
+ */
+@Mojo(name = "bundle", defaultPhase = LifecyclePhase.PACKAGE, requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class BundleMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    /**
+     * The configs to bundle. Defaults to jcup/config.json in the project's
+     * folder.
+     */
+    @Parameter
+    private List<File> configFiles;
+
+    /**
+     * How many targets to bundle at once.
+     */
+    @Parameter(property = "jcup.jobs", defaultValue = "1")
+    private int jobs;
+
+    /**
+     * Includes the project's jar in the app folder, under its file name.
+     */
+    @Parameter(defaultValue = "true")
+    private boolean includeArtifact;
+
+    /**
+     * Which of the project's jars to include, e.g {@code shaded}. Defaults to the
+     * main one.
+     */
+    @Parameter
+    private String artifactClassifier;
+
+    /**
+     * Includes the project's runtime dependencies, in {@link #dependencyFolder}.
+     * The jar's manifest (or the vmArgs) still has to put them on the classpath.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean includeDependencies;
+
+    @Parameter(defaultValue = "libs")
+    private String dependencyFolder;
+
+    /**
+     * Bundles even if nothing changed since the last run.
+     */
+    @Parameter(property = "jcup.force", defaultValue = "false")
+    private boolean force;
+
+    @Parameter(property = "jcup.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (this.skip) {
+            this.getLog().info("Skipping, jcup.skip is set.");
+            return;
+        }
+
+        if (this.getLog().isDebugEnabled()) {
+            JCup.LOGGER.setCurrentLevel(LogLevel.DEBUG);
+        }
+
+        List<Config> configs = new ArrayList<>();
+        for (File configFile : this.configFiles()) {
+            try {
+                configs.add(JCup.readConfig(configFile).resolvePaths(this.project.getBasedir()));
+            } catch (JCupAbortException e) {
+                throw new MojoFailureException("Unable to read the config " + configFile + ", see the log above.");
+            }
+        }
+        this.addProjectFiles(configs);
+
+        // Remembers what we bundled, so an unchanged module isn't bundled again.
+        File fingerprintFile = new File(this.project.getBuild().getDirectory(), "jcup/inputs.sha256");
+        String fingerprint;
+        try {
+            fingerprint = fingerprint(configs);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to check the inputs for changes.", e);
+        }
+
+        if (!this.force && fingerprintFile.isFile()) {
+            try {
+                if (Files.readString(fingerprintFile.toPath()).equals(fingerprint)) {
+                    this.getLog().info("Nothing changed since the last bundle, skipping. Use -Djcup.force to bundle anyway.");
+                    return;
+                }
+            } catch (IOException e) {
+                this.getLog().debug("Unable to read " + fingerprintFile + ", bundling.", e);
+            }
+        }
+
+        try {
+            JCup.bundle(configs, this.jobs);
+        } catch (JCupAbortException e) {
+            throw new MojoFailureException("Bundling failed (exit code " + e.desiredExitCode + "), see the log above.");
+        }
+
+        try {
+            // The artifacts are part of the fingerprint, so it's taken again now that they exist.
+            Files.createDirectories(fingerprintFile.toPath().getParent());
+            Files.writeString(fingerprintFile.toPath(), fingerprint(configs));
+        } catch (IOException e) {
+            this.getLog().warn("Unable to save " + fingerprintFile + ", the next build will bundle again.", e);
+        }
+    }
+
+    private List<File> configFiles() {
+        if (this.configFiles == null || this.configFiles.isEmpty()) {
+            return List.of(new File(this.project.getBasedir(), "jcup/config.json"));
+        }
+        return this.configFiles;
+    }
+
+    private void addProjectFiles(List<Config> configs) throws MojoExecutionException {
+        List<File> jars = new LinkedList<>();
+        if (this.includeArtifact) {
+            File jar = this.findArtifact();
+            if (jar == null) {
+                throw new MojoExecutionException(
+                    "There's no " + (this.artifactClassifier == null ? "" : this.artifactClassifier + ' ') + "jar to include, run the bundle goal after `package` (or set includeArtifact to false)."
+                );
+            }
+            jars.add(jar);
+        }
+
+        for (Config config : configs) {
+            for (File jar : jars) {
+                config.mainInclude.put(jar.getAbsolutePath(), jar.getName());
+            }
+            if (this.includeDependencies) {
+                for (Artifact dependency : this.project.getArtifacts()) {
+                    if (dependency.getFile() == null || !dependency.getFile().getName().endsWith(".jar")) continue;
+                    config.mainInclude.put(dependency.getFile().getAbsolutePath(), this.dependencyFolder + '/' + dependency.getFile().getName());
+                }
+            }
+        }
+    }
+
+    private File findArtifact() {
+        if (this.artifactClassifier == null) {
+            return this.project.getArtifact().getFile();
+        }
+
+        for (Artifact attached : this.project.getAttachedArtifacts()) {
+            if (this.artifactClassifier.equals(attached.getClassifier())) {
+                return attached.getFile();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the configs, the size and modification time of every file they
+     * include and of the artifacts from the last run (so deleting one bundles
+     * again).
+     */
+    private static String fingerprint(List<Config> configs) throws IOException {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+
+        for (Config config : configs) {
+            digest.update(Rson.DEFAULT.toJson(config).toString().getBytes(StandardCharsets.UTF_8));
+
+            for (String input : inputsOf(config)) {
+                Path path = Path.of(input);
+                if (!Files.exists(path)) continue;
+
+                List<Path> files;
+                try (Stream<Path> stream = Files.walk(path)) {
+                    files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+                for (Path file : files) {
+                    update(digest, file);
+                }
+            }
+
+            Set<String> prefixes = artifactPrefixesOf(config);
+            File[] artifacts = JCup.ARTIFACTS_FOLDER.listFiles((dir, name) -> prefixes.stream().anyMatch(name::startsWith));
+            if (artifacts != null) {
+                Arrays.sort(artifacts);
+                for (File artifact : artifacts) {
+                    update(digest, artifact.toPath());
+                }
+            }
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Artifacts are named {@code <executableName>-<os>-<arch>.<extension>}, so
+     * another config whose name starts with this one's doesn't get mixed in.
+     */
+    private static Set<String> artifactPrefixesOf(Config config) {
+        Set<String> prefixes = new HashSet<>();
+        for (OSSpecificConfig ossc : config.toCreate) {
+            for (OperatingSystem os : ossc.operatingSystems) {
+                for (Architecture arch : ossc.architectures) {
+                    prefixes.add(String.format("%s-%s-%s.", config.executableName, os, arch));
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    private static void update(MessageDigest digest, Path file) throws IOException {
+        String stat = String.format("%s\0%d\0%d\n", file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        digest.update(stat.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> inputsOf(Config config) {
+        List<String> inputs = new LinkedList<>();
+        inputs.add(config.appIconPath);
+        inputs.addAll(config.mainInclude.keySet());
+        for (FolderInclude folder : config.folderInclude) {
+            inputs.add(folder.from);
+        }
+        for (OSSpecificConfig ossc : config.toCreate) {
+            if (ossc.extraInclude != null) {
+                inputs.addAll(ossc.extraInclude.keySet());
+            }
+        }
+        inputs.add(config.appImage.runtimePath);
+        inputs.add(config.jarOptimization.classList);
+        inputs.add(config.profiling.settingsPath);
+        inputs.add(config.splash.imagePath);
+        inputs.add(config.oci.baseImagePath);
+
+        // For globs, everything under their base.
+        return inputs
+            .stream()
+            .filter((input) -> input != null)
+            .map(BundleMojo::globBase)
+            .distinct()
+            .collect(Collectors.toList());
+    }
+
+    private static String globBase(String path) {
+        String[] parts = path.replace('\\', '/').split("/");
+        StringBuilder base = new StringBuilder();
+        for (String part : parts) {
+            if (part.contains("*") || part.contains("?")) break; // Same as the bundler.
+            base.append(part).append('/');
+        }
+        return base.length() == 0 ? "." : base.toString();
+    }
+
+}